@@ -0,0 +1,93 @@
+package MSD;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Cache lookups mixed with entries being replaced, over names drawn with a Zipf skew so the
+//popular ones contend for the same segments. The cache is kept in the heap or off it. The
+//number of threads is left to JMH's -t; DNSCacheScaling runs it at 1 to 64 threads and
+//reports how the throughput scales.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DNSCacheBenchmark {
+  // Length of the drawn sequence of names each thread walks through.
+  private static final int SEQUENCE_LENGTH = 1 << 16;
+  private static final long OFF_HEAP_BYTES = 256L << 20;
+
+  @Param({"1000", "100000"})
+  public int names;
+
+  @Param({"heap", "offheap"})
+  public String store;
+
+  // Percent of the operations that place an entry rather than look one up.
+  @Param({"0", "10"})
+  public int writePercent;
+
+  private DNSQuestion[] questions;
+  private DNSCacheEntry[] entries;
+  private int[] sequence;
+
+  //Each thread's place in the sequence, and in the cycle of 100 operations writes are spread over.
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next = ThreadLocalRandom.current().nextInt(SEQUENCE_LENGTH);
+    int percent;
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    DNSCache.setOffHeap(store.equals("offheap") ? OFF_HEAP_BYTES : 0, OFF_HEAP_BYTES / 4);
+    questions = new DNSQuestion[names];
+    entries = new DNSCacheEntry[names];
+    for (int i = 0; i < names; i++) {
+      byte[] query = DNSPacketCorpus.query("host" + i + ".example.com", DNSRecord.TYPE_A);
+      DNSMessage response = DNSMessage.decodeMessage(DNSPacketCorpus.answer(query));
+      entries[i] = DNSCacheEntry.fromMessage(response);
+      DNSCache.placeEntry(response.questions[0], entries[i]);
+      // Looked up by a question read from the query, as a client's would be.
+      questions[i] = DNSMessage.decodeMessage(query).questions[0];
+    }
+    sequence = DNSPacketCorpus.zipfIndexes(names, 1.0, SEQUENCE_LENGTH, 42);
+  }
+
+  @TearDown
+  public void tearDown() {
+    DNSCache.setOffHeap(0, 0);
+  }
+
+  private int next(final Cursor cursor) {
+    int ret = sequence[cursor.next];
+    cursor.next = (cursor.next + 1) & (SEQUENCE_LENGTH - 1);
+    return ret;
+  }
+
+  @Benchmark
+  public DNSCacheEntry getOrPlace(final Cursor cursor) {
+    int i = next(cursor);
+    // Steps through every percent in a scattered order, so the writes are spread out.
+    cursor.percent = (cursor.percent + 37) % 100;
+    if (cursor.percent < writePercent) {
+      DNSCache.placeEntry(questions[i], entries[i]);
+      return entries[i];
+    }
+    return DNSCache.getEntry(questions[i]);
+  }
+}
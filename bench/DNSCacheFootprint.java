@@ -0,0 +1,150 @@
+package MSD;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+//Measures what a large cache costs the garbage collector, with its responses in the heap or off
+//it: the heap the filled cache retains, and the collector's pauses while entries are looked up
+//and replaced at full speed for a while. Pauses are taken from the collectors' notifications,
+//leaving out concurrent cycles that do not stop the application. Each store is measured in a
+//JVM of its own with the same heap settings, for example:
+//gradle footprint -Pargs="store=heap names=1000000"
+//gradle footprint -Pargs="store=offheap names=1000000"
+public class DNSCacheFootprint {
+  static final int DEFAULT_NAMES = 1_000_000;
+  static final int DEFAULT_DURATION_SECONDS = 20;
+  static final long DEFAULT_OFF_HEAP_MB = 512;
+  // Percent of the operations while churning that place a new response rather than look one up.
+  static final int WRITE_PERCENT = 10;
+  private static final double MB = 1 << 20;
+
+  // Pause durations in milliseconds, added by the collectors' notification threads.
+  private final List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+
+  public static void main(String[] args) throws Exception {
+    boolean offHeap = false;
+    int names = DEFAULT_NAMES;
+    int duration = DEFAULT_DURATION_SECONDS;
+    long offHeapMb = DEFAULT_OFF_HEAP_MB;
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals < 0)
+        throw new IllegalArgumentException("Expected name=value, got " + arg);
+      String value = arg.substring(equals + 1);
+      switch (arg.substring(0, equals)) {
+        case "store": offHeap = value.equals("offheap"); break;
+        case "names": names = Integer.parseInt(value); break;
+        case "duration": duration = Integer.parseInt(value); break;
+        case "offheapMb": offHeapMb = Long.parseLong(value); break;
+        default: throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    new DNSCacheFootprint().run(offHeap, names, duration, offHeapMb << 20);
+  }
+
+  private void run(final boolean offHeap, final int names, final int durationSeconds, final long offHeapBytes)
+      throws IOException, InterruptedException {
+    long before = usedHeapAfterGc();
+    long directBefore = directMemory();
+    if (offHeap)
+      DNSCache.setOffHeap(offHeapBytes, offHeapBytes / 4);
+    else
+      DNSCache.setCapacity(names);
+    for (int i = 0; i < names; i++)
+      place(i);
+    long retained = usedHeapAfterGc() - before;
+    long direct = directMemory() - directBefore;
+    System.out.printf(Locale.ROOT, "store=%s names=%d: %d entries cached%n", offHeap ? "offheap" : "heap", names,
+        DNSCache.size());
+    System.out.printf(Locale.ROOT, "Heap retained: %.1f MB (%d bytes per entry); direct memory: %.1f MB%n",
+        retained / MB, retained / Math.max(1, names), direct / MB);
+
+    listenForPauses();
+    SplittableRandom random = new SplittableRandom(42);
+    long operations = 0;
+    long end = System.nanoTime() + durationSeconds * 1_000_000_000L;
+    while (System.nanoTime() < end) {
+      for (int i = 0; i < 1000; i++) {
+        int name = random.nextInt(names);
+        if (random.nextInt(100) < WRITE_PERCENT)
+          place(name);
+        else
+          DNSCache.getEntry(DNSMessage.decodeMessage(query(name)).questions[0]);
+      }
+      operations += 1000;
+    }
+    // Notifications arrive on their own thread, a little after the pause.
+    Thread.sleep(500);
+    System.out.printf(Locale.ROOT, "Churned for %d s: %d operations (%.0f/s), %d%% writes%n", durationSeconds,
+        operations, (double) operations / durationSeconds, WRITE_PERCENT);
+    List<Long> sorted;
+    synchronized (pauses) {
+      sorted = new ArrayList<>(pauses);
+    }
+    Collections.sort(sorted);
+    long total = 0;
+    for (long pause : sorted)
+      total += pause;
+    System.out.printf(Locale.ROOT, "GC pauses: %d, total %d ms, p50 %d ms, p99 %d ms, max %d ms%n", sorted.size(),
+        total, percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 1.0));
+  }
+
+  /**
+   * Caches a fresh response to the query for a name, replacing any already cached.
+   */
+  private static void place(final int name) throws IOException {
+    DNSMessage response = DNSMessage.decodeMessage(DNSPacketCorpus.answer(query(name)));
+    DNSCache.placeEntry(response.questions[0], DNSCacheEntry.fromMessage(response));
+  }
+
+  private static byte[] query(final int name) {
+    return DNSPacketCorpus.query("host" + name + ".example.com", DNSRecord.TYPE_A);
+  }
+
+  private void listenForPauses() {
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      String name = collector.getName();
+      if (name.contains("Concurrent") || name.contains("Cycles"))
+        continue;
+      ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+          return;
+        GarbageCollectionNotificationInfo info =
+            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        pauses.add(info.getGcInfo().getDuration());
+      }, null, null);
+    }
+  }
+
+  private static long percentile(final List<Long> sorted, final double quantile) {
+    if (sorted.isEmpty())
+      return 0;
+    return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(quantile * sorted.size()) - 1));
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long directMemory() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct"))
+        return pool.getMemoryUsed();
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,63 @@
+package MSD;
+
+import java.util.Locale;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+//Runs DNSCacheBenchmark's mixed lookups and writes at a range of thread counts, one JMH run
+//each, and reports the throughput at each count against that of the first, one thread by
+//default. A cache that scales keeps the speedup near the thread count until the cores run out.
+public class DNSCacheScaling {
+  static final int[] DEFAULT_THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  public static void main(String[] args) throws RunnerException {
+    int[] threads = DEFAULT_THREADS;
+    String store = "heap";
+    String names = "100000";
+    String writePercent = "10";
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals < 0)
+        throw new IllegalArgumentException("Expected name=value, got " + arg);
+      String value = arg.substring(equals + 1);
+      switch (arg.substring(0, equals)) {
+        case "threads": threads = parseThreads(value); break;
+        case "store": store = value; break;
+        case "names": names = value; break;
+        case "writePercent": writePercent = value; break;
+        default: throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    System.out.printf(Locale.ROOT, "store=%s names=%s writePercent=%s, %d cores%n", store, names, writePercent,
+        Runtime.getRuntime().availableProcessors());
+    System.out.println("threads     ops/us   speedup");
+    double first = 0;
+    for (int count : threads) {
+      Options options = new OptionsBuilder()
+          .include(DNSCacheBenchmark.class.getName() + ".getOrPlace")
+          .param("store", store)
+          .param("names", names)
+          .param("writePercent", writePercent)
+          .threads(count)
+          .verbosity(VerboseMode.SILENT)
+          .build();
+      RunResult result = new Runner(options).runSingle();
+      double score = result.getPrimaryResult().getScore();
+      if (first == 0)
+        first = score;
+      System.out.printf(Locale.ROOT, "%7d %10.1f %9.2f%n", count, score, score / first);
+    }
+  }
+
+  private static int[] parseThreads(final String list) {
+    String[] parts = list.split(",");
+    int[] ret = new int[parts.length];
+    for (int i = 0; i < parts.length; i++)
+      ret[i] = Integer.parseInt(parts[i].trim());
+    return ret;
+  }
+}
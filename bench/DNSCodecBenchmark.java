@@ -0,0 +1,97 @@
+package MSD;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Decoding and encoding messages, and writing names with and without compression, over each
+//packet of the corpus. At the end of a run the wire size of the packet's names with and without
+//compression is printed, for the bytes compression saves alongside what it costs.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DNSCodecBenchmark {
+  @Param({"A_QUERY", "AAAA_QUERY", "MX_QUERY", "TXT_QUERY", "A_RESPONSE", "AAAA_RESPONSE", "MX_RESPONSE",
+      "TXT_RESPONSE", "NXDOMAIN_RESPONSE"})
+  public String packet;
+
+  private byte[] bytes;
+  private DNSMessage message;
+  private final DNSOutputBuffer os = new DNSOutputBuffer();
+  private final DNSCompressionTable compression = new DNSCompressionTable();
+  // Where each name of the packet starts: the question's, then every record owner's.
+  private int[] nameOffsets;
+
+  @Setup
+  public void setUp() throws IOException {
+    bytes = DNSPacketCorpus.packet(packet);
+    message = DNSMessage.decodeMessage(bytes);
+    DNSRecord[][] sections = {message.answers, message.authorityRecords, message.additionalRecords};
+    int count = message.questions.length;
+    for (DNSRecord[] section : sections)
+      count += section.length;
+    nameOffsets = new int[count];
+    int i = 0;
+    for (DNSQuestion question : message.questions)
+      nameOffsets[i++] = question.nameOffset;
+    for (DNSRecord[] section : sections) {
+      for (DNSRecord record : section)
+        nameOffsets[i++] = record.nameOffset;
+    }
+  }
+
+  @Benchmark
+  public DNSMessage decode() throws IOException {
+    return DNSMessage.decodeMessage(bytes);
+  }
+
+  @Benchmark
+  public byte[] toBytes() {
+    return message.toBytes();
+  }
+
+  @Benchmark
+  public int writeDomainName() {
+    os.reset();
+    compression.reset(0);
+    os.writeBytes(bytes, 0, DNSHeader.HEADER_LENGTH);
+    for (int offset : nameOffsets)
+      DNSMessage.writeDomainName(os, compression, bytes, offset);
+    return os.size();
+  }
+
+  @Benchmark
+  public int writeDomainNameUncompressed() {
+    os.reset();
+    os.writeBytes(bytes, 0, DNSHeader.HEADER_LENGTH);
+    for (int offset : nameOffsets)
+      DNSMessage.writeDomainName(os, null, bytes, offset);
+    return os.size();
+  }
+
+  /**
+   * Prints the size of the header and names the two name benchmarks write.
+   */
+  @TearDown
+  public void printWireSizes() {
+    int compressed = writeDomainName();
+    int uncompressed = writeDomainNameUncompressed();
+    System.out.printf(Locale.ROOT, "%n%s header and names: %d bytes compressed, %d uncompressed (%.1f%% saved)%n",
+        packet, compressed, uncompressed, 100.0 * (uncompressed - compressed) / uncompressed);
+  }
+}
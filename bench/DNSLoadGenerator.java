@@ -0,0 +1,404 @@
+package MSD;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Drives a DNS server at a fixed query rate and reports the rate it answered at, its latency
+//percentiles and the queries it lost, in the manner of dnsperf. Queries are sent on a schedule
+//that does not wait for replies, and each reply's latency is measured from when its query was
+//due to be sent rather than when it was, so a stalled server or sender shows up in the
+//percentiles instead of slowing the load down (coordinated omission).
+public class DNSLoadGenerator {
+  static final InetSocketAddress DEFAULT_TARGET = new InetSocketAddress("127.0.0.1", DNSServer.PORT);
+  static final int DEFAULT_QPS = 10_000;
+  static final int DEFAULT_DURATION_SECONDS = 10;
+  // Sockets for UDP, or connections for TCP; each has its own 65536 query IDs.
+  static final int DEFAULT_CONNECTIONS = 8;
+  // Replies later than this count as lost.
+  static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+  // Length of the drawn sequence of Zipf names, replayed in a loop.
+  static final int ZIPF_SEQUENCE_LENGTH = 1 << 20;
+  // The percentiles reported.
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+  private static final int IDS = 1 << 16;
+
+  //Where the queries come from. The returned buffer may be changed and sent by the caller
+  //before the next call.
+  interface QuerySource {
+    byte[] next();
+  }
+
+  //A socket or connection to the server.
+  private abstract static class Connection implements Closeable {
+    abstract void send(byte[] query) throws IOException;
+
+    /**
+     * @return The next reply, in a buffer reused by the following call.
+     */
+    abstract ByteBuffer receive() throws IOException;
+  }
+
+  private static final class UdpConnection extends Connection {
+    private final DatagramChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(DNSServer.MAX_UDP_PAYLOAD);
+
+    UdpConnection(final InetSocketAddress target) throws IOException {
+      channel = DatagramChannel.open().connect(target);
+    }
+
+    @Override
+    void send(final byte[] query) throws IOException {
+      channel.write(ByteBuffer.wrap(query));
+    }
+
+    @Override
+    ByteBuffer receive() throws IOException {
+      in.clear();
+      channel.read(in);
+      return in.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static final class TcpConnection extends Connection {
+    private final SocketChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocate(2 + DNSServer.MAX_TCP_MESSAGE);
+    private final ByteBuffer length = ByteBuffer.allocate(2);
+    private final ByteBuffer in = ByteBuffer.allocate(DNSServer.MAX_TCP_MESSAGE);
+
+    TcpConnection(final InetSocketAddress target) throws IOException {
+      channel = SocketChannel.open(target);
+      channel.socket().setTcpNoDelay(true);
+    }
+
+    @Override
+    void send(final byte[] query) throws IOException {
+      out.clear();
+      out.putShort((short) query.length).put(query).flip();
+      while (out.hasRemaining())
+        channel.write(out);
+    }
+
+    @Override
+    ByteBuffer receive() throws IOException {
+      length.clear();
+      readFully(length);
+      in.clear().limit(Short.toUnsignedInt(length.getShort(0)));
+      readFully(in);
+      return in.flip();
+    }
+
+    private void readFully(final ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0)
+          throw new ClosedChannelException();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private final InetSocketAddress target;
+  private final boolean tcp;
+  private final int qps;
+  private final int durationSeconds;
+  private final long timeoutNanos;
+  private final QuerySource source;
+  private final Connection[] connections;
+  // When each outstanding query was due to be sent, by connection and ID; 0 once answered.
+  private final AtomicLongArray dueAt;
+  private final DNSHistogram latency = new DNSHistogram();
+  private final LongAdder answered = new LongAdder();
+  private final LongAdder late = new LongAdder();
+  private final AtomicLongArray rCodes = new AtomicLongArray(16);
+  private final LongAdder errors = new LongAdder();
+  private long sent;
+
+  /**
+   * @param target - The server.
+   * @param tcp - True to send over TCP connections, pipelining queries, instead of UDP.
+   * @param connections - The number of sockets or connections the queries are spread over.
+   * @param qps - The queries sent per second.
+   * @param durationSeconds - How long queries are sent for.
+   * @param timeoutMillis - How long a reply may take before its query counts as lost.
+   * @param source - The queries.
+   * @throws IOException If the connections cannot be opened.
+   */
+  DNSLoadGenerator(final InetSocketAddress target, final boolean tcp, final int connections, final int qps,
+      final int durationSeconds, final long timeoutMillis, final QuerySource source) throws IOException {
+    this.target = target;
+    this.tcp = tcp;
+    this.qps = qps;
+    this.durationSeconds = durationSeconds;
+    this.timeoutNanos = timeoutMillis * 1_000_000;
+    this.source = source;
+    this.connections = new Connection[connections];
+    for (int i = 0; i < connections; i++)
+      this.connections[i] = tcp ? new TcpConnection(target) : new UdpConnection(target);
+    dueAt = new AtomicLongArray(connections * IDS);
+  }
+
+  /**
+   * Sends the load, waits out the last replies, and prints the results.
+   * @throws InterruptedException
+   */
+  void run() throws InterruptedException, IOException {
+    List<Thread> receivers = new ArrayList<>();
+    for (int i = 0; i < connections.length; i++) {
+      int index = i;
+      Thread receiver = new Thread(() -> receive(index), "dns-load-receiver-" + i);
+      receiver.setDaemon(true);
+      receiver.start();
+      receivers.add(receiver);
+    }
+    System.out.println("Sending " + qps + " queries/s over " + connections.length + (tcp ? " TCP connections" :
+        " UDP sockets") + " to " + target + " for " + durationSeconds + " s");
+    long start = System.nanoTime();
+    send(start);
+    long sendNanos = System.nanoTime() - start;
+    Thread.sleep(timeoutNanos / 1_000_000);
+    for (Connection connection : connections)
+      connection.close();
+    for (Thread receiver : receivers)
+      receiver.join(1000);
+    report(sendNanos);
+  }
+
+  /**
+   * Sends every query at its due time, catching up at once on any that are overdue.
+   */
+  private void send(final long start) {
+    long total = (long) qps * durationSeconds;
+    double intervalNanos = 1e9 / qps;
+    int[] nextId = new int[connections.length];
+    long nextReport = start + 1_000_000_000L;
+    while (sent < total) {
+      long now = System.nanoTime();
+      long due = Math.min(total, (long) ((now - start) / intervalNanos) + 1);
+      if (sent >= due) {
+        LockSupport.parkNanos((long) ((sent - due + 1) * intervalNanos));
+        continue;
+      }
+      for (; sent < due; sent++) {
+        int index = (int) (sent % connections.length);
+        int id = nextId[index]++ & (IDS - 1);
+        byte[] query = source.next();
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+        // Never 0, which marks an answered slot.
+        dueAt.set(index * IDS + id, start + (long) (sent * intervalNanos) | 1);
+        try {
+          connections[index].send(query);
+        } catch (IOException e) {
+          errors.increment();
+        }
+      }
+      if (now >= nextReport) {
+        System.out.printf(Locale.ROOT, "%3d s: sent %d, answered %d%n", (now - start) / 1_000_000_000L, sent,
+            answered.sum());
+        nextReport += 1_000_000_000L;
+      }
+    }
+  }
+
+  private void receive(final int index) {
+    Connection connection = connections[index];
+    while (true) {
+      ByteBuffer reply;
+      try {
+        reply = connection.receive();
+      } catch (PortUnreachableException e) {
+        errors.increment();
+        continue;
+      } catch (IOException e) {
+        return;
+      }
+      long now = System.nanoTime();
+      if (reply.remaining() < DNSHeader.HEADER_LENGTH)
+        continue;
+      int id = Short.toUnsignedInt(reply.getShort(0));
+      long due = dueAt.getAndSet(index * IDS + id, 0);
+      if (due == 0)
+        continue;
+      if (now - due > timeoutNanos) {
+        late.increment();
+        continue;
+      }
+      latency.record(now - due);
+      answered.increment();
+      rCodes.incrementAndGet(reply.get(3) & 0xF);
+    }
+  }
+
+  private void report(final long sendNanos) {
+    long answeredCount = answered.sum();
+    long lost = sent - answeredCount;
+    double seconds = sendNanos / 1e9;
+    System.out.printf(Locale.ROOT, "Sent %d queries in %.2f s (%.0f/s), answered %d (%.0f/s)%n", sent, seconds,
+        sent / seconds, answeredCount, answeredCount / seconds);
+    System.out.printf(Locale.ROOT, "Lost %d (%.3f%%), of which %d answered after %d ms; %d send errors%n", lost,
+        sent == 0 ? 0 : 100.0 * lost / sent, late.sum(), timeoutNanos / 1_000_000, errors.sum());
+    StringBuilder codes = new StringBuilder("Response codes:");
+    for (int i = 0; i < 16; i++) {
+      if (rCodes.get(i) != 0)
+        codes.append(' ').append(i).append('=').append(rCodes.get(i));
+    }
+    System.out.println(codes);
+    long[] micros = latency.quantiles(QUANTILES);
+    System.out.printf(Locale.ROOT, "Latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+        micros[0] / 1e3, micros[1] / 1e3, micros[2] / 1e3, micros[3] / 1e3, micros[4] / 1e3);
+  }
+
+  /**
+   * Replays the queries of a file in a loop, one per line as a name and optionally a type, as
+   * dnsperf reads them. Blank lines and lines starting with # or ; are skipped.
+   */
+  static QuerySource fileSource(final String file) throws IOException {
+    List<byte[]> queries = new ArrayList<>();
+    for (String line : Files.readAllLines(Paths.get(file))) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields[0].isEmpty() || fields[0].startsWith("#") || fields[0].startsWith(";"))
+        continue;
+      queries.add(DNSPacketCorpus.query(trimDot(fields[0]), fields.length > 1 ? type(fields[1]) : DNSRecord.TYPE_A));
+    }
+    if (queries.isEmpty())
+      throw new IOException("No queries in " + file);
+    byte[][] all = queries.toArray(new byte[0][]);
+    int[] next = new int[1];
+    return () -> all[next[0]++ % all.length];
+  }
+
+  /**
+   * Asks about a set of names with the skew of real traffic, a few of them taking most queries.
+   * @param names - The number of distinct names, n0.domain to n(names - 1).domain.
+   * @param exponent - The Zipf exponent.
+   * @param domain - The domain the names are under.
+   * @param type - The type asked for.
+   */
+  static QuerySource zipfSource(final int names, final double exponent, final String domain, final int type) {
+    byte[][] queries = new byte[names][];
+    for (int i = 0; i < names; i++)
+      queries[i] = DNSPacketCorpus.query("n" + i + "." + domain, type);
+    int[] sequence = DNSPacketCorpus.zipfIndexes(names, exponent, ZIPF_SEQUENCE_LENGTH, 1);
+    int[] next = new int[1];
+    return () -> queries[sequence[next[0]++ & (ZIPF_SEQUENCE_LENGTH - 1)]];
+  }
+
+  /**
+   * Asks about a new name every time, so every query misses the cache. Names start from a
+   * random number, so a second run misses too.
+   */
+  static QuerySource uniqueSource(final String domain, final int type) {
+    byte[] query = DNSPacketCorpus.query("u0000000000." + domain, type);
+    long[] next = {ThreadLocalRandom.current().nextLong(1_000_000_000L)};
+    return () -> {
+      long number = next[0]++;
+      // The ten digits after the header, the label's length byte and the u.
+      for (int i = DNSHeader.HEADER_LENGTH + 11; i > DNSHeader.HEADER_LENGTH + 1; i--, number /= 10)
+        query[i] = (byte) ('0' + number % 10);
+      return query;
+    };
+  }
+
+  private static String trimDot(final String name) {
+    return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  private static int type(final String text) {
+    switch (text.toUpperCase(Locale.ROOT)) {
+      case "A": return DNSRecord.TYPE_A;
+      case "NS": return DNSRecord.TYPE_NS;
+      case "CNAME": return DNSRecord.TYPE_CNAME;
+      case "SOA": return DNSRecord.TYPE_SOA;
+      case "PTR": return DNSRecord.TYPE_PTR;
+      case "MX": return DNSRecord.TYPE_MX;
+      case "TXT": return DNSZoneParser.TYPE_TXT;
+      case "AAAA": return DNSZone.TYPE_AAAA;
+      case "SRV": return DNSRecord.TYPE_SRV;
+      case "ANY": return DNSZone.TYPE_ANY;
+      default:
+        if (text.toUpperCase(Locale.ROOT).startsWith("TYPE"))
+          return Integer.parseInt(text.substring(4));
+        throw new IllegalArgumentException("Unknown record type " + text);
+    }
+  }
+
+  /**
+   * Runs a load test.
+   * @param args - Options as name=value, all optional:
+   * target=host:port of the server, 127.0.0.1:8053 by default;
+   * proto=udp or tcp;
+   * qps=queries per second; duration=seconds;
+   * connections=the number of UDP sockets or TCP connections;
+   * timeout=milliseconds after which a query counts as lost;
+   * queries=file:path to replay a query file, zipf:names[:exponent] for Zipf distributed names
+   * (zipf:10000 by default), or unique for a new name every query;
+   * domain=the domain generated names are under; type=the type they are asked with.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    InetSocketAddress target = DEFAULT_TARGET;
+    boolean tcp = false;
+    int qps = DEFAULT_QPS;
+    int duration = DEFAULT_DURATION_SECONDS;
+    int connections = DEFAULT_CONNECTIONS;
+    long timeout = DEFAULT_TIMEOUT_MILLIS;
+    String queries = "zipf:10000";
+    String domain = "load.test";
+    int type = DNSRecord.TYPE_A;
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals < 0)
+        throw new IllegalArgumentException("Expected name=value, got " + arg);
+      String value = arg.substring(equals + 1);
+      switch (arg.substring(0, equals)) {
+        case "target": target = DNSUpstreams.parse(value).get(0); break;
+        case "proto": tcp = value.equalsIgnoreCase("tcp"); break;
+        case "qps": qps = Integer.parseInt(value); break;
+        case "duration": duration = Integer.parseInt(value); break;
+        case "connections": connections = Integer.parseInt(value); break;
+        case "timeout": timeout = Long.parseLong(value); break;
+        case "queries": queries = value; break;
+        case "domain": domain = trimDot(value); break;
+        case "type": type = type(value); break;
+        default: throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    QuerySource source;
+    if (queries.startsWith("file:")) {
+      source = fileSource(queries.substring("file:".length()));
+    } else if (queries.startsWith("zipf:")) {
+      String[] parts = queries.split(":");
+      source = zipfSource(Integer.parseInt(parts[1]), parts.length > 2 ? Double.parseDouble(parts[2]) : 1.0, domain,
+          type);
+    } else if (queries.equals("unique")) {
+      source = uniqueSource(domain, type);
+    } else {
+      throw new IllegalArgumentException("Unknown query source " + queries);
+    }
+    new DNSLoadGenerator(target, tcp, connections, qps, duration, timeout, source).run();
+  }
+}
@@ -0,0 +1,78 @@
+package MSD;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//What the instrumentation adds to each query: timing a stage into its histogram, counting the
+//query and the reply, and checking whether to log it, next to the message rendering every
+//packet used to be printed with. Run with -t for the cost when threads share the counters.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DNSMetricsBenchmark {
+  private final DNSHistogram histogram = new DNSHistogram();
+  private DNSMessage query;
+  private byte[] reply;
+
+  @Setup
+  public void setUp() throws IOException {
+    query = DNSMessage.decodeMessage(DNSPacketCorpus.packet("A_QUERY"));
+    reply = DNSPacketCorpus.packet("A_RESPONSE");
+    DNSLog.setSampleRate(0);
+  }
+
+  /**
+   * The clock reads of a stage left untimed, for the cost timing adds on top.
+   */
+  @Benchmark
+  public long clockOnly() {
+    long start = System.nanoTime();
+    return System.nanoTime() - start;
+  }
+
+  @Benchmark
+  public void timeStage() {
+    long start = System.nanoTime();
+    histogram.recordSince(start);
+  }
+
+  @Benchmark
+  public void countQuery() {
+    DNSMetrics.onQuery(query);
+  }
+
+  @Benchmark
+  public void countReply() {
+    DNSMetrics.onReply(reply);
+  }
+
+  /**
+   * The check made for every packet while logging is sampled at 0.
+   */
+  @Benchmark
+  public boolean logCheck() {
+    return DNSLog.sampled();
+  }
+
+  /**
+   * The text every packet was rendered to for printing before logging was sampled, without
+   * the cost of the console itself.
+   */
+  @Benchmark
+  public String renderMessage() {
+    return query.toString();
+  }
+}
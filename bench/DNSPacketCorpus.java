@@ -0,0 +1,245 @@
+package MSD;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+//Wire format packets shaped like real traffic for the benchmarks: EDNS(0) queries for the
+//common record types, and the responses public resolvers give them, compressed the way
+//authoritative servers compress them.
+public class DNSPacketCorpus {
+  // The packets, by the name the benchmarks' @Param values use.
+  static final String[] QUERIES = {"A_QUERY", "AAAA_QUERY", "MX_QUERY", "TXT_QUERY"};
+  static final String[] RESPONSES = {"A_RESPONSE", "AAAA_RESPONSE", "MX_RESPONSE", "TXT_RESPONSE", "NXDOMAIN_RESPONSE"};
+
+  private static final int TYPE_TXT = 16;
+  private static final int TYPE_AAAA = 28;
+  private static final int FLAGS_QUERY = 0x0100;
+  private static final int FLAGS_RESPONSE = 0x8180;
+  private static final int FLAGS_NXDOMAIN = 0x8183;
+  private static final int EDNS_PAYLOAD = 1232;
+
+  //Writes one message, compressing names against those already written.
+  private static final class Writer {
+    final DNSOutputBuffer os = new DNSOutputBuffer();
+    final Map<String, Integer> names = new HashMap<>();
+    // The index of the open record's RDLENGTH.
+    int rdLengthAt;
+
+    Writer(final int flags, final int questions, final int answers, final int authority, final int additional) {
+      os.writeShort(0x2a5c);
+      os.writeShort(flags);
+      os.writeShort(questions);
+      os.writeShort(answers);
+      os.writeShort(authority);
+      os.writeShort(additional);
+    }
+
+    Writer name(final String name) {
+      String rest = name;
+      while (!rest.isEmpty()) {
+        Integer at = names.get(rest);
+        if (at != null) {
+          os.writeShort(0xC000 | at);
+          return this;
+        }
+        names.put(rest, os.size());
+        int dot = rest.indexOf('.');
+        String label = dot < 0 ? rest : rest.substring(0, dot);
+        text(label);
+        rest = dot < 0 ? "" : rest.substring(dot + 1);
+      }
+      os.writeByte(0);
+      return this;
+    }
+
+    Writer question(final String name, final int type) {
+      name(name);
+      os.writeShort(type);
+      os.writeShort(DNSRecord.CLASS_IN);
+      return this;
+    }
+
+    /**
+     * Starts a record. Its RDATA is written next and closed by end().
+     */
+    Writer record(final String name, final int type, final int ttl) {
+      name(name);
+      os.writeShort(type);
+      os.writeShort(DNSRecord.CLASS_IN);
+      os.writeInt(ttl);
+      rdLengthAt = os.size();
+      os.writeShort(0);
+      return this;
+    }
+
+    Writer end() {
+      os.setShort(rdLengthAt, os.size() - rdLengthAt - 2);
+      return this;
+    }
+
+    Writer bytes(final int... values) {
+      for (int value : values)
+        os.writeByte(value);
+      return this;
+    }
+
+    Writer shortValue(final int value) {
+      os.writeShort(value);
+      return this;
+    }
+
+    Writer intValue(final int value) {
+      os.writeInt(value);
+      return this;
+    }
+
+    Writer text(final String text) {
+      byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+      os.writeByte(bytes.length);
+      os.writeBytes(bytes, 0, bytes.length);
+      return this;
+    }
+
+    Writer opt() {
+      os.writeByte(0);
+      os.writeShort(DNSRecord.TYPE_OPT);
+      os.writeShort(EDNS_PAYLOAD);
+      os.writeInt(0);
+      os.writeShort(0);
+      return this;
+    }
+
+    byte[] bytes() {
+      return os.toByteArray();
+    }
+  }
+
+  /**
+   * @param kind - One of QUERIES or RESPONSES.
+   * @return A new copy of the packet.
+   */
+  static byte[] packet(final String kind) {
+    switch (kind) {
+      case "A_QUERY": return query("www.example.com", DNSRecord.TYPE_A);
+      case "AAAA_QUERY": return query("www.google.com", TYPE_AAAA);
+      case "MX_QUERY": return query("gmail.com", DNSRecord.TYPE_MX);
+      case "TXT_QUERY": return query("example.org", TYPE_TXT);
+      case "A_RESPONSE": return aResponse();
+      case "AAAA_RESPONSE": return aaaaResponse();
+      case "MX_RESPONSE": return mxResponse();
+      case "TXT_RESPONSE": return txtResponse();
+      case "NXDOMAIN_RESPONSE": return nxdomainResponse();
+      default: throw new IllegalArgumentException("No packet " + kind);
+    }
+  }
+
+  /**
+   * @param name - The name asked about, dotted and without the trailing dot.
+   * @param type - The type asked for.
+   * @return A recursive query with an EDNS(0) OPT record, as stub resolvers send.
+   */
+  static byte[] query(final String name, final int type) {
+    return new Writer(FLAGS_QUERY, 1, 0, 0, 1).question(name, type).opt().bytes();
+  }
+
+  // A CDN-hosted name: a CNAME chain ending in four addresses.
+  private static byte[] aResponse() {
+    Writer w = new Writer(FLAGS_RESPONSE, 1, 6, 0, 1).question("www.example.com", DNSRecord.TYPE_A);
+    w.record("www.example.com", DNSRecord.TYPE_CNAME, 300).name("www.example.com.edgekey.net").end();
+    w.record("www.example.com.edgekey.net", DNSRecord.TYPE_CNAME, 21600).name("e1234.a.akamaiedge.net").end();
+    for (int i = 0; i < 4; i++)
+      w.record("e1234.a.akamaiedge.net", DNSRecord.TYPE_A, 20).bytes(23, 215, 0, 136 + i).end();
+    return w.opt().bytes();
+  }
+
+  private static byte[] aaaaResponse() {
+    Writer w = new Writer(FLAGS_RESPONSE, 1, 2, 0, 1).question("www.google.com", TYPE_AAAA);
+    for (int i = 0; i < 2; i++)
+      w.record("www.google.com", TYPE_AAAA, 300).bytes(0x2a, 0x00, 0x14, 0x50, 0x40, 0x01, 0x08, 0x2f,
+          0, 0, 0, 0, 0, 0, 0x20, 0x04 + i).end();
+    return w.opt().bytes();
+  }
+
+  // Five exchangers, with the addresses of each in the additional section.
+  private static byte[] mxResponse() {
+    Writer w = new Writer(FLAGS_RESPONSE, 1, 5, 0, 6).question("gmail.com", DNSRecord.TYPE_MX);
+    String[] exchangers = {"gmail-smtp-in.l.google.com", "alt1.gmail-smtp-in.l.google.com",
+        "alt2.gmail-smtp-in.l.google.com", "alt3.gmail-smtp-in.l.google.com", "alt4.gmail-smtp-in.l.google.com"};
+    for (int i = 0; i < exchangers.length; i++)
+      w.record("gmail.com", DNSRecord.TYPE_MX, 3600).shortValue(5 + 5 * i).name(exchangers[i]).end();
+    for (int i = 0; i < exchangers.length; i++)
+      w.record(exchangers[i], DNSRecord.TYPE_A, 300).bytes(142, 250, 27, 26 + i).end();
+    return w.opt().bytes();
+  }
+
+  // SPF and site verification strings, as most apex TXT sets hold.
+  private static byte[] txtResponse() {
+    Writer w = new Writer(FLAGS_RESPONSE, 1, 3, 0, 1).question("example.org", TYPE_TXT);
+    w.record("example.org", TYPE_TXT, 3600).text("v=spf1 include:_spf.google.com include:mailgun.org ~all").end();
+    w.record("example.org", TYPE_TXT, 3600)
+        .text("google-site-verification=6P08Ow5E-8Q0m6vQ7FMAqAYIDprkVV8fUf_7hZ4Qvc8").end();
+    w.record("example.org", TYPE_TXT, 3600).text("MS=ms12345678").end();
+    return w.opt().bytes();
+  }
+
+  private static byte[] nxdomainResponse() {
+    Writer w = new Writer(FLAGS_NXDOMAIN, 1, 0, 1, 1).question("nothere.example.com", DNSRecord.TYPE_A);
+    w.record("example.com", DNSRecord.TYPE_SOA, 3600).name("ns.icann.org").name("noc.dns.icann.org")
+        .intValue(2024081466).intValue(7200).intValue(3600).intValue(1209600).intValue(3600).end();
+    return w.opt().bytes();
+  }
+
+  /**
+   * Draws indexes with the skew of real query names, where a few names take most queries:
+   * index i is drawn in proportion to 1 / (i + 1)^exponent.
+   * @param keys - The number of distinct indexes.
+   * @param exponent - The Zipf exponent; about 1 for resolver traffic.
+   * @param length - The number of indexes drawn.
+   * @param seed - The random seed, so every run draws the same sequence.
+   * @return The indexes drawn.
+   */
+  static int[] zipfIndexes(final int keys, final double exponent, final int length, final long seed) {
+    double[] cumulative = new double[keys];
+    double total = 0;
+    for (int i = 0; i < keys; i++) {
+      total += 1 / Math.pow(i + 1, exponent);
+      cumulative[i] = total;
+    }
+    SplittableRandom random = new SplittableRandom(seed);
+    int[] ret = new int[length];
+    for (int i = 0; i < length; i++) {
+      int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+      ret[i] = Math.min(keys - 1, index < 0 ? -index - 1 : index);
+    }
+    return ret;
+  }
+
+  /**
+   * Creates a positive response to a query, of two addresses, as a stub upstream gives.
+   * @param query - The query.
+   * @return The response, with the query's ID and question.
+   */
+  static byte[] answer(final byte[] query) {
+    int questionEnd = DNSMessage.skipName(query, DNSHeader.HEADER_LENGTH) + 4;
+    DNSOutputBuffer os = new DNSOutputBuffer();
+    os.writeBytes(query, 0, 2);
+    os.writeShort(FLAGS_RESPONSE);
+    os.writeShort(1);
+    os.writeShort(2);
+    os.writeShort(0);
+    os.writeShort(0);
+    os.writeBytes(query, DNSHeader.HEADER_LENGTH, questionEnd - DNSHeader.HEADER_LENGTH);
+    for (int i = 0; i < 2; i++) {
+      os.writeShort(0xC000 | DNSHeader.HEADER_LENGTH);
+      os.writeShort(DNSRecord.TYPE_A);
+      os.writeShort(DNSRecord.CLASS_IN);
+      os.writeInt(300);
+      os.writeShort(4);
+      os.writeInt(0x0A000001 + i);
+    }
+    return os.toByteArray();
+  }
+}
@@ -0,0 +1,114 @@
+package MSD;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//generateReply end to end: a hit answered from the cache, from a decoded query and from the
+//packet, and a miss forwarded to a stub upstream on the loopback address, decoded, cached and
+//answered. Every miss asks a new name. The reply to a hit is also made both ways on its own:
+//replayed from the stored upstream bytes, and rebuilt from the cached records as it was before.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DNSReplyBenchmark {
+  // The queries answered from the cache, each by its response in the corpus.
+  @Param({"A_QUERY", "AAAA_QUERY", "MX_QUERY", "TXT_QUERY"})
+  public String query;
+
+  private DNSStubUpstream stub;
+  private DNSMessage hit;
+  private byte[] hitPacket;
+  private DNSCacheEntry hitEntry;
+  // A query whose first label is rewritten with a new number for every miss.
+  private byte[] missQuery;
+  private int missNumber;
+
+  @Setup
+  public void setUp() throws IOException {
+    stub = new DNSStubUpstream();
+    DNSServer.startResolving(2, List.of(stub.address()), 0);
+    hitPacket = DNSPacketCorpus.packet(query);
+    hit = DNSMessage.decodeMessage(hitPacket);
+    missQuery = DNSPacketCorpus.query("m0000000.example.net", DNSRecord.TYPE_A);
+  }
+
+  /**
+   * Caches the responses again, so short TTLs do not run out during a run.
+   */
+  @Setup(Level.Iteration)
+  public void cacheResponses() throws IOException {
+    for (String kind : DNSPacketCorpus.RESPONSES) {
+      DNSMessage response = DNSMessage.decodeMessage(DNSPacketCorpus.packet(kind));
+      DNSCache.placeEntry(response.questions[0], DNSCacheEntry.fromMessage(response));
+    }
+    hitEntry = DNSCache.peekEntry(hit.questions[0]);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    DNSServer.stopResolving();
+    stub.close();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public byte[] hit() throws IOException {
+    return DNSServer.generateReply(hit, DNSServer.MAX_UDP_PAYLOAD).join();
+  }
+
+  /**
+   * A hit from the packet received to the reply sent: decoding, the lookup and encoding.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public byte[] hitFromPacket() throws IOException {
+    return DNSServer.answerDatagram(hitPacket).join();
+  }
+
+  /**
+   * The reply to a hit replayed: the stored upstream bytes copied, with the ID, flags,
+   * question and TTLs patched.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public byte[] replay() {
+    return hitEntry.replay(hit, -1);
+  }
+
+  /**
+   * The reply to a hit rebuilt: a message made from the cached records and encoded with
+   * compression, the path taken when the stored bytes cannot be replayed.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public byte[] rebuild() {
+    return DNSMessage.buildResponse(hit, hitEntry, -1).toBytes();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[] miss() throws IOException {
+    byte[] bytes = missQuery.clone();
+    int number = missNumber++;
+    // The label starts after the header and its length byte.
+    for (int i = DNSHeader.HEADER_LENGTH + 8; i > DNSHeader.HEADER_LENGTH + 1; i--, number /= 10)
+      bytes[i] = (byte) ('0' + number % 10);
+    return DNSServer.generateReply(DNSMessage.decodeMessage(bytes), DNSServer.MAX_UDP_PAYLOAD).join();
+  }
+}
@@ -0,0 +1,101 @@
+package MSD;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//An upstream resolver on the loopback address that answers every query with two addresses,
+//at once or after a set delay, so cache misses can be measured without the network.
+public class DNSStubUpstream implements Closeable {
+  private final DatagramChannel channel;
+  private final long delayMicros;
+  // Sends the delayed answers; null when answering at once.
+  private final ScheduledExecutorService delayer;
+
+  /**
+   * Starts a stub that answers at once, on a free port.
+   * @throws IOException If the socket cannot be opened.
+   */
+  DNSStubUpstream() throws IOException {
+    this(0, 0);
+  }
+
+  /**
+   * Starts a stub.
+   * @param port - The loopback port to answer on, or 0 for a free one.
+   * @param delayMicros - How long each answer is held back, like a remote resolver's round trip.
+   * @throws IOException If the socket cannot be opened.
+   */
+  DNSStubUpstream(final int port, final long delayMicros) throws IOException {
+    this.delayMicros = delayMicros;
+    channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    delayer = delayMicros > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "dns-stub-upstream-delay");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+    Thread thread = new Thread(this::serve, "dns-stub-upstream");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  InetSocketAddress address() throws IOException {
+    return (InetSocketAddress) channel.getLocalAddress();
+  }
+
+  private void serve() {
+    ByteBuffer buffer = ByteBuffer.allocate(DNSServer.MAX_UDP_PAYLOAD);
+    try {
+      while (true) {
+        buffer.clear();
+        SocketAddress from = channel.receive(buffer);
+        byte[] answer = DNSPacketCorpus.answer(Arrays.copyOf(buffer.array(), buffer.position()));
+        if (delayer == null)
+          channel.send(ByteBuffer.wrap(answer), from);
+        else
+          delayer.schedule(() -> send(answer, from), delayMicros, TimeUnit.MICROSECONDS);
+      }
+    } catch (IOException e) {
+      // Closed.
+    }
+  }
+
+  private void send(final byte[] answer, final SocketAddress to) {
+    try {
+      channel.send(ByteBuffer.wrap(answer), to);
+    } catch (IOException e) {
+      // Closed, or the client is gone.
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    if (delayer != null)
+      delayer.shutdownNow();
+  }
+
+  /**
+   * Runs a stub until killed.
+   * @param args - The loopback port to answer on, and optionally the milliseconds each answer
+   * is held back, which may be fractional.
+   * @throws IOException If the socket cannot be opened.
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 5300;
+    long delayMicros = args.length > 1 ? Math.round(Double.parseDouble(args[1]) * 1000) : 0;
+    try (DNSStubUpstream stub = new DNSStubUpstream(port, delayMicros)) {
+      System.out.println("Stub upstream on " + stub.address() + " answering after " + delayMicros + " us");
+      Thread.currentThread().join();
+    }
+  }
+}
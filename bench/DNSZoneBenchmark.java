@@ -0,0 +1,77 @@
+package MSD;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Authoritative answers from a local zone of up to a million records, and parsing its master
+//file, which is what a reload costs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class DNSZoneBenchmark {
+  // Number of distinct queries answered in turn.
+  private static final int QUERIES = 4096;
+
+  @Param({"1000", "1000000"})
+  public int records;
+
+  private Path file;
+  private DNSMessage[] queries;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = Files.createTempFile("bench", ".zone");
+    try (BufferedWriter out = Files.newBufferedWriter(file)) {
+      out.write("$ORIGIN bench.example.\n$TTL 300\n");
+      out.write("@ IN SOA ns hostmaster 1 7200 3600 1209600 300\n@ IN NS ns\nns IN A 10.0.0.1\n");
+      for (int i = 0; i < records; i++)
+        out.write("h" + i + " IN A 10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + "\n");
+    }
+    DNSZones.load(file);
+    queries = new DNSMessage[QUERIES];
+    int[] indexes = DNSPacketCorpus.zipfIndexes(records, 1.0, QUERIES, 7);
+    for (int i = 0; i < QUERIES; i++) {
+      // One in eight asks a name the zone does not have.
+      String name = (i % 8 == 0 ? "missing" : "h") + indexes[i] + ".bench.example";
+      queries[i] = DNSMessage.decodeMessage(DNSPacketCorpus.query(name, DNSRecord.TYPE_A));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public byte[] answer() {
+    DNSMessage query = queries[next++ & (QUERIES - 1)];
+    return DNSZones.answer(query).toBytes();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5)
+  public DNSZone parse() throws IOException {
+    return DNSZoneParser.parse(file);
+  }
+}
@@ -1,26 +1,452 @@
 package MSD;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
-//A cache to store client requests and answers
+//A cache to store client requests and answers.
+//Accessed by every server worker thread, so the entries are split across independently locked
+//segments. Each segment evicts its least recently used entry once it is full. Every entry has a
+//timer in a timer wheel that removes it once its TTL has run out, so expired entries do not wait
+//for a lookup to find them. Expired entries are kept for a further stale window, so they can
+//still be served (RFC 8767) when upstream cannot answer.
+//Negative responses are kept in a second set of segments with a capacity of their own, so a
+//flood of misspelled or probing names cannot push the real answers out. A third set holds the
+//delegations the iterative resolver has learned: a zone's NS records and their glue.
+//Optionally the positive and negative responses are kept off the heap instead (DNSOffHeapStore).
 public class DNSCache {
-  private static HashMap<DNSQuestion, DNSRecord> cache = new HashMap<>();
+  // Default bound on the number of cached entries.
+  static final int DEFAULT_CAPACITY = 100_000;
+  // Default bound on the number of cached negative responses.
+  static final int DEFAULT_NEGATIVE_CAPACITY = 20_000;
+  // Default bound on the number of cached delegations.
+  static final int DEFAULT_DELEGATION_CAPACITY = 10_000;
+  // Number of independently locked segments, a power of two.
+  static final int SEGMENT_COUNT = 64;
+  // How often the sweeper looks for expired entries kept off the heap.
+  static final long SWEEP_INTERVAL_SECONDS = 10;
+  // The resolution of the expiry timers.
+  static final long EXPIRY_TICK_MILLIS = 1000;
+  // Default time expired entries are kept to be served stale.
+  static final long DEFAULT_STALE_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
 
-  static boolean contains (final DNSQuestion question){
-    if (cache.containsKey(question)){
-      if (cache.get(question).timestampValid())
-        return true;
-      else
-        cache.remove(question);
+  private static volatile Segment[] segments = newSegments(DEFAULT_CAPACITY);
+  private static volatile Segment[] negativeSegments = newSegments(DEFAULT_NEGATIVE_CAPACITY);
+  private static volatile Segment[] delegationSegments = newSegments(DEFAULT_DELEGATION_CAPACITY);
+  private static volatile long staleWindowMillis = DEFAULT_STALE_WINDOW_MILLIS;
+  // When set, positive and negative responses are kept off the heap instead of in segments.
+  private static volatile DNSOffHeapStore offHeap;
+  private static volatile DNSOffHeapStore negativeOffHeap;
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder negativeHits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static final LongAdder evictions = new LongAdder();
+  private static final LongAdder expirations = new LongAdder();
+  private static final DNSTimerWheel expiries = new DNSTimerWheel(EXPIRY_TICK_MILLIS, DNSClock.millis());
+
+  static {
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "dns-cache-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sweeper.scheduleWithFixedDelay(DNSCache::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    sweeper.scheduleAtFixedRate(() -> expiries.advance(DNSClock.millis()), EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  //Removes an entry from its segment once it may no longer be served.
+  private static final class Expiry extends DNSTimerWheel.Timer {
+    private final Segment segment;
+    private final DNSQuestion question;
+    private final DNSCacheEntry entry;
+
+    Expiry(final Segment segment, final DNSQuestion question, final DNSCacheEntry entry) {
+      this.segment = segment;
+      this.question = question;
+      this.entry = entry;
+    }
+
+    @Override
+    void expire() {
+      synchronized (segment) {
+        if (segment.remove(question, entry))
+          expirations.increment();
+      }
+    }
+  }
+
+  //One lock's worth of the cache, kept in least recently used order.
+  private static final class Segment extends LinkedHashMap<DNSQuestion, DNSCacheEntry> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    Segment(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
     }
-    return false;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<DNSQuestion, DNSCacheEntry> eldest) {
+      if (size() <= capacity)
+        return false;
+      evictions.increment();
+      cancelExpiry(eldest.getValue());
+      return true;
+    }
+  }
+
+  /**
+   * Sets the maximum number of entries the cache holds. Empties the cache.
+   * @param capacity - The maximum number of entries.
+   */
+  static void setCapacity(final int capacity) {
+    segments = replace(segments, newSegments(capacity));
+  }
+
+  /**
+   * Sets the maximum number of negative responses the cache holds. Empties them.
+   * @param capacity - The maximum number of negative responses.
+   */
+  static void setNegativeCapacity(final int capacity) {
+    negativeSegments = replace(negativeSegments, newSegments(capacity));
+  }
+
+  /**
+   * Sets the maximum number of delegations the cache holds. Empties them.
+   * @param capacity - The maximum number of delegations.
+   */
+  static void setDelegationCapacity(final int capacity) {
+    delegationSegments = replace(delegationSegments, newSegments(capacity));
+  }
+
+  /**
+   * Keeps positive and negative responses outside the Java heap, in a fixed amount of
+   * memory each, or back in the heap. Empties them.
+   * @param bytes - The memory for positive responses, or 0 to keep responses in the heap.
+   * @param negativeBytes - The memory for negative responses.
+   */
+  static void setOffHeap(final long bytes, final long negativeBytes) {
+    if (bytes <= 0) {
+      offHeap = null;
+      negativeOffHeap = null;
+      segments = replace(segments, newSegments(DEFAULT_CAPACITY));
+      negativeSegments = replace(negativeSegments, newSegments(DEFAULT_NEGATIVE_CAPACITY));
+      return;
+    }
+    negativeOffHeap = new DNSOffHeapStore(negativeBytes, evictions, expirations);
+    offHeap = new DNSOffHeapStore(bytes, evictions, expirations);
+    segments = replace(segments, newSegments(0));
+    negativeSegments = replace(negativeSegments, newSegments(0));
+  }
+
+  /**
+   * Sets how long expired entries are kept to be served stale. 0 turns serve-stale off.
+   * Entries already cached keep the window they were cached with.
+   * @param millis - The stale window in milliseconds.
+   */
+  static void setStaleWindow(final long millis) {
+    staleWindowMillis = millis;
+  }
+
+  /**
+   * Cancels the timers of a table's entries as it is replaced by an empty one.
+   * @return - The new table.
+   */
+  private static Segment[] replace(final Segment[] old, final Segment[] table) {
+    for (Segment segment : old) {
+      synchronized (segment) {
+        for (DNSCacheEntry entry : segment.values())
+          cancelExpiry(entry);
+      }
+    }
+    return table;
+  }
+
+  private static Segment[] newSegments(final int capacity) {
+    Segment[] ret = new Segment[SEGMENT_COUNT];
+    int perSegment = Math.max(1, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+    for (int i = 0; i < ret.length; i++)
+      ret[i] = new Segment(perSegment);
+    return ret;
+  }
+
+  /**
+   * Picks a question's segment from the top bits of its scrambled hash. The segment's map
+   * places entries by the low bits of the hash, which therefore must not be the same for
+   * every entry of the segment.
+   */
+  static int segmentIndex(final DNSQuestion question) {
+    return (question.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(SEGMENT_COUNT));
+  }
+
+  /**
+   * Looks up the cached response to a question, positive or negative.
+   * @param question - The client's question.
+   * @return The cached response sections, or null if there are none or they have expired.
+   */
+  static DNSCacheEntry getEntry (final DNSQuestion question){
+    int index = segmentIndex(question);
+    DNSOffHeapStore store = offHeap;
+    DNSCacheEntry entry = store != null ? store.getFresh(question, staleWindowMillis) :
+        getFresh(segments[index], question);
+    if (entry == null) {
+      entry = store != null ? negativeOffHeap.getFresh(question, staleWindowMillis) :
+          getFresh(negativeSegments[index], question);
+    }
+    if (entry == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+      if (entry.negative)
+        negativeHits.increment();
+    }
+    return entry;
+  }
+
+  /**
+   * Looks up an unexpired entry in one segment, removing it if it has also left the stale window.
+   */
+  private static DNSCacheEntry getFresh(final Segment segment, final DNSQuestion question) {
+    synchronized (segment) {
+      DNSCacheEntry entry = segment.get(question);
+      if (entry == null)
+        return null;
+      if (!entry.timestampValid()) {
+        if (!entry.usableStale(staleWindowMillis)) {
+          segment.remove(question);
+          cancelExpiry(entry);
+          expirations.increment();
+        }
+        return null;
+      }
+      entry.hits++;
+      return entry;
+    }
+  }
+
+  /**
+   * Looks up the cached positive response to a question for the server's own use. Does not
+   * count as a hit or a miss.
+   * @param question - The question.
+   * @return The cached response sections, or null if there are none or they have expired.
+   */
+  static DNSCacheEntry peekEntry (final DNSQuestion question){
+    DNSOffHeapStore store = offHeap;
+    if (store != null)
+      return store.peek(question);
+    Segment segment = segments[segmentIndex(question)];
+    synchronized (segment) {
+      DNSCacheEntry entry = segment.get(question);
+      return entry != null && entry.timestampValid() ? entry : null;
+    }
+  }
+
+  /**
+   * Looks up a zone's delegation.
+   * @param question - The zone's name, asking for its NS records.
+   * @return The NS records in the authority section and their glue in the additional
+   * section, or null if the zone's delegation is not known or has expired.
+   */
+  static DNSCacheEntry getDelegation (final DNSQuestion question){
+    Segment segment = delegationSegments[segmentIndex(question)];
+    synchronized (segment) {
+      DNSCacheEntry entry = segment.get(question);
+      if (entry != null && !entry.timestampValid()) {
+        segment.remove(question);
+        cancelExpiry(entry);
+        expirations.increment();
+        entry = null;
+      }
+      return entry;
+    }
+  }
+
+  static void placeDelegation (final DNSQuestion question, final DNSCacheEntry entry){
+    put(delegationSegments[segmentIndex(question)], question.canonical(), entry, 0);
+  }
+
+  /**
+   * Looks up an expired response that is still inside the stale window. Does not count
+   * as a hit or a miss.
+   * @param question - The client's question.
+   * @return The stale response sections, or null if there are none.
+   */
+  static DNSCacheEntry getStaleEntry (final DNSQuestion question){
+    int index = segmentIndex(question);
+    DNSOffHeapStore store = offHeap;
+    if (store != null) {
+      DNSCacheEntry entry = store.getStale(question, staleWindowMillis);
+      return entry != null ? entry : negativeOffHeap.getStale(question, staleWindowMillis);
+    }
+    DNSCacheEntry entry = getStale(segments[index], question);
+    return entry != null ? entry : getStale(negativeSegments[index], question);
+  }
+
+  private static DNSCacheEntry getStale(final Segment segment, final DNSQuestion question) {
+    synchronized (segment) {
+      DNSCacheEntry entry = segment.get(question);
+      if (entry != null && !entry.timestampValid() && entry.usableStale(staleWindowMillis))
+        return entry;
+      return null;
+    }
+  }
+
+  /**
+   * Caches the response to a question, replacing any earlier one whether it was
+   * positive or negative.
+   * @param question - The question answered. The key kept is its canonical copy, so the
+   * packet it was read from is not held on to.
+   * @param entry - The response sections.
+   */
+  static void placeEntry (final DNSQuestion question, final DNSCacheEntry entry){
+    DNSOffHeapStore store = offHeap;
+    if (store != null) {
+      (entry.negative ? store : negativeOffHeap).remove(question);
+      (entry.negative ? negativeOffHeap : store).put(question, entry);
+      return;
+    }
+    int index = segmentIndex(question);
+    Segment segment = entry.negative ? negativeSegments[index] : segments[index];
+    Segment other = entry.negative ? segments[index] : negativeSegments[index];
+    synchronized (other) {
+      cancelExpiry(other.remove(question));
+    }
+    put(segment, question.canonical(), entry, staleWindowMillis);
+  }
+
+  /**
+   * Puts an entry in a segment and schedules its removal.
+   * @param keepMillis - How long after expiring the entry is kept.
+   */
+  private static void put(final Segment segment, final DNSQuestion question, final DNSCacheEntry entry,
+      final long keepMillis) {
+    long deadline = entry.expirationMillis + keepMillis;
+    synchronized (segment) {
+      DNSCacheEntry old = segment.put(question, entry);
+      if (old != entry)
+        cancelExpiry(old);
+      if (entry.expiry != null)
+        expiries.cancel(entry.expiry);
+      entry.expiry = new Expiry(segment, question, entry);
+      expiries.schedule(entry.expiry, deadline < entry.expirationMillis ? Long.MAX_VALUE : deadline);
+    }
+  }
+
+  private static void cancelExpiry(final DNSCacheEntry entry) {
+    if (entry != null && entry.expiry != null)
+      expiries.cancel(entry.expiry);
+  }
+
+  /**
+   * Visits every cached response, positive and negative. Each segment is copied under its lock
+   * and visited after releasing it, so lookups are only held up for the copy.
+   * @param action - Called with each question and its response.
+   */
+  static void forEachEntry(final BiConsumer<DNSQuestion, DNSCacheEntry> action) {
+    DNSOffHeapStore store = offHeap;
+    if (store != null) {
+      store.forEach(action);
+      negativeOffHeap.forEach(action);
+      return;
+    }
+    forEach(segments, action);
+    forEach(negativeSegments, action);
+  }
+
+  /**
+   * Visits every cached delegation, in the same way as forEachEntry.
+   * @param action - Called with each zone's question and its delegation.
+   */
+  static void forEachDelegation(final BiConsumer<DNSQuestion, DNSCacheEntry> action) {
+    forEach(delegationSegments, action);
+  }
+
+  private static void forEach(final Segment[] table, final BiConsumer<DNSQuestion, DNSCacheEntry> action) {
+    ArrayList<Map.Entry<DNSQuestion, DNSCacheEntry>> copy = new ArrayList<>();
+    for (Segment segment : table) {
+      copy.clear();
+      synchronized (segment) {
+        for (Map.Entry<DNSQuestion, DNSCacheEntry> entry : segment.entrySet())
+          copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+      }
+      for (Map.Entry<DNSQuestion, DNSCacheEntry> entry : copy)
+        action.accept(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Removes every entry kept off the heap that has expired and left the stale window.
+   * Entries in the heap are removed by their timers instead.
+   */
+  static void sweep() {
+    DNSOffHeapStore store = offHeap;
+    if (store != null) {
+      store.sweep(staleWindowMillis);
+      negativeOffHeap.sweep(staleWindowMillis);
+    }
+  }
+
+  static int size() {
+    DNSOffHeapStore store = offHeap;
+    if (store != null)
+      return store.size() + negativeOffHeap.size();
+    return size(segments) + size(negativeSegments);
+  }
+
+  static int negativeSize() {
+    DNSOffHeapStore store = negativeOffHeap;
+    return store != null ? store.size() : size(negativeSegments);
+  }
+
+  static int delegationSize() {
+    return size(delegationSegments);
+  }
+
+  private static int size(final Segment[] table) {
+    int ret = 0;
+    for (Segment segment : table) {
+      synchronized (segment) {
+        ret += segment.size();
+      }
+    }
+    return ret;
+  }
+
+  static long hits() {
+    return hits.sum();
+  }
+
+  static long negativeHits() {
+    return negativeHits.sum();
+  }
+
+  static long misses() {
+    return misses.sum();
+  }
+
+  static long evictions() {
+    return evictions.sum();
   }
 
-  static DNSRecord getRecord (final DNSQuestion question){
-    return cache.get(question);
+  static long expirations() {
+    return expirations.sum();
   }
 
-  static void placeRecord (final DNSQuestion question, final DNSRecord record){
-    cache.put(question, record);
+  /**
+   * @return A one line summary of the cache counters.
+   */
+  static String stats() {
+    return "Size:" + size() + " NegativeSize:" + negativeSize() +
+        " Delegations:" + delegationSize() + " Hits:" + hits() +
+        " NegativeHits:" + negativeHits() + " Misses:" + misses() +
+        " Evictions:" + evictions() + " Expirations:" + expirations() + " Timers:" + expiries.size();
   }
 }
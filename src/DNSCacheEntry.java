@@ -0,0 +1,253 @@
+package MSD;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+//The cached response to one question: every record of the answer, authority and
+//additional sections. The entry is valid until its shortest lived record expires.
+//Negative responses, NXDOMAIN or NOERROR without an answer, are cached as well when they carry
+//the zone's SOA record, for as long as it allows (RFC 2308).
+public class DNSCacheEntry {
+  // Longest a negative response is cached, whatever its SOA says (RFC 2308 section 5).
+  static final int MAX_NEGATIVE_TTL = 3 * 60 * 60;
+  // QR and RA set, the flags of an encoded entry besides its RCode.
+  private static final int RESPONSE_FLAGS = 0x8180;
+
+  DNSRecord[] answers;
+  DNSRecord[] authorityRecords;
+  DNSRecord[] additionalRecords;
+  // The response code the entry is replayed with.
+  byte rCode;
+  // Whether the entry is a cacheable negative response.
+  boolean negative;
+  // The time the first record expires, on the DNSClock.
+  long expirationMillis;
+  // The upstream reply as it was received, replayed on a hit after patching. Null when
+  // the reply cannot be replayed as is, in which case the response is rebuilt from the records.
+  byte[] wire;
+  // The index just past the question section of wire.
+  private int questionEnd;
+  // The index of every cached record's TTL field within wire, and the TTL it was received with.
+  private int[] ttlOffsets;
+  private int[] ttls;
+  // When the reply was stored, on the DNSClock.
+  long storedMillis;
+  // How many times the entry has been served from the cache. Updated under the cache segment's
+  // lock, and volatile because DNSPrefetcher reads it after the lock is released.
+  volatile int hits;
+  // Removes the entry from the cache once it may no longer be served. Guarded by the cache segment's lock.
+  DNSTimerWheel.Timer expiry;
+  // Whether the entry was placed by a refresh-ahead rather than by a client's cache miss.
+  volatile boolean prefetched;
+  // The length of wire without the upstream's OPT record, which is always its last record.
+  private int bodyEnd;
+  // The additional record count of wire without the upstream's OPT record.
+  private short arCount;
+
+  /**
+   * Acts as the constructor for a DNSCacheEntry, taking the sections of an upstream reply.
+   * The OPT pseudo-record is left out since it only describes the upstream hop.
+   * @param reply - The decoded upstream reply.
+   * @return - A DNSCacheEntry holding the reply's records.
+   */
+  static DNSCacheEntry fromMessage(final DNSMessage reply) {
+    DNSCacheEntry ret = fromRecords(reply.header.rCode, reply.answers, reply.authorityRecords, reply.additionalRecords);
+    if (reply.questions.length == 1)
+      ret.keepWire(reply);
+    return ret;
+  }
+
+  /**
+   * Builds an entry from sections gathered from one or more replies. Such an entry is
+   * always rebuilt from its records when served.
+   * @param rCode - The response code.
+   * @param answers - The answer section.
+   * @param authorityRecords - The authority section.
+   * @param additionalRecords - The additional section.
+   * @return - A DNSCacheEntry holding the records.
+   */
+  static DNSCacheEntry fromRecords(final byte rCode, final DNSRecord[] answers, final DNSRecord[] authorityRecords,
+      final DNSRecord[] additionalRecords) {
+    DNSCacheEntry ret = new DNSCacheEntry();
+    ret.rCode = rCode;
+    ret.expirationMillis = Long.MAX_VALUE;
+    ret.storedMillis = DNSClock.millis();
+    ret.negative = limitNegativeTtl(rCode, answers, authorityRecords);
+    ret.answers = ret.keep(answers);
+    ret.authorityRecords = ret.keep(authorityRecords);
+    ret.additionalRecords = ret.keep(additionalRecords);
+    return ret;
+  }
+
+  /**
+   * Rebuilds an entry encoded by writeMessage with the TTLs it was received with.
+   * @param data - The encoded response.
+   * @param storedMillis - When the entry was first cached.
+   * @param expirationMillis - When the entry expires.
+   * @return - The entry, as it was when first cached.
+   * @throws IOException If data is not a response to one question.
+   */
+  static DNSCacheEntry fromStored(final byte[] data, final long storedMillis, final long expirationMillis)
+      throws IOException {
+    DNSMessage message = DNSMessage.decodeMessage(data);
+    if (message.questions.length != 1)
+      throw new IOException("Stored response has " + message.questions.length + " questions");
+    DNSCacheEntry ret = fromMessage(message);
+    ret.storedMillis = storedMillis;
+    ret.expirationMillis = expirationMillis;
+    for (DNSRecord[] section : new DNSRecord[][] {ret.answers, ret.authorityRecords, ret.additionalRecords}) {
+      for (DNSRecord record : section)
+        record.rebase(storedMillis);
+    }
+    return ret;
+  }
+
+  /**
+   * Caps the SOA record of a negative reply at its MINIMUM field, which is how long the
+   * negative answer may be cached (RFC 2308 section 5).
+   * @return True if the reply is negative and has an SOA record to time it by.
+   */
+  private static boolean limitNegativeTtl(final byte rCode, final DNSRecord[] answers,
+      final DNSRecord[] authorityRecords) {
+    boolean noData = rCode == 0 && answers.length == 0;
+    if (rCode != DNSMessage.RCODE_NAME_ERROR && !noData)
+      return false;
+    for (DNSRecord record : authorityRecords) {
+      if (record.type == DNSRecord.TYPE_SOA) {
+        int minimum = record.soaMinimum();
+        record.capTtl(Integer.compareUnsigned(minimum, MAX_NEGATIVE_TTL) < 0 ? minimum : MAX_NEGATIVE_TTL);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Remembers the reply's bytes and where their TTLs are, for replaying them on a hit.
+   * @param reply - The decoded upstream reply.
+   */
+  private void keepWire(final DNSMessage reply) {
+    DNSRecord opt = reply.findOpt();
+    DNSRecord[] additional = reply.additionalRecords;
+    if (opt != null && additional[additional.length - 1] != opt)
+      return;
+    wire = reply.rawData;
+    bodyEnd = opt == null ? wire.length : opt.nameOffset;
+    arCount = (short) additionalRecords.length;
+    questionEnd = DNSMessage.skipName(wire, reply.questions[0].nameOffset) + 4;
+    int count = answers.length + authorityRecords.length + additionalRecords.length;
+    ttlOffsets = new int[count];
+    ttls = new int[count];
+    int i = 0;
+    for (DNSRecord[] section : new DNSRecord[][] {answers, authorityRecords, additionalRecords}) {
+      for (DNSRecord record : section) {
+        ttlOffsets[i] = record.ttlOffset();
+        ttls[i] = record.ttl;
+        i++;
+      }
+    }
+  }
+
+  /**
+   * Replays the stored upstream reply for a request: copies it, then patches in the request's
+   * ID, RD and CD bits and question (keeping the client's letter case), and lowers every TTL
+   * by the time the entry has been cached. The upstream's OPT record is replaced by the
+   * server's own if the request had one, and dropped otherwise.
+   * @param request - The client's request, asking the entry's question.
+   * @param staleTtl - The TTL every record is given when serving an expired entry, or -1
+   * to lower the TTLs by the time cached.
+   * @return - The reply bytes, or null if the entry has to be rebuilt for this request instead.
+   */
+  byte[] replay(final DNSMessage request, final int staleTtl) {
+    if (wire == null || request.questions.length != 1)
+      return null;
+    byte[] raw = request.rawData;
+    int requestQuestionEnd = DNSMessage.skipName(raw, request.questions[0].nameOffset) + 4;
+    if (requestQuestionEnd != questionEnd)
+      return null;
+    DNSOutputBuffer os = DNSOutputBuffer.forThread();
+    os.writeBytes(wire, 0, bodyEnd);
+    DNSRecord requestOpt = request.findOpt();
+    if (requestOpt != null)
+      DNSRecord.writeOpt(os, requestOpt.dnssecOk());
+    os.setShort(10, arCount + (requestOpt != null ? 1 : 0));
+    byte[] ret = os.array();
+    ret[0] = raw[0];
+    ret[1] = raw[1];
+    // Bit 0 of byte 2 is RD, bit 4 of byte 3 is CD. An answer from the cache is never
+    // authoritative, so AA (bit 2 of byte 2) is cleared.
+    ret[2] = (byte) ((ret[2] & ~0x05) | (raw[2] & 0x01));
+    ret[3] = (byte) ((ret[3] & ~0x10) | (raw[3] & 0x10));
+    System.arraycopy(raw, DNSHeader.HEADER_LENGTH, ret, DNSHeader.HEADER_LENGTH, questionEnd - DNSHeader.HEADER_LENGTH);
+    int elapsed = (int) ((DNSClock.millis() - storedMillis) / 1000);
+    for (int i = 0; i < ttlOffsets.length; i++) {
+      int ttl = staleTtl >= 0 ? staleTtl : Math.max(0, ttls[i] - elapsed);
+      int offset = ttlOffsets[i];
+      ret[offset] = (byte) (ttl >> 24);
+      ret[offset + 1] = (byte) (ttl >> 16);
+      ret[offset + 2] = (byte) (ttl >> 8);
+      ret[offset + 3] = (byte) ttl;
+    }
+    return os.toByteArray();
+  }
+
+  /**
+   * Encodes the entry as a response to its question, without an OPT record.
+   * @param os - The buffer to write to, at the start of the response.
+   * @param question - The question the entry answers.
+   * @param remainingTtls - Whether to write the TTLs the records have left rather than
+   * the TTLs they were received with.
+   */
+  void writeMessage(final DNSOutputBuffer os, final DNSQuestion question, final boolean remainingTtls) {
+    DNSCompressionTable compression = DNSCompressionTable.forThread(os.size());
+    os.writeShort(0);
+    os.writeShort(RESPONSE_FLAGS | rCode);
+    os.writeShort(1);
+    os.writeShort(answers.length);
+    os.writeShort(authorityRecords.length);
+    os.writeShort(additionalRecords.length);
+    question.writeBytes(os, compression);
+    for (DNSRecord[] section : new DNSRecord[][] {answers, authorityRecords, additionalRecords}) {
+      for (DNSRecord record : remainingTtls ? DNSRecord.withRemainingTtl(section, -1) : section)
+        record.writeBytes(os, compression);
+    }
+  }
+
+  /**
+   * Filters out OPT records and lowers the entry's expiration to that of the records kept.
+   * @param records - A section of the reply.
+   * @return - The records to cache.
+   */
+  private DNSRecord[] keep(final DNSRecord[] records) {
+    ArrayList<DNSRecord> ret = new ArrayList<>(records.length);
+    for (DNSRecord record : records) {
+      if (record.type == DNSRecord.TYPE_OPT)
+        continue;
+      ret.add(record);
+      expirationMillis = Math.min(expirationMillis, record.expirationMillis());
+    }
+    return ret.toArray(new DNSRecord[0]);
+  }
+
+  /**
+   * Used within the DNS Cache to determine if the cached response is valid.
+   * @return True if none of the records have expired, else false.
+   */
+  boolean timestampValid() {
+    return DNSClock.millis() < expirationMillis;
+  }
+
+  /**
+   * @param staleWindowMillis - How long after expiring an entry may still be served stale.
+   * @return True if the entry may be served, fresh or stale.
+   */
+  boolean usableStale(final long staleWindowMillis) {
+    return DNSClock.millis() < expirationMillis + staleWindowMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "RCode:" + rCode + " Answers:" + answers.length + " Authority:" + authorityRecords.length +
+        " Additional:" + additionalRecords.length + " Expires:" + expirationMillis;
+  }
+}
@@ -0,0 +1,192 @@
+package MSD;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Saves the cache to a file now and then, and loads it back at startup, so a restarted server
+//does not begin cold. The file starts with a magic number, a version and the time it was
+//written. Each entry follows as its kind, its expiry on the wall clock and the response as a DNS message
+//in wire format, with the TTLs that were left when it was written. Loading maps the file, skips
+//entries past their expiry without decoding them, and lowers the TTLs of the others by the time
+//since the file was written.
+public class DNSCacheSnapshot {
+  // How often the cache is saved, in seconds.
+  static final int SNAPSHOT_INTERVAL_SECONDS = 300;
+  // "DNSC"
+  static final int MAGIC = 0x444E5343;
+  static final int VERSION = 1;
+  // The kinds of entries, matching the cache's tables.
+  private static final byte KIND_ENTRY = 0;
+  private static final byte KIND_DELEGATION = 1;
+
+  private static ScheduledExecutorService saver;
+
+  /**
+   * Loads a saved cache, then saves the cache to the same file periodically and when the
+   * server shuts down.
+   * @param file - The snapshot file. It need not exist yet.
+   */
+  static synchronized void start(final Path file) {
+    if (saver != null)
+      return;
+    try {
+      long startMillis = System.currentTimeMillis();
+      int loaded = load(file);
+      DNSLog.log("Loaded " + loaded + " cache entries from " + file + " in " +
+          (System.currentTimeMillis() - startMillis) + " ms");
+    } catch (NoSuchFileException e) {
+      DNSLog.log("No cache snapshot at " + file + ", starting cold");
+    } catch (IOException e) {
+      DNSLog.log("Ignoring unreadable cache snapshot: " + e);
+    }
+    saver = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "dns-cache-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    saver.scheduleWithFixedDelay(() -> saveQuietly(file), SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      saveQuietly(file);
+      DNSLog.drain();
+    }, "dns-cache-snapshot-exit"));
+  }
+
+  private static void saveQuietly(final Path file) {
+    try {
+      long startMillis = System.currentTimeMillis();
+      int saved = save(file);
+      DNSLog.log("Saved " + saved + " cache entries to " + file + " in " +
+          (System.currentTimeMillis() - startMillis) + " ms");
+    } catch (IOException | UncheckedIOException e) {
+      DNSLog.log("Cache snapshot failed: " + e);
+    }
+  }
+
+  /**
+   * Writes every unexpired cache entry and delegation to a file. The file is written aside
+   * and then moved over the old one, so a crash never leaves a partial snapshot.
+   * Lookups carry on meanwhile, each cache segment being locked only while it is copied.
+   * @param file - The snapshot file.
+   * @return - The number of entries written.
+   * @throws IOException If the file cannot be written.
+   */
+  static synchronized int save(final Path file) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    int[] count = new int[1];
+    long now = DNSClock.millis();
+    DNSOutputBuffer os = new DNSOutputBuffer();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(DNSClock.toWallMillis(now));
+      DNSCache.forEachEntry((question, entry) -> write(out, os, KIND_ENTRY, question, entry, now, count));
+      DNSCache.forEachDelegation((question, entry) -> write(out, os, KIND_DELEGATION, question, entry, now, count));
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return count[0];
+  }
+
+  private static void write(final DataOutputStream out, final DNSOutputBuffer os, final byte kind,
+      final DNSQuestion question, final DNSCacheEntry entry, final long now, final int[] count) {
+    if (entry.expirationMillis <= now)
+      return;
+    os.reset();
+    entry.writeMessage(os, question, true);
+    try {
+      out.writeByte(kind);
+      out.writeLong(DNSClock.toWallMillis(entry.expirationMillis));
+      out.writeInt(os.size());
+      out.write(os.array(), 0, os.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    count[0]++;
+  }
+
+  /**
+   * Puts the unexpired entries of a snapshot into the cache.
+   * @param file - The snapshot file.
+   * @return - The number of entries loaded.
+   * @throws IOException If the file cannot be read or is not a snapshot. Entries read
+   * before a damaged one are kept.
+   */
+  static int load(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return load(buffer, System.currentTimeMillis());
+    }
+  }
+
+  private static int load(final ByteBuffer buffer, final long now) throws IOException {
+    int ret = 0;
+    try {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+        throw new IOException("Not a cache snapshot of version " + VERSION);
+      int age = (int) Math.max(0, (now - buffer.getLong()) / 1000);
+      while (buffer.hasRemaining()) {
+        byte kind = buffer.get();
+        long expirationMillis = buffer.getLong();
+        int length = buffer.getInt();
+        if (length < DNSHeader.HEADER_LENGTH || length > buffer.remaining())
+          throw new IOException("Damaged cache snapshot entry");
+        if (expirationMillis <= now) {
+          buffer.position(buffer.position() + length);
+          continue;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        DNSMessage message = DNSMessage.decodeMessage(age(data, age));
+        if (message.questions.length != 1)
+          throw new IOException("Damaged cache snapshot entry");
+        DNSCacheEntry entry = DNSCacheEntry.fromMessage(message);
+        if (kind == KIND_DELEGATION)
+          DNSCache.placeDelegation(message.questions[0], entry);
+        else
+          DNSCache.placeEntry(message.questions[0], entry);
+        ret++;
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated cache snapshot", e);
+    }
+    return ret;
+  }
+
+  /**
+   * Lowers every TTL of a saved response by the time since it was saved.
+   * @param data - The response, changed in place.
+   * @param seconds - The seconds since the snapshot was written.
+   * @return - data.
+   */
+  private static byte[] age(final byte[] data, final int seconds) throws IOException {
+    int records = Short.toUnsignedInt(DNSMessage.getShort(data, 6)) + Short.toUnsignedInt(DNSMessage.getShort(data, 8)) +
+        Short.toUnsignedInt(DNSMessage.getShort(data, 10));
+    int pos = DNSMessage.nameEnd(data, DNSHeader.HEADER_LENGTH, data.length) + 4;
+    for (int i = 0; i < records; i++) {
+      pos = DNSMessage.nameEnd(data, pos, data.length);
+      if (pos + 10 > data.length)
+        throw new IOException("Damaged cache snapshot entry");
+      int ttl = Math.max(0, DNSMessage.getInt(data, pos + 4) - seconds);
+      data[pos + 4] = (byte) (ttl >> 24);
+      data[pos + 5] = (byte) (ttl >> 16);
+      data[pos + 6] = (byte) (ttl >> 8);
+      data[pos + 7] = (byte) ttl;
+      pos += 10 + Short.toUnsignedInt(DNSMessage.getShort(data, pos + 8));
+    }
+    return data;
+  }
+}
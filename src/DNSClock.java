@@ -0,0 +1,31 @@
+package MSD;
+
+//The clock cache expiry is measured by: milliseconds since the server started, taken from
+//System.nanoTime, so it never goes backwards when the wall clock is adjusted and reading it
+//allocates nothing. Only times written to disk are converted to the wall clock.
+public class DNSClock {
+  private static final long ORIGIN_NANOS = System.nanoTime();
+
+  /**
+   * @return The milliseconds since the server started.
+   */
+  static long millis() {
+    return (System.nanoTime() - ORIGIN_NANOS) / 1_000_000;
+  }
+
+  /**
+   * @param millis - A time on this clock.
+   * @return The same time in milliseconds since the epoch.
+   */
+  static long toWallMillis(final long millis) {
+    return millis + System.currentTimeMillis() - millis();
+  }
+
+  /**
+   * @param wallMillis - A time in milliseconds since the epoch.
+   * @return The same time on this clock.
+   */
+  static long fromWallMillis(final long wallMillis) {
+    return wallMillis - System.currentTimeMillis() + millis();
+  }
+}
@@ -0,0 +1,139 @@
+package MSD;
+
+//Remembers where names and their suffixes were written in the message being encoded, so a
+//later name can end with a pointer to the longest suffix it shares with them (RFC 1035 4.1.4).
+//Entries are kept in two parallel int arrays rather than a map, and the table is reset and
+//reused for every message a thread encodes.
+public class DNSCompressionTable {
+  // Most suffixes remembered per message; names written after the table is full are still
+  // compressed against the suffixes already in it.
+  static final int CAPACITY = 256;
+  // Pointers only have 14 bits for the location.
+  static final int MAX_POINTER_LOCATION = 0x3FFF;
+  // Most labels a name can have within 255 bytes.
+  private static final int MAX_LABELS = 128;
+
+  private static final ThreadLocal<DNSCompressionTable> PER_THREAD = ThreadLocal.withInitial(DNSCompressionTable::new);
+
+  // Hash of each remembered suffix, and its location relative to the start of the message.
+  private final int[] hashes = new int[CAPACITY];
+  private final int[] locations = new int[CAPACITY];
+  private int count;
+  // The index in the output buffer the message starts at.
+  private int start;
+  // Scratch space for the name being written.
+  private final int[] labelPositions = new int[MAX_LABELS];
+  private final int[] suffixHashes = new int[MAX_LABELS];
+
+  /**
+   * @param start - The index in the output buffer the message starts at.
+   * @return This thread's table, emptied.
+   */
+  static DNSCompressionTable forThread(final int start) {
+    DNSCompressionTable ret = PER_THREAD.get();
+    ret.reset(start);
+    return ret;
+  }
+
+  void reset(final int start) {
+    this.start = start;
+    count = 0;
+  }
+
+  /**
+   * Writes a name, replacing its longest suffix already in the message with a pointer and
+   * remembering the suffixes it writes out in full.
+   * @param os - The buffer constructing the message.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   */
+  void writeName(final DNSOutputBuffer os, final byte[] data, final int offset) {
+    int labelCount = 0;
+    int pos = DNSMessage.followPointers(data, offset);
+    while (data[pos] != 0) {
+      labelPositions[labelCount++] = pos;
+      pos = DNSMessage.followPointers(data, pos + (data[pos] & 0xff) + 1);
+    }
+    int hash = 0;
+    for (int i = labelCount - 1; i >= 0; i--) {
+      hash = labelHash(data, labelPositions[i], hash);
+      suffixHashes[i] = hash;
+    }
+    int match = -1;
+    int matchLabel = labelCount;
+    for (int i = 0; i < labelCount && match < 0; i++) {
+      match = find(suffixHashes[i], data, labelPositions[i], os);
+      if (match >= 0)
+        matchLabel = i;
+    }
+    for (int i = 0; i < matchLabel; i++) {
+      int location = os.size() - start;
+      if (count < CAPACITY && location <= MAX_POINTER_LOCATION) {
+        hashes[count] = suffixHashes[i];
+        locations[count] = location;
+        count++;
+      }
+      os.writeBytes(data, labelPositions[i], (data[labelPositions[i]] & 0xff) + 1);
+    }
+    if (match >= 0)
+      os.writeShort(0xC000 | match);
+    else
+      os.writeByte(0);
+  }
+
+  /**
+   * Looks for a remembered suffix equal to the name starting at a label.
+   * @return The suffix's location in the message, or -1.
+   */
+  private int find(final int hash, final byte[] data, final int offset, final DNSOutputBuffer os) {
+    for (int i = 0; i < count; i++) {
+      if (hashes[i] == hash && sameSuffix(data, offset, os.array(), locations[i]))
+        return locations[i];
+    }
+    return -1;
+  }
+
+  /**
+   * Compares a name against one already written, ignoring ASCII case.
+   * @param data - The bytes holding the name being written.
+   * @param offset - The index of its first label.
+   * @param out - The output buffer's bytes.
+   * @param location - The written name's location relative to the start of the message.
+   * @return True if both names are the same.
+   */
+  private boolean sameSuffix(final byte[] data, final int offset, final byte[] out, final int location) {
+    int i = offset;
+    int j = start + location;
+    while (true) {
+      i = DNSMessage.followPointers(data, i);
+      while ((out[j] & 0xC0) == 0xC0)
+        j = start + ((out[j] & 0x3F) << 8 | (out[j + 1] & 0xff));
+      int length = data[i] & 0xff;
+      if (length != (out[j] & 0xff))
+        return false;
+      if (length == 0)
+        return true;
+      for (int k = 1; k <= length; k++) {
+        if (toLower(data[i + k]) != toLower(out[j + k]))
+          return false;
+      }
+      i += length + 1;
+      j += length + 1;
+    }
+  }
+
+  /**
+   * Extends the hash of a suffix by the label in front of it, ignoring ASCII case.
+   */
+  private static int labelHash(final byte[] data, final int pos, final int suffixHash) {
+    int ret = suffixHash;
+    int length = data[pos] & 0xff;
+    for (int k = 0; k <= length; k++)
+      ret = 31 * ret + toLower(data[pos + k]);
+    return ret;
+  }
+
+  private static int toLower(final byte b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+}
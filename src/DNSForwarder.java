@@ -0,0 +1,443 @@
+package MSD;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+//Forwards client queries to an upstream resolver over a few long lived, non-blocking sockets.
+//Every query is sent with a random transaction ID and replies are matched back to the waiting
+//query by socket, ID and question, so thousands of queries can be outstanding on one IO thread.
+//Without a fixed upstream every query names the server it is sent to, which its reply must then
+//come from, and each attempt is sent from a socket of its own on a fresh ephemeral port, so an
+//off-path attacker has to guess the port as well as the ID to forge a reply (RFC 5452).
+public class DNSForwarder {
+  // Size of the buffer upstream replies are read into.
+  static final int RECEIVE_BUFFER_SIZE = DNSServer.MAX_UDP_PAYLOAD;
+  // Least time between two log lines about receive errors.
+  static final long ERROR_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  // The upstream the sockets are connected to, or null if each query names its own server.
+  private final InetSocketAddress upstream;
+  private final long timeoutMillis;
+  private final int retries;
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder receiveErrors = new LongAdder();
+  // Receive errors since the last one logged, and when that was; used by the IO thread only.
+  private long unloggedErrors;
+  private long lastErrorLogNanos;
+  private final DatagramChannel[] channels;
+  private final Selector selector;
+  // Outstanding queries keyed by socket index and the ID they were sent with, or for attempts on
+  // a socket of their own by a random number whose low 16 bits are the ID.
+  private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+  private final ScheduledThreadPoolExecutor timer;
+  private final SecureRandom random = new SecureRandom();
+
+  //A query waiting for its upstream reply.
+  private static final class PendingQuery {
+    final byte[] query;
+    final InetSocketAddress server;
+    final short clientId;
+    // How long each attempt waits for a reply.
+    final long timeoutMillis;
+    // Told the round trip time of the first attempt if that is the one answered, or null.
+    final LongConsumer firstTryRtt;
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    int attemptsLeft;
+    // Attempts sent so far, and when the latest was sent.
+    int attemptsSent;
+    long sentNanos;
+    // Volatile as the IO thread reads it to match replies on the attempt's own socket.
+    volatile int key;
+    // The socket of the current attempt, if it has one of its own.
+    DatagramChannel channel;
+    ScheduledFuture<?> timeout;
+
+    PendingQuery(final byte[] query, final InetSocketAddress server, final int attempts, final long timeoutMillis,
+        final LongConsumer firstTryRtt) {
+      this.query = query;
+      this.server = server;
+      this.clientId = (short) ((query[0] & 0xff) << 8 | (query[1] & 0xff));
+      this.attemptsLeft = attempts;
+      this.timeoutMillis = timeoutMillis;
+      this.firstTryRtt = firstTryRtt;
+    }
+  }
+
+  /**
+   * Opens the sockets and starts the IO thread.
+   * @param upstream - The address of the upstream resolver, or null to pass a server with every query.
+   * @param socketCount - How many sockets queries to the upstream are spread across. Not used
+   * without an upstream, where every attempt opens a socket of its own.
+   * @param timeoutMillis - How long to wait for a reply before resending.
+   * @param retries - How many times a query is resent before it fails.
+   * @throws IOException
+   */
+  DNSForwarder(final InetSocketAddress upstream, final int socketCount, final long timeoutMillis, final int retries)
+      throws IOException {
+    this.upstream = upstream;
+    this.timeoutMillis = timeoutMillis;
+    this.retries = retries;
+    this.selector = Selector.open();
+    this.channels = new DatagramChannel[upstream != null ? socketCount : 0];
+    for (int i = 0; i < channels.length; i++) {
+      channels[i] = DatagramChannel.open();
+      channels[i].configureBlocking(false);
+      // Connecting filters out datagrams that do not come from the upstream.
+      channels[i].connect(upstream);
+      channels[i].register(selector, SelectionKey.OP_READ, i);
+    }
+    timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "dns-forwarder-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+    Thread ioThread = new Thread(this::receiveLoop, "dns-forwarder-io");
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  /**
+   * Sends a query upstream.
+   * @param query - The client's query in wire format. It is not modified.
+   * @return - A future completed with the upstream reply, carrying the client's original ID,
+   * or failed with a SocketTimeoutException once every attempt has timed out.
+   */
+  CompletableFuture<byte[]> forward(final byte[] query) {
+    return forward(query, upstream);
+  }
+
+  /**
+   * Sends a query upstream, waiting for each attempt's reply for a time of the caller's choosing
+   * instead of the forwarder's.
+   * @param query - The client's query in wire format. It is not modified.
+   * @param timeoutMillis - How long to wait for a reply before resending.
+   * @param firstTryRtt - Given the round trip time in nanoseconds, before the future completes, if
+   * the reply answers the first attempt. A reply to a resent attempt is not timed, as Karn's
+   * algorithm has it: the replies that made it, after one was lost, are not a fair sample.
+   * @return - A future completed with the upstream reply, carrying the client's original ID,
+   * or failed with a SocketTimeoutException once every attempt has timed out.
+   */
+  CompletableFuture<byte[]> forward(final byte[] query, final long timeoutMillis, final LongConsumer firstTryRtt) {
+    PendingQuery pendingQuery = new PendingQuery(query, upstream, retries + 1, timeoutMillis, firstTryRtt);
+    send(pendingQuery);
+    return pendingQuery.result;
+  }
+
+  /**
+   * Sends a query to a server of the caller's choosing. Only for forwarders without a fixed upstream.
+   * @param query - The query in wire format. It is not modified.
+   * @param server - The server to send it to.
+   * @return - A future completed with the server's reply, carrying the query's original ID,
+   * or failed with a SocketTimeoutException once every attempt has timed out.
+   */
+  CompletableFuture<byte[]> forward(final byte[] query, final InetSocketAddress server) {
+    PendingQuery pendingQuery = new PendingQuery(query, server, retries + 1, timeoutMillis, null);
+    send(pendingQuery);
+    return pendingQuery.result;
+  }
+
+  /**
+   * Number of queries currently waiting for an upstream reply.
+   */
+  int outstanding() {
+    return pending.size();
+  }
+
+  /**
+   * Sends one attempt of a query with a fresh random ID, on a random socket to the upstream, or
+   * otherwise on a new socket of its own.
+   * @param pendingQuery - The query to send.
+   */
+  private void send(final PendingQuery pendingQuery) {
+    synchronized (pendingQuery) {
+      if (pendingQuery.result.isDone())
+        return;
+      pendingQuery.attemptsLeft--;
+      pendingQuery.attemptsSent++;
+      int key;
+      do {
+        key = upstream != null ? random.nextInt(channels.length << 16) : random.nextInt();
+      } while (pending.putIfAbsent(key, pendingQuery) != null);
+      pendingQuery.key = key;
+      byte[] packet = pendingQuery.query.clone();
+      packet[0] = (byte) (key >> 8);
+      packet[1] = (byte) key;
+      pendingQuery.sentNanos = System.nanoTime();
+      try {
+        // A full socket buffer drops the packet, which the timeout treats like a lost packet.
+        if (upstream != null) {
+          channels[key >>> 16].write(ByteBuffer.wrap(packet));
+        } else {
+          pendingQuery.channel = open(pendingQuery);
+          pendingQuery.channel.send(ByteBuffer.wrap(packet), pendingQuery.server);
+        }
+      } catch (IOException e) {
+        pending.remove(key, pendingQuery);
+        closeChannel(pendingQuery);
+        pendingQuery.result.completeExceptionally(e);
+        return;
+      }
+      pendingQuery.timeout = timer.schedule(() -> onTimeout(pendingQuery, pendingQuery.key),
+          pendingQuery.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Opens a socket on an ephemeral port for one attempt of a query. Its replies are read by
+   * the IO thread like those of the shared sockets.
+   * @param pendingQuery - The query the socket is for.
+   */
+  private DatagramChannel open(final PendingQuery pendingQuery) throws IOException {
+    DatagramChannel ret = DatagramChannel.open();
+    try {
+      ret.configureBlocking(false);
+      ret.bind(null);
+      ret.register(selector, SelectionKey.OP_READ, pendingQuery);
+      // A select already under way does not watch sockets registered after it began.
+      selector.wakeup();
+      return ret;
+    } catch (IOException e) {
+      ret.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Closes the socket of a query's last attempt, if it had one of its own.
+   */
+  private static void closeChannel(final PendingQuery pendingQuery) {
+    DatagramChannel channel;
+    synchronized (pendingQuery) {
+      channel = pendingQuery.channel;
+      pendingQuery.channel = null;
+    }
+    if (channel == null)
+      return;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing more can go wrong with a socket that is done with.
+    }
+  }
+
+  /**
+   * Called when an attempt got no reply in time. Resends the query or fails it.
+   * @param pendingQuery - The query that timed out.
+   * @param key - The key of the attempt that timed out.
+   */
+  private void onTimeout(final PendingQuery pendingQuery, final int key) {
+    if (!pending.remove(key, pendingQuery))
+      return;
+    closeChannel(pendingQuery);
+    timeouts.increment();
+    if (pendingQuery.attemptsLeft > 0)
+      send(pendingQuery);
+    else
+      pendingQuery.result.completeExceptionally(
+          new SocketTimeoutException("No upstream reply after " + retries + " retries"));
+  }
+
+  /**
+   * Reads replies from all the sockets and hands them to their waiting query.
+   */
+  private void receiveLoop() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        for (SelectionKey selectionKey : selector.selectedKeys())
+          receiveAll(selectionKey, buffer);
+      } catch (ClosedSelectorException e) {
+        return;
+      } catch (IOException e) {
+        onReceiveError(e);
+      } finally {
+        if (selector.isOpen())
+          selector.selectedKeys().clear();
+      }
+    }
+  }
+
+  /**
+   * Reads every waiting reply from one socket. An error on the socket, such as the ICMP port
+   * unreachable a connected socket reports when the upstream is down, is logged and the
+   * other sockets are read on.
+   * @param selectionKey - The socket's key.
+   * @param buffer - The buffer replies are read into.
+   */
+  private void receiveAll(final SelectionKey selectionKey, final ByteBuffer buffer) {
+    DatagramChannel channel = (DatagramChannel) selectionKey.channel();
+    Object attachment = selectionKey.attachment();
+    buffer.clear();
+    try {
+      SocketAddress from;
+      while ((from = receive(channel, buffer)) != null) {
+        buffer.flip();
+        byte[] reply = new byte[buffer.remaining()];
+        buffer.get(reply);
+        buffer.clear();
+        if (reply.length < 12)
+          continue;
+        int id = (reply[0] & 0xff) << 8 | (reply[1] & 0xff);
+        if (attachment instanceof PendingQuery) {
+          // A socket of the query's own; its key carries the ID the attempt was sent with.
+          int key = ((PendingQuery) attachment).key;
+          if ((key & 0xffff) == id)
+            onReply(key, reply, from);
+        } else {
+          onReply((Integer) attachment << 16 | id, reply, from);
+        }
+      }
+    } catch (ClosedChannelException e) {
+      // An attempt's own socket, closed as the attempt timed out.
+    } catch (IOException e) {
+      onReceiveError(e);
+    }
+  }
+
+  /**
+   * Counts a receive error and logs it, at most once per ERROR_LOG_INTERVAL_NANOS with the
+   * number since the last line, so an upstream that stays down does not flood the log.
+   * Only called from the IO thread.
+   * @param e - The error.
+   */
+  private void onReceiveError(final IOException e) {
+    receiveErrors.increment();
+    unloggedErrors++;
+    long now = System.nanoTime();
+    if (lastErrorLogNanos != 0 && now - lastErrorLogNanos < ERROR_LOG_INTERVAL_NANOS)
+      return;
+    lastErrorLogNanos = now;
+    DNSLog.log("Upstream receive failed " + unloggedErrors + " time(s) on " + this + ": " + e);
+    unloggedErrors = 0;
+  }
+
+  /**
+   * Reads one datagram, if there is one.
+   * @return The address it came from, or null if nothing was waiting.
+   */
+  private SocketAddress receive(final DatagramChannel channel, final ByteBuffer buffer) throws IOException {
+    if (upstream == null)
+      return channel.receive(buffer);
+    return channel.read(buffer) > 0 ? upstream : null;
+  }
+
+  /**
+   * Completes the query a reply belongs to. Replies whose ID, question or sender do not match
+   * an outstanding query are dropped.
+   * @param key - The key of the attempt the reply's socket and ID point to.
+   * @param reply - The reply bytes.
+   * @param from - The address the reply came from.
+   */
+  private void onReply(final int key, final byte[] reply, final SocketAddress from) {
+    PendingQuery pendingQuery = pending.get(key);
+    if (pendingQuery == null || !pendingQuery.server.equals(from) || !sameQuestion(pendingQuery.query, reply))
+      return;
+    long now = System.nanoTime();
+    // Waits for send to finish scheduling the attempt's timeout.
+    synchronized (pendingQuery) {
+      if (!pending.remove(key, pendingQuery))
+        return;
+      pendingQuery.timeout.cancel(false);
+    }
+    closeChannel(pendingQuery);
+    if (pendingQuery.firstTryRtt != null && pendingQuery.attemptsSent == 1)
+      pendingQuery.firstTryRtt.accept(now - pendingQuery.sentNanos);
+    reply[0] = (byte) (pendingQuery.clientId >> 8);
+    reply[1] = (byte) pendingQuery.clientId;
+    pendingQuery.result.complete(reply);
+  }
+
+  /**
+   * Compares the first question of a query and a reply, ignoring the case of the name.
+   * @param query - The query as sent.
+   * @param reply - The received reply.
+   * @return True if both carry the same question.
+   */
+  static boolean sameQuestion(final byte[] query, final byte[] reply) {
+    int end = questionEnd(query);
+    if (end < 0 || reply.length < end || query[5] != reply[5] || query[4] != reply[4])
+      return false;
+    // The name's letters are compared in ASCII only (RFC 4343); its type and class exactly.
+    for (int i = 12; i < end - 4; i++) {
+      if (DNSMessage.toLower(query[i]) != DNSMessage.toLower(reply[i]))
+        return false;
+    }
+    for (int i = end - 4; i < end; i++) {
+      if (query[i] != reply[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the end of the first question section of an uncompressed query.
+   * @param query - The query bytes.
+   * @return The index just past the question's class, or -1 if the query has no valid question.
+   */
+  static int questionEnd(final byte[] query) {
+    if (query.length < 12 || (query[4] | query[5]) == 0)
+      return -1;
+    int i = 12;
+    while (i < query.length && query[i] != 0) {
+      if ((query[i] & 0xc0) != 0)
+        return -1;
+      i += (query[i] & 0xff) + 1;
+    }
+    i += 5;
+    return i <= query.length ? i : -1;
+  }
+
+  /**
+   * Fails every outstanding query and closes the sockets.
+   * @throws IOException
+   */
+  void close() throws IOException {
+    selector.close();
+    for (DatagramChannel channel : channels)
+      channel.close();
+    timer.shutdownNow();
+    for (PendingQuery pendingQuery : pending.values()) {
+      closeChannel(pendingQuery);
+      pendingQuery.result.completeExceptionally(new IOException("Forwarder closed"));
+    }
+    pending.clear();
+  }
+
+  /**
+   * @return The number of attempts that got no reply in time.
+   */
+  long timeouts() {
+    return timeouts.sum();
+  }
+
+  /**
+   * @return The number of errors reading replies, such as ICMP port unreachable.
+   */
+  long receiveErrors() {
+    return receiveErrors.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "Upstream:" + upstream + " Sockets:" + (upstream != null ? channels.length : pending.size()) + " Outstanding:" + pending.size()
+        + " Timeout:" + timeoutMillis + "ms Retries:" + retries;
+  }
+}
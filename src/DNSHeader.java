@@ -1,10 +1,10 @@
 package MSD;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 public class DNSHeader {
+  // Size of the header on the wire.
+  static final int HEADER_LENGTH = 12;
   // Message id.
   short id;
   // Specifies whether this message is a query (0), or a response (1).
@@ -60,30 +60,43 @@ public class DNSHeader {
 
 
   /**
-   *
-   * @param buf
+   * Acts as the constructor for a DNSHeader, reading the first twelve bytes of a message.
+   * @param data - The message bytes.
    * @return
    * @throws IOException
    */
-  static DNSHeader decodeHeader(final InputStream buf) throws IOException {
+  static DNSHeader decodeHeader(final byte[] data) throws IOException {
     DNSHeader ret = new DNSHeader();
-    ret.id = DNSMessage.getShort(buf);
-    int byte3 = buf.read();
-    ret.rd = getBit(byte3, 0);
-    ret.tc = getBit(byte3, 1);
-    ret.aa = getBit(byte3, 2);
-    getOpCode(byte3 , ret);
-    ret.qr = getBit(byte3, 7);
-    int byte4 = buf.read();
-    getRCode(byte4, ret);
-    ret.cd = getBit(byte4, 4);
-    ret.ad = getBit(byte4, 5);
-    ret.ra = getBit(byte4, 7);
-    ret.qdCount = DNSMessage.getShort(buf);
-    ret.anCount = DNSMessage.getShort(buf);
-    ret.nsCount= DNSMessage.getShort(buf);
-    ret.arCount = DNSMessage.getShort(buf);
-  return ret;
+    ret.read(data);
+    return ret;
+  }
+
+  /**
+   * Reads the first twelve bytes of a message into this header, overwriting every field,
+   * so a header can be reused for the next message.
+   * @param data - The message bytes.
+   * @throws IOException
+   */
+  void read(final byte[] data) throws IOException {
+    if (data.length < HEADER_LENGTH)
+      throw new IOException("Message shorter than a header");
+    id = DNSMessage.getShort(data, 0);
+    int byte3 = data[2] & 0xff;
+    rd = getBit(byte3, 0);
+    tc = getBit(byte3, 1);
+    aa = getBit(byte3, 2);
+    getOpCode(byte3 , this);
+    qr = getBit(byte3, 7);
+    int byte4 = data[3] & 0xff;
+    getRCode(byte4, this);
+    z = 0;
+    cd = getBit(byte4, 4);
+    ad = getBit(byte4, 5);
+    ra = getBit(byte4, 7);
+    qdCount = DNSMessage.getShort(data, 4);
+    anCount = DNSMessage.getShort(data, 6);
+    nsCount= DNSMessage.getShort(data, 8);
+    arCount = DNSMessage.getShort(data, 10);
   }
 
   /**
@@ -131,25 +144,40 @@ public class DNSHeader {
    * @param response - The build response message.
    */
   static void buildResponseHeader(final DNSMessage request, DNSMessage response){
-    response.header = request.header;
+    response.header = new DNSHeader();
+    response.header.id = request.header.id;
+    response.header.opCode = request.header.opCode;
+    response.header.rd = request.header.rd;
+    response.header.cd = request.header.cd;
     response.header.qr = 1;
     response.header.ra = 1;
+    response.header.qdCount = request.header.qdCount;
     response.header.anCount = 1;
   }
 
   /**
-   * Write the member variable s to an OutputStream.
+   * Builds the header of a response answered from one of the server's own zones, which
+   * has the AA bit set.
+   * @param request - The client request message.
+   * @param response - The build response message.
+   */
+  static void buildAuthoritativeResponseHeader(final DNSMessage request, DNSMessage response){
+    buildResponseHeader(request, response);
+    response.header.aa = 1;
+  }
+
+  /**
+   * Write the member variable s to an output buffer.
    * @param os
-   * @throws IOException
    */
-  void writeBytes(final OutputStream os) throws IOException {
-    os.write(DNSMessage.shortToBytes(id));
-    os.write(generate3rdByte());
-    os.write(generate4thByte());
-    os.write(DNSMessage.shortToBytes(qdCount));
-    os.write(DNSMessage.shortToBytes(anCount));
-    os.write(DNSMessage.shortToBytes(nsCount));
-    os.write(DNSMessage.shortToBytes(arCount));
+  void writeBytes(final DNSOutputBuffer os) {
+    os.writeShort(id);
+    os.writeByte(generate3rdByte());
+    os.writeByte(generate4thByte());
+    os.writeShort(qdCount);
+    os.writeShort(anCount);
+    os.writeShort(nsCount);
+    os.writeShort(arCount);
   }
 
   /**
@@ -157,7 +185,7 @@ public class DNSHeader {
    * @return a short consisting of the third byte.
    */
   private short generate3rdByte(){
-    return (short) ((qr << 7 | opCode << 6) | (aa << 2 | aa << 1) | rd);
+    return (short) ((qr << 7 | opCode << 3) | (aa << 2 | tc << 1) | rd);
   }
 
   /**
@@ -0,0 +1,91 @@
+package MSD;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//A latency histogram in the manner of HdrHistogram: values are counted in buckets that double in
+//width every 16 buckets, so any value from a microsecond to days is kept within about 6% in a
+//fixed array of counters. Recording is one atomic increment and never allocates.
+public class DNSHistogram {
+  // Values below 2^SUB_BITS microseconds get a bucket each; above, every power of two is split
+  // into 2^(SUB_BITS - 1) buckets.
+  private static final int SUB_BITS = 5;
+  private static final int HALF = 1 << (SUB_BITS - 1);
+  private static final int BUCKETS = HALF * (64 - SUB_BITS + 2);
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumMicros = new LongAdder();
+
+  /**
+   * Counts a duration.
+   * @param nanos - The duration in nanoseconds.
+   */
+  void record(final long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts.incrementAndGet(bucket(micros));
+    count.increment();
+    sumMicros.add(micros);
+  }
+
+  /**
+   * Counts the time since a start.
+   * @param startNanos - The System.nanoTime the duration started at.
+   */
+  void recordSince(final long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  private static int bucket(final long micros) {
+    if (micros < 2 * HALF)
+      return (int) micros;
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BITS - 1);
+    return HALF * shift + (int) (micros >>> shift);
+  }
+
+  /**
+   * @return The largest value counted in a bucket, in microseconds.
+   */
+  private static long upperBound(final int bucket) {
+    if (bucket < 2 * HALF)
+      return bucket;
+    int shift = bucket / HALF - 1;
+    long start = (long) (bucket - HALF * shift) << shift;
+    return start + (1L << shift) - 1;
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return The sum of the values counted, in microseconds.
+   */
+  long sumMicros() {
+    return sumMicros.sum();
+  }
+
+  /**
+   * @param quantiles - The quantiles wanted, between 0 and 1, in increasing order.
+   * @return The value at each quantile in microseconds, the top of its bucket. 0 when empty.
+   */
+  long[] quantiles(final double... quantiles) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long[] ret = new long[quantiles.length];
+    if (total == 0)
+      return ret;
+    long seen = 0;
+    int q = 0;
+    for (int i = 0; i < BUCKETS && q < quantiles.length; i++) {
+      seen += snapshot[i];
+      while (q < quantiles.length && seen >= Math.ceil(quantiles[q] * total) && seen > 0)
+        ret[q++] = upperBound(i);
+    }
+    return ret;
+  }
+}
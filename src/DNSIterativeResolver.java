@@ -0,0 +1,514 @@
+package MSD;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//Resolves questions itself instead of forwarding them. Starting from the closest zone whose
+//nameservers are cached, or from the root hints, it asks the zone's nameservers and follows their
+//referrals down the tree until one answers authoritatively. Every referral is cached in DNSCache
+//as a delegation, so names under a zone that is already known skip the levels above it. CNAMEs
+//are chased and the records of the whole chain are returned together. Only records for names
+//inside the zone that was asked are taken from a reply, so a nameserver cannot slip in records
+//for names it has no authority over.
+public class DNSIterativeResolver {
+  // The IPv4 addresses of the root servers a to m.
+  static final String[] ROOT_SERVERS = {
+      "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241",
+      "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129",
+      "199.7.83.42", "202.12.27.33"};
+  // Most referrals followed for one name.
+  static final int MAX_REFERRALS = 16;
+  // Most CNAMEs chased for one question.
+  static final int MAX_CNAME_CHAIN = 8;
+  // Most levels of nameserver address lookups nested inside one resolution.
+  static final int MAX_DEPTH = 4;
+  // Nameservers of a zone asked at once. The next ones are only tried if all of them fail.
+  static final int PARALLEL_QUERIES = 3;
+  // Settings for the queries to nameservers; a slow server is left for the next one quickly.
+  static final long QUERY_TIMEOUT_MILLIS = 800;
+  static final int QUERY_RETRIES = 1;
+  // Response codes meaning the server could not answer, rather than that the name has no data.
+  private static final int RCODE_SERVER_FAILURE = 2;
+  private static final int RCODE_NOT_IMPLEMENTED = 4;
+  private static final int RCODE_REFUSED = 5;
+  private static final short TYPE_ANY = 255;
+
+  private final List<InetSocketAddress> rootHints;
+  // The port nameservers found through referrals are asked on, 53 outside of tests.
+  private final int serverPort;
+  private final Executor executor;
+  private final DNSForwarder network;
+
+  private final LongAdder queries = new LongAdder();
+  private final LongAdder referrals = new LongAdder();
+  private final LongAdder delegationHits = new LongAdder();
+
+  //A zone being asked: its name, and where its nameservers come from.
+  private static final class Zone {
+    final byte[] nameData;
+    final int nameOffset;
+    // The zone's NS records and glue, or null for the root.
+    final DNSCacheEntry delegation;
+
+    Zone(final byte[] nameData, final int nameOffset, final DNSCacheEntry delegation) {
+      this.nameData = nameData;
+      this.nameOffset = nameOffset;
+      this.delegation = delegation;
+    }
+  }
+
+  private static final Zone ROOT = new Zone(new byte[] {0}, 0, null);
+
+  //A reply that answers a question or says it has no answer, and the zone whose nameserver sent it.
+  private static final class Answer {
+    final DNSMessage reply;
+    final Zone zone;
+
+    Answer(final DNSMessage reply, final Zone zone) {
+      this.reply = reply;
+      this.zone = zone;
+    }
+  }
+
+  /**
+   * Sets up the forwarder nameservers are queried through.
+   * @param rootHints - The root servers resolution starts from.
+   * @param serverPort - The port nameservers found through referrals are asked on.
+   * @param executor - The pool replies are processed on.
+   * @throws IOException
+   */
+  DNSIterativeResolver(final List<InetSocketAddress> rootHints, final int serverPort, final Executor executor)
+      throws IOException {
+    this.rootHints = rootHints;
+    this.serverPort = serverPort;
+    this.executor = executor;
+    // Without an upstream every query is sent from a new ephemeral port, so no socket count is given.
+    this.network = new DNSForwarder(null, 0, QUERY_TIMEOUT_MILLIS, QUERY_RETRIES);
+  }
+
+  /**
+   * @return The real root servers, on port 53.
+   */
+  static List<InetSocketAddress> rootServers() {
+    List<InetSocketAddress> ret = new ArrayList<>();
+    for (String address : ROOT_SERVERS)
+      ret.add(new InetSocketAddress(address, 53));
+    return ret;
+  }
+
+  /**
+   * Resolves a question.
+   * @param question - The question.
+   * @return A future of the response: the answers of every step of a CNAME chain, and the
+   * authority section of the last reply, which carries the SOA of a negative answer.
+   */
+  CompletableFuture<DNSCacheEntry> resolve(final DNSQuestion question) {
+    return resolve(question, 0);
+  }
+
+  private CompletableFuture<DNSCacheEntry> resolve(final DNSQuestion question, final int depth) {
+    return chase(question, new DNSRecord[0], 0, depth);
+  }
+
+  /**
+   * Resolves one step of a CNAME chain, then the next if the answer is another alias. Of the
+   * reply, only the chain from the name asked and the records it ends at are kept, and only
+   * while the chain stays inside the zone that was asked; an alias pointing out of it is
+   * resolved afresh from the closest zone of its target.
+   * @param question - The question for this step.
+   * @param chain - The answers of the steps before.
+   * @param cnames - The number of CNAMEs followed so far.
+   * @param depth - The nesting of nameserver address lookups.
+   */
+  private CompletableFuture<DNSCacheEntry> chase(final DNSQuestion question, final DNSRecord[] chain,
+      final int cnames, final int depth) {
+    return iterate(question, closestZone(question), 0, depth).thenCompose(answer -> {
+      DNSMessage reply = answer.reply;
+      List<DNSRecord> answers = new ArrayList<>(Arrays.asList(chain));
+      // Follow the aliases the reply itself resolves, then carry on from where it stops.
+      DNSQuestion current = question;
+      int followed = cnames;
+      DNSRecord alias;
+      while (!addAnswers(answers, reply, current) && question.qType != DNSRecord.TYPE_CNAME
+          && (alias = findCname(reply, current)) != null) {
+        answers.add(alias);
+        if (++followed > MAX_CNAME_CHAIN)
+          return CompletableFuture.completedFuture(entry(reply, answers, answer.zone));
+        current = DNSQuestion.of(alias.data, alias.rdOffset, question.qType, question.qClass);
+        if (!inZone(alias.data, alias.rdOffset, answer.zone))
+          return chase(current, answers.toArray(new DNSRecord[0]), followed, depth);
+      }
+      if (current == question || hasAnswer(reply, current) || reply.header.rCode != 0)
+        return CompletableFuture.completedFuture(entry(reply, answers, answer.zone));
+      return chase(current, answers.toArray(new DNSRecord[0]), followed, depth);
+    });
+  }
+
+  /**
+   * Asks a zone's nameservers a question, and follows referrals to zones closer to the name
+   * until a reply answers it or says it has no answer.
+   * @param question - The question.
+   * @param zone - The zone to ask.
+   * @param referralCount - The number of referrals followed so far.
+   * @param depth - The nesting of nameserver address lookups.
+   * @return A future of the final reply and the zone that gave it.
+   */
+  private CompletableFuture<Answer> iterate(final DNSQuestion question, final Zone zone,
+      final int referralCount, final int depth) {
+    byte[] query = DNSMessage.buildQuery(question);
+    return addresses(zone, depth)
+        .thenCompose(servers -> ask(query, question, zone, servers, 0))
+        .thenCompose(reply -> {
+          if (isFinal(reply))
+            return CompletableFuture.completedFuture(new Answer(reply, zone));
+          Zone next = referral(reply, question, zone);
+          if (next == null)
+            throw new CompletionException(new IOException("Unusable reply from zone " + name(zone)));
+          if (referralCount >= MAX_REFERRALS)
+            throw new CompletionException(new IOException("Too many referrals for " + question));
+          return iterate(question, next, referralCount + 1, depth);
+        });
+  }
+
+  /**
+   * Finds the closest enclosing zone of a name whose delegation is cached.
+   * @param question - The question asked.
+   * @return The zone, or the root if none is cached.
+   */
+  private Zone closestZone(final DNSQuestion question) {
+    byte[] data = question.nameData;
+    int pos = DNSMessage.followPointers(data, question.nameOffset);
+    while (data[pos] != 0) {
+      DNSCacheEntry delegation = DNSCache.getDelegation(
+          DNSQuestion.of(data, pos, DNSRecord.TYPE_NS, DNSRecord.CLASS_IN));
+      if (delegation != null) {
+        delegationHits.increment();
+        return new Zone(data, pos, delegation);
+      }
+      pos = DNSMessage.followPointers(data, pos + (data[pos] & 0xff) + 1);
+    }
+    return ROOT;
+  }
+
+  /**
+   * Finds the addresses of a zone's nameservers: from the glue, then from the cache, and
+   * otherwise by resolving the nameservers' names.
+   * @param zone - The zone.
+   * @param depth - The nesting of nameserver address lookups.
+   * @return A future of the addresses.
+   */
+  private CompletableFuture<List<InetSocketAddress>> addresses(final Zone zone, final int depth) {
+    if (zone.delegation == null)
+      return CompletableFuture.completedFuture(rootHints);
+    List<InetSocketAddress> ret = new ArrayList<>();
+    List<DNSQuestion> unknown = new ArrayList<>();
+    for (DNSRecord ns : zone.delegation.authorityRecords) {
+      DNSQuestion target = DNSQuestion.of(ns.data, ns.rdOffset, DNSRecord.TYPE_A, DNSRecord.CLASS_IN);
+      int before = ret.size();
+      addAddresses(ret, zone.delegation.additionalRecords, target);
+      DNSCacheEntry cached = DNSCache.peekEntry(target);
+      if (cached != null)
+        addAddresses(ret, cached.answers, target);
+      if (ret.size() == before)
+        unknown.add(target);
+    }
+    if (!ret.isEmpty())
+      return CompletableFuture.completedFuture(ret);
+    if (depth >= MAX_DEPTH || unknown.isEmpty())
+      return CompletableFuture.failedFuture(new IOException("No nameserver addresses for zone " + name(zone)));
+    // Look up a few of the nameservers at once and use whichever answer first.
+    CompletableFuture<List<InetSocketAddress>> found = new CompletableFuture<>();
+    List<DNSQuestion> lookups = unknown.subList(0, Math.min(PARALLEL_QUERIES, unknown.size()));
+    AtomicInteger left = new AtomicInteger(lookups.size());
+    for (DNSQuestion target : lookups) {
+      resolve(target, depth + 1).whenComplete((entry, error) -> {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (error == null) {
+          if (entry.rCode == 0 && entry.answers.length > 0)
+            DNSCache.placeEntry(target, entry);
+          for (DNSRecord record : entry.answers) {
+            if (record.type == DNSRecord.TYPE_A && record.rdLength == 4)
+              addresses.add(address(record));
+          }
+        }
+        if (!addresses.isEmpty())
+          found.complete(addresses);
+        else if (left.decrementAndGet() == 0)
+          found.completeExceptionally(new IOException("No nameserver addresses for zone " + name(zone)));
+      });
+    }
+    return found;
+  }
+
+  /**
+   * Adds the addresses of the A records in a section that belong to a nameserver.
+   */
+  private void addAddresses(final List<InetSocketAddress> addresses, final DNSRecord[] records,
+      final DNSQuestion target) {
+    for (DNSRecord record : records) {
+      if (record.type == DNSRecord.TYPE_A && record.rdLength == 4 &&
+          DNSMessage.nameEqualsIgnoreCase(record.data, record.nameOffset, target.nameData, target.nameOffset))
+        addresses.add(address(record));
+    }
+  }
+
+  private InetSocketAddress address(final DNSRecord record) {
+    try {
+      byte[] ip = Arrays.copyOfRange(record.data, record.rdOffset, record.rdOffset + 4);
+      return new InetSocketAddress(InetAddress.getByAddress(ip), serverPort);
+    } catch (UnknownHostException e) {
+      // Cannot happen for a four byte address.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sends a query to several of a zone's nameservers at once, and on to the next few if none
+   * of them gives a usable reply. A lame nameserver's reply, neither an answer nor a referral
+   * closer to the name, is passed over like a failure so a good server's reply can win.
+   * @param query - The query.
+   * @param question - The question the query asks.
+   * @param zone - The zone asked.
+   * @param servers - The zone's nameservers.
+   * @param from - The index of the first nameserver to ask.
+   * @return A future of the first usable reply.
+   */
+  private CompletableFuture<DNSMessage> ask(final byte[] query, final DNSQuestion question, final Zone zone,
+      final List<InetSocketAddress> servers, final int from) {
+    CompletableFuture<DNSMessage> ret = new CompletableFuture<>();
+    int to = Math.min(servers.size(), from + PARALLEL_QUERIES);
+    AtomicInteger left = new AtomicInteger(to - from);
+    for (int i = from; i < to; i++) {
+      queries.increment();
+      long start = System.nanoTime();
+      network.forward(query, servers.get(i)).whenCompleteAsync((reply, error) -> {
+        if (error == null)
+          DNSMetrics.upstreamRtt.recordSince(start);
+        DNSMessage message = error == null ? usable(reply) : null;
+        if (message != null && !isFinal(message) && !refersCloser(message, question, zone))
+          message = null;
+        if (message != null) {
+          ret.complete(message);
+        } else if (left.decrementAndGet() == 0) {
+          if (to < servers.size())
+            ask(query, question, zone, servers, to).whenComplete((next, nextError) -> {
+              if (nextError != null)
+                ret.completeExceptionally(nextError);
+              else
+                ret.complete(next);
+            });
+          else
+            ret.completeExceptionally(new IOException("No nameserver answered"));
+        }
+      }, executor);
+    }
+    return ret;
+  }
+
+  /**
+   * Decodes a nameserver's reply.
+   * @return The reply, or null if it is malformed, truncated, or the server could not answer.
+   */
+  private static DNSMessage usable(final byte[] reply) {
+    try {
+      DNSMessage message = DNSMessage.decodeMessage(reply);
+      int rCode = message.header.rCode;
+      if (message.header.tc != 0 || rCode == RCODE_SERVER_FAILURE || rCode == RCODE_NOT_IMPLEMENTED ||
+          rCode == RCODE_REFUSED)
+        return null;
+      return message;
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return True if the reply answers the question, or says the name or its data does not exist.
+   */
+  private static boolean isFinal(final DNSMessage reply) {
+    if (reply.header.rCode != 0 || reply.answers.length > 0)
+      return true;
+    for (DNSRecord record : reply.authorityRecords) {
+      if (record.type == DNSRecord.TYPE_SOA)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return True if the reply holds an NS record for a zone between the one asked and the name.
+   */
+  private static boolean refersCloser(final DNSMessage reply, final DNSQuestion question, final Zone current) {
+    for (DNSRecord record : reply.authorityRecords) {
+      if (record.type == DNSRecord.TYPE_NS && isCloser(record, question, current))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isCloser(final DNSRecord ns, final DNSQuestion question, final Zone current) {
+    return DNSMessage.isSubdomain(question.nameData, question.nameOffset, ns.data, ns.nameOffset)
+        && DNSMessage.isSubdomain(ns.data, ns.nameOffset, current.nameData, current.nameOffset)
+        && !DNSMessage.nameEqualsIgnoreCase(ns.data, ns.nameOffset, current.nameData, current.nameOffset);
+  }
+
+  /**
+   * Reads a referral, keeping only NS records for a zone between the one asked and the name,
+   * and glue for them from within the zone asked. Caches the delegation.
+   * @param reply - The reply holding the referral.
+   * @param question - The question asked.
+   * @param current - The zone that was asked.
+   * @return The zone referred to, or null if the reply is not a usable referral.
+   */
+  private Zone referral(final DNSMessage reply, final DNSQuestion question, final Zone current) {
+    DNSRecord first = null;
+    List<DNSRecord> nameservers = new ArrayList<>();
+    for (DNSRecord record : reply.authorityRecords) {
+      if (record.type != DNSRecord.TYPE_NS)
+        continue;
+      if (first == null) {
+        if (!isCloser(record, question, current))
+          continue;
+        first = record;
+      }
+      if (DNSMessage.nameEqualsIgnoreCase(record.data, record.nameOffset, first.data, first.nameOffset))
+        nameservers.add(record);
+    }
+    if (first == null)
+      return null;
+    List<DNSRecord> glue = new ArrayList<>();
+    for (DNSRecord record : reply.additionalRecords) {
+      if (record.type != DNSRecord.TYPE_A ||
+          !DNSMessage.isSubdomain(record.data, record.nameOffset, current.nameData, current.nameOffset))
+        continue;
+      for (DNSRecord ns : nameservers) {
+        if (DNSMessage.nameEqualsIgnoreCase(record.data, record.nameOffset, ns.data, ns.rdOffset)) {
+          glue.add(record);
+          break;
+        }
+      }
+    }
+    DNSCacheEntry delegation = DNSCacheEntry.fromRecords((byte) 0, new DNSRecord[0],
+        nameservers.toArray(new DNSRecord[0]), glue.toArray(new DNSRecord[0]));
+    DNSCache.placeDelegation(DNSQuestion.of(first.data, first.nameOffset, DNSRecord.TYPE_NS, DNSRecord.CLASS_IN),
+        delegation);
+    referrals.increment();
+    return new Zone(first.data, first.nameOffset, delegation);
+  }
+
+  private static boolean hasAnswer(final DNSMessage reply, final DNSQuestion question) {
+    for (DNSRecord record : reply.answers) {
+      if (answers(record, question))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds a reply's answers to a question to a list.
+   * @return True if there were any.
+   */
+  private static boolean addAnswers(final List<DNSRecord> answers, final DNSMessage reply, final DNSQuestion question) {
+    int before = answers.size();
+    for (DNSRecord record : reply.answers) {
+      if (answers(record, question))
+        answers.add(record);
+    }
+    return answers.size() > before;
+  }
+
+  private static boolean answers(final DNSRecord record, final DNSQuestion question) {
+    return (record.type == question.qType || question.qType == TYPE_ANY) &&
+        DNSMessage.nameEqualsIgnoreCase(record.data, record.nameOffset, question.nameData, question.nameOffset);
+  }
+
+  private static boolean inZone(final byte[] data, final int offset, final Zone zone) {
+    return DNSMessage.isSubdomain(data, offset, zone.nameData, zone.nameOffset);
+  }
+
+  private static DNSRecord findCname(final DNSMessage reply, final DNSQuestion question) {
+    for (DNSRecord record : reply.answers) {
+      if (record.type == DNSRecord.TYPE_CNAME &&
+          DNSMessage.nameEqualsIgnoreCase(record.data, record.nameOffset, question.nameData, question.nameOffset))
+        return record;
+    }
+    return null;
+  }
+
+  /**
+   * Builds the response from the final reply. Its authority section is kept only for names in
+   * the zone that sent it, and its additional section is left out, since it is only what the
+   * last nameserver chose to add.
+   * @param reply - The final reply.
+   * @param answers - The answers of every step of the chain.
+   * @param zone - The zone whose nameserver sent the reply.
+   */
+  private static DNSCacheEntry entry(final DNSMessage reply, final List<DNSRecord> answers, final Zone zone) {
+    List<DNSRecord> authority = new ArrayList<>();
+    for (DNSRecord record : reply.authorityRecords) {
+      if (inZone(record.data, record.nameOffset, zone))
+        authority.add(record);
+    }
+    return DNSCacheEntry.fromRecords(reply.header.rCode, answers.toArray(new DNSRecord[0]),
+        authority.toArray(new DNSRecord[0]), new DNSRecord[0]);
+  }
+
+  private static String name(final Zone zone) {
+    String ret = String.join(".", DNSMessage.readDomainName(zone.nameData, zone.nameOffset));
+    return ret.isEmpty() ? "." : ret;
+  }
+
+  /**
+   * @return The number of queries sent to nameservers.
+   */
+  long queries() {
+    return queries.sum();
+  }
+
+  /**
+   * @return The number of referrals followed.
+   */
+  long referrals() {
+    return referrals.sum();
+  }
+
+  /**
+   * @return The number of resolutions that started below the root thanks to a cached delegation.
+   */
+  long delegationHits() {
+    return delegationHits.sum();
+  }
+
+  /**
+   * @return The number of queries to nameservers that got no reply in time.
+   */
+  long timeouts() {
+    return network.timeouts();
+  }
+
+  /**
+   * @return The number of errors reading replies from nameservers.
+   */
+  long receiveErrors() {
+    return network.receiveErrors();
+  }
+
+  void close() throws IOException {
+    network.close();
+  }
+
+  @Override
+  public String toString() {
+    return "Queries:" + queries() + " Referrals:" + referrals() + " DelegationHits:" + delegationHits();
+  }
+}
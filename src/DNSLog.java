@@ -0,0 +1,101 @@
+package MSD;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+//The server's log. Lines are handed to a background thread that writes them out, so a slow
+//console never holds up a query; when it falls too far behind, lines are dropped and counted.
+//Events such as an upstream going down are always logged. Per-query lines are only logged for a
+//sampled share of queries, none by default, and callers check sampled() before building them.
+public class DNSLog {
+  // Most lines waiting to be written before new ones are dropped.
+  static final int QUEUE_CAPACITY = 10_000;
+
+  private static volatile boolean enabled = true;
+  private static volatile double sampleRate;
+  private static final BlockingQueue<String> lines = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private static final LongAdder dropped = new LongAdder();
+
+  static {
+    Thread writer = new Thread(DNSLog::writeLines, "dns-log");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(DNSLog::drain, "dns-log-exit"));
+  }
+
+  /**
+   * Turns all logging on or off.
+   * @param on - Whether lines are logged.
+   */
+  static void setEnabled(final boolean on) {
+    enabled = on;
+  }
+
+  /**
+   * Sets the share of queries whose per-query lines are logged.
+   * @param rate - Between 0, for none, and 1, for every query.
+   */
+  static void setSampleRate(final double rate) {
+    sampleRate = rate;
+  }
+
+  static boolean enabled() {
+    return enabled;
+  }
+
+  static double sampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @return True if a per-query line should be logged this time.
+   */
+  static boolean sampled() {
+    double rate = sampleRate;
+    return enabled && rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+  }
+
+  /**
+   * Queues a line to be written.
+   * @param line - The line.
+   */
+  static void log(final String line) {
+    if (enabled && !lines.offer(line))
+      dropped.increment();
+  }
+
+  /**
+   * @return The number of lines dropped because the writer fell behind.
+   */
+  static long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Writes out the queued lines in the calling thread, for use while the server shuts down.
+   */
+  static void drain() {
+    String line;
+    while ((line = lines.poll()) != null)
+      System.out.println(line);
+    System.out.flush();
+  }
+
+  private static void writeLines() {
+    PrintStream out = System.out;
+    while (true) {
+      try {
+        out.println(lines.take());
+        String line;
+        while ((line = lines.poll()) != null)
+          out.println(line);
+        out.flush();
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+}
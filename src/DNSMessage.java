@@ -1,89 +1,334 @@
 package MSD;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 
 public class DNSMessage {
+   // Response code for a server failure, used when upstream gives no answer.
+   static final byte RCODE_SERVER_FAILURE = 2;
+   // Response code for a name that does not exist, NXDOMAIN.
+   static final byte RCODE_NAME_ERROR = 3;
+   // Most compression pointers followed while reading one name.
+   static final int MAX_POINTER_JUMPS = 32;
+   // Longest a domain name may be on the wire.
+   static final int MAX_NAME_LENGTH = 255;
+
    byte[] rawData;
    DNSHeader header = new DNSHeader();
    DNSQuestion[] questions = null;
    DNSRecord[] answers = null;
    DNSRecord[] authorityRecords = null;
    DNSRecord[] additionalRecords = null;
-   HashMap<String,Integer> domainNameLocations = new HashMap<>();
+   // The index in rawData the next decode step reads from.
+   int position;
+   // Whether this message is still used after its reply was built, so it must not be recycled.
+   private boolean retained;
+
+   // An empty section, shared by every message decoded without records there.
+   private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+   // Each thread's spare message for decodePooled, in a single slot.
+   private static final ThreadLocal<DNSMessage[]> SPARE = ThreadLocal.withInitial(() -> new DNSMessage[1]);
 
 
   /**
    * Acts as the constructor for an DNSMessage object as the object is created
-   * When a byte array is read in.
+   * When a byte array is read in. Names and rdData are not copied out of the bytes,
+   * the decoded questions and records point into them.
    * @param bytes - A byte array taken from the client's input stream.
    * @return - a DNSMessage object
    * @throws IOException
    */
   static DNSMessage decodeMessage(final byte[] bytes) throws IOException {
-    DNSMessage ret = new DNSMessage();
-    ret.rawData = bytes;
-    ByteArrayInputStream input = new ByteArrayInputStream(bytes);
-    ret.header = DNSHeader.decodeHeader(input);
-    ret.questions = new DNSQuestion[ret.header.qdCount];
-    for (int i = 0; i < ret.questions.length ; i++)
-      ret.questions[i] = DNSQuestion.decodeQuestion(input, ret);
-    ret.answers = new DNSRecord[ret.header.anCount];
-    for (int i = 0; i < ret.header.anCount; i++)
-      ret.answers[i] = DNSRecord.decodeRecord(input, ret);
-    ret.authorityRecords = new DNSRecord[ret.header.nsCount];
-    for (int i = 0; i < ret.header.nsCount; i++)
-      ret.authorityRecords[i] = DNSRecord.decodeRecord(input, ret);
-    ret.additionalRecords = new DNSRecord[ret.header.arCount];
-      for (int i = 0; i < ret.header.arCount; i++)
-        ret.additionalRecords[i] = DNSRecord.decodeRecord(input, ret);
-    return ret;
+    return new DNSMessage().decode(bytes);
   }
 
   /**
-   * Used to read in the domain name from the client's byte array input stream.
-   * This should be called when reading a requested domain for the first time.
-   * @param input - An input stream of the client's request.
-   * @return - A string array containing the domain of the requested record
-   * broken parnsed by the "." in the URL.
+   * Decodes a client's request into the calling thread's spare message, if it has one, so
+   * serving a query that is answered at once allocates no message. The message should be
+   * handed back with recycle() once its reply is built.
+   * @param bytes - A byte array taken from the client's input stream.
+   * @return - The decoded message.
    * @throws IOException
    */
-  String[] readDomainName(final InputStream input) throws IOException {
-    ArrayList<char[]> charArr = new ArrayList<>();
-    int i = 0;
+  static DNSMessage decodePooled(final byte[] bytes) throws IOException {
+    DNSMessage[] spare = SPARE.get();
+    DNSMessage ret = spare[0];
+    if (ret == null)
+      ret = new DNSMessage();
+    spare[0] = null;
+    ret.retained = false;
+    return ret.decode(bytes);
+  }
+
+  /**
+   * Marks this message as used past its reply, such as by an upstream resolution, so
+   * recycle() leaves it alone.
+   */
+  void retain() {
+    retained = true;
+  }
+
+  /**
+   * Hands a message from decodePooled back to the calling thread for its next request,
+   * unless it was retained. Nothing may use the message, or its questions and records,
+   * afterwards.
+   */
+  void recycle() {
+    if (!retained)
+      SPARE.get()[0] = this;
+  }
+
+  /**
+   * Decodes bytes into this message, overwriting its header and the questions and records
+   * of its sections where the counts allow instead of creating new ones.
+   * @param bytes - The message bytes.
+   * @return - This message.
+   * @throws IOException
+   */
+  private DNSMessage decode(final byte[] bytes) throws IOException {
+    rawData = bytes;
+    header.read(bytes);
+    position = DNSHeader.HEADER_LENGTH;
+    DNSQuestion[] previous = questions;
+    int count = Short.toUnsignedInt(header.qdCount);
+    if (previous == null || previous.length != count)
+      questions = new DNSQuestion[count];
+    for (int i = 0; i < count; i++)
+      questions[i] = DNSQuestion.decodeQuestion(this, previous != null && i < previous.length ? previous[i] : null);
+    answers = decodeRecords(answers, header.anCount);
+    authorityRecords = decodeRecords(authorityRecords, header.nsCount);
+    additionalRecords = decodeRecords(additionalRecords, header.arCount);
+    return this;
+  }
+
+  /**
+   * Decodes one section of records.
+   * @param previous - The section's records from the message decoded before, or null.
+   * @param count - The number of records in the section, from the header.
+   * @return - The section, in previous if it is the right length.
+   * @throws IOException
+   */
+  private DNSRecord[] decodeRecords(final DNSRecord[] previous, final short count) throws IOException {
+    int length = Short.toUnsignedInt(count);
+    DNSRecord[] ret = previous != null && previous.length == length ? previous :
+        length == 0 ? NO_RECORDS : new DNSRecord[length];
+    for (int i = 0; i < length; i++)
+      ret[i] = DNSRecord.decodeRecord(this, previous != null && i < previous.length ? previous[i] : null);
+    return ret;
+  }
+
+  /**
+   * Checks that a domain name is well formed, following any compression pointers, and
+   * finds where it ends. Every other name method expects a name that passed this check.
+   * @param data - The message bytes.
+   * @param offset - The index of the first byte of the name.
+   * @param limit - The index the name in place must end before.
+   * @return - The index just past the name where it is stored, not where pointers lead.
+   * @throws IOException if the name runs out of bounds, is too long or loops.
+   */
+  static int nameEnd(final byte[] data, final int offset, final int limit) throws IOException {
+    int end = -1;
+    int pos = offset;
+    int jumps = 0;
+    int length = 1;
     while (true) {
-      int newByte = input.read();
-      if (newByte == 0) {
-        String[] ret = new String[charArr.size()];
-        for (int j = 0; j < ret.length; j++)
-          ret[j] = new String(charArr.get(j));
-        return ret;
+      if (pos >= (end < 0 ? limit : data.length))
+        throw new IOException("Domain name runs past the end of the message");
+      int labelLength = data[pos] & 0xff;
+      if ((labelLength & 0xC0) == 0xC0) {
+        if (pos + 1 >= (end < 0 ? limit : data.length) || ++jumps > MAX_POINTER_JUMPS)
+          throw new IOException("Invalid compression pointer");
+        if (end < 0)
+          end = pos + 2;
+        pos = (labelLength & 0x3F) << 8 | (data[pos + 1] & 0xff);
+        continue;
       }
-      char[] string = new char[newByte];
-      charArr.add(string);
-      for (int j = 0; j < charArr.get(i).length; j++)
-        charArr.get(i)[j] = (char) input.read();
-      i++;
+      if ((labelLength & 0xC0) != 0)
+        throw new IOException("Unsupported label type");
+      if (labelLength == 0)
+        return end < 0 ? pos + 1 : end;
+      length += labelLength + 1;
+      if (length > MAX_NAME_LENGTH)
+        throw new IOException("Domain name too long");
+      pos += labelLength + 1;
     }
   }
 
   /**
-   * Used to read the domain name from a previous location in the byte array.
-   * @param firstByte - The index of the first byte of the domain name  inside
-   * of the client's requested message byte array.
-   * @return
-   * @throws IOException
+   * @param data - The bytes holding a checked name.
+   * @param offset - The index of the name.
+   * @return - The index just past the name where it is stored.
+   */
+  static int skipName(final byte[] data, int offset) {
+    while (true) {
+      int length = data[offset] & 0xff;
+      if ((length & 0xC0) == 0xC0)
+        return offset + 2;
+      if (length == 0)
+        return offset + 1;
+      offset += length + 1;
+    }
+  }
+
+  /**
+   * Follows compression pointers until a name's next label.
+   * @param data - The message bytes.
+   * @param pos - The index of a label or pointer.
+   * @return - The index of the next length byte that is not a pointer.
+   */
+  static int followPointers(final byte[] data, int pos) {
+    while ((data[pos] & 0xC0) == 0xC0)
+      pos = (data[pos] & 0x3F) << 8 | (data[pos + 1] & 0xff);
+    return pos;
+  }
+
+  /**
+   * Compares two domain names label by label, ignoring ASCII case (RFC 4343).
+   * @param a - The bytes holding the first name.
+   * @param aOffset - The index of the first name.
+   * @param b - The bytes holding the second name.
+   * @param bOffset - The index of the second name.
+   * @return True if the names are the same.
+   */
+  static boolean nameEqualsIgnoreCase(final byte[] a, final int aOffset, final byte[] b, final int bOffset) {
+    int i = aOffset;
+    int j = bOffset;
+    while (true) {
+      i = followPointers(a, i);
+      j = followPointers(b, j);
+      int length = a[i] & 0xff;
+      if (length != (b[j] & 0xff))
+        return false;
+      if (length == 0)
+        return true;
+      for (int k = 1; k <= length; k++) {
+        if (toLower(a[i + k]) != toLower(b[j + k]))
+          return false;
+      }
+      i += length + 1;
+      j += length + 1;
+    }
+  }
+
+  // Lower cases an ASCII letter, leaving every other byte as it is.
+  static byte toLower(final byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  /**
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   * @return The number of labels in the name, 0 for the root.
+   */
+  static int labelCount(final byte[] data, final int offset) {
+    int ret = 0;
+    int pos = followPointers(data, offset);
+    while (data[pos] != 0) {
+      ret++;
+      pos = followPointers(data, pos + (data[pos] & 0xff) + 1);
+    }
+    return ret;
+  }
+
+  /**
+   * Checks whether a name is at or below a zone's name, ignoring ASCII case.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   * @param zoneData - The bytes holding the zone's name.
+   * @param zoneOffset - The index of the zone's name.
+   * @return True if the zone's name is a suffix of the name.
+   */
+  static boolean isSubdomain(final byte[] data, final int offset, final byte[] zoneData, final int zoneOffset) {
+    int extra = labelCount(data, offset) - labelCount(zoneData, zoneOffset);
+    if (extra < 0)
+      return false;
+    int pos = followPointers(data, offset);
+    for (int i = 0; i < extra; i++)
+      pos = followPointers(data, pos + (data[pos] & 0xff) + 1);
+    return nameEqualsIgnoreCase(data, pos, zoneData, zoneOffset);
+  }
+
+  /**
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   * @return A hash of the name consistent with nameEqualsIgnoreCase.
+   */
+  static int nameHash(final byte[] data, final int offset) {
+    int ret = 1;
+    int pos = followPointers(data, offset);
+    while (data[pos] != 0) {
+      int length = data[pos] & 0xff;
+      for (int k = 0; k <= length; k++)
+        ret = 31 * ret + toLower(data[pos + k]);
+      pos = followPointers(data, pos + length + 1);
+    }
+    return ret;
+  }
+
+  /**
+   * Copies a name out of the bytes holding it, uncompressed and lower cased.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   * @return - The name in wire format, in an array of its own length.
    */
-  String[] readDomainName(final int firstByte) throws IOException {
-    ByteArrayInputStream input = new ByteArrayInputStream(rawData);
-    input.reset();
-    input.skip(firstByte);
-    return readDomainName(input);
+  static byte[] canonicalName(final byte[] data, final int offset) {
+    int length = 1;
+    for (int pos = followPointers(data, offset); data[pos] != 0; pos = followPointers(data, pos + (data[pos] & 0xff) + 1))
+      length += (data[pos] & 0xff) + 1;
+    byte[] ret = new byte[length];
+    int i = 0;
+    for (int pos = followPointers(data, offset); data[pos] != 0; pos = followPointers(data, pos + (data[pos] & 0xff) + 1)) {
+      int labelLength = data[pos] & 0xff;
+      ret[i++] = (byte) labelLength;
+      for (int k = 1; k <= labelLength; k++)
+        ret[i++] = toLower(data[pos + k]);
+    }
+    return ret;
+  }
+
+  /**
+   * Lower cases an uncompressed name in place.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   */
+  static void lowerCaseName(final byte[] data, final int offset) {
+    for (int pos = offset; data[pos] != 0; pos += (data[pos] & 0xff) + 1) {
+      for (int k = pos + 1; k <= pos + (data[pos] & 0xff); k++)
+        data[k] = toLower(data[k]);
+    }
+  }
+
+  /**
+   * Reads the labels of a domain name. Only used for printing, the codec itself
+   * works on the name's bytes.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   * @return - A string array containing the domain broken parnsed by the "." in the URL.
+   * The root domain is an empty array.
+   */
+  static String[] readDomainName(final byte[] data, final int offset) {
+    ArrayList<String> labels = new ArrayList<>();
+    int pos = followPointers(data, offset);
+    while (data[pos] != 0) {
+      int length = data[pos] & 0xff;
+      labels.add(new String(data, pos + 1, length, StandardCharsets.ISO_8859_1));
+      pos = followPointers(data, pos + length + 1);
+    }
+    return labels.toArray(new String[0]);
+  }
+
+  /**
+   * @return The message's OPT pseudo-record, or null if it has none.
+   */
+  DNSRecord findOpt() {
+    for (DNSRecord record : additionalRecords) {
+      if (record.type == DNSRecord.TYPE_OPT)
+        return record;
+    }
+    return null;
   }
 
   @Override
@@ -109,106 +354,196 @@ public class DNSMessage {
   }
 
   /**
-   * Constructs the response DNS message for the client's requested message.
+   * Constructs the response DNS message for the client's requested message from a cached
+   * response. Every cached record is copied with its TTL lowered to the time it has left.
    * @param request - The client's request message
+   * @param cached - The cached response sections for the request's question.
+   * @param staleTtl - The TTL every record is given when serving an expired entry, or -1.
    * @return
    */
-  static DNSMessage buildResponse(final DNSMessage request){
+  static DNSMessage buildResponse(final DNSMessage request, final DNSCacheEntry cached, final int staleTtl){
     DNSMessage ret = new DNSMessage();
     DNSHeader.buildResponseHeader(request, ret);
-    ret.questions = new DNSQuestion[ret.header.qdCount];
-    ret.answers = new DNSRecord[ret.header.anCount];
-    ret.authorityRecords = new DNSRecord[ret.header.nsCount];
-    ret.additionalRecords = new DNSRecord[ret.header.arCount];
     ret.questions = request.questions;
-    ret.answers[0] = DNSCache.getRecord(request.questions[0]);
-    ret.answers[0].name[0].equals(request.questions[0].qName);
-    ret.answers[0].type = request.questions[0].qType;
-    ret.answers[0].class_ = request.questions[0].qClass;
-    ret.answers[0].ttl = 20532;
-    ret.authorityRecords = request.authorityRecords;
-    ret.additionalRecords = request.additionalRecords;
+    ret.answers = DNSRecord.withRemainingTtl(cached.answers, staleTtl);
+    ret.authorityRecords = DNSRecord.withRemainingTtl(cached.authorityRecords, staleTtl);
+    ret.additionalRecords = DNSRecord.withRemainingTtl(cached.additionalRecords, staleTtl);
+    ret.header.rCode = cached.rCode;
+    ret.header.anCount = (short) ret.answers.length;
+    ret.header.nsCount = (short) ret.authorityRecords.length;
+    ret.header.arCount = (short) ret.additionalRecords.length;
+    ret.addOpt(request);
+    return ret;
+  }
+
+  /**
+   * Constructs the response sent over UDP when the full one is larger than the client
+   * accepts: the question alone with the TC bit set, telling the client to retry over TCP.
+   * @param request - The client's request message
+   * @param rCode - The response code of the full response.
+   * @return
+   */
+  static DNSMessage buildTruncatedResponse(final DNSMessage request, final byte rCode){
+    DNSMessage ret = buildErrorResponse(request, rCode);
+    ret.header.tc = 1;
     return ret;
   }
 
-  byte[] toBytes() throws IOException {
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    header.writeBytes(bos);
+  /**
+   * Adds the server's OPT record to a response if the request carried one, since a
+   * response must not have one otherwise.
+   * @param request - The client's request message
+   */
+  void addOpt(final DNSMessage request){
+    DNSRecord requestOpt = request.findOpt();
+    if (requestOpt == null)
+      return;
+    DNSRecord[] records = Arrays.copyOf(additionalRecords, additionalRecords.length + 1);
+    records[additionalRecords.length] = DNSRecord.newOpt(requestOpt.dnssecOk());
+    additionalRecords = records;
+    header.arCount = (short) records.length;
+  }
+
+  /**
+   * @return The largest UDP response the sender of this request accepts.
+   */
+  int maxUdpResponse(){
+    DNSRecord opt = findOpt();
+    return opt == null ? DNSServer.CLASSIC_UDP_PAYLOAD : Math.min(opt.udpPayloadSize(), DNSServer.MAX_UDP_PAYLOAD);
+  }
+
+  /**
+   * Adds an OPT record to a query that has none, so the upstream may send answers
+   * larger than 512 bytes instead of truncating them.
+   * @param query - A query in wire format without an OPT record.
+   * @return - A copy of the query with an OPT record appended.
+   */
+  static byte[] withOpt(final byte[] query){
+    DNSOutputBuffer os = DNSOutputBuffer.forThread();
+    os.writeBytes(query, 0, query.length);
+    os.setShort(10, Short.toUnsignedInt(getShort(query, 10)) + 1);
+    DNSRecord.writeOpt(os, false);
+    return os.toByteArray();
+  }
+
+  /**
+   * Builds a non-recursive query for a question, for asking authoritative servers. The ID is
+   * left 0 for the forwarder to fill in, and an OPT record allows answers above 512 bytes.
+   * @param question - The question to ask.
+   * @return - The query in wire format, with the name uncompressed.
+   */
+  static byte[] buildQuery(final DNSQuestion question){
+    DNSOutputBuffer os = DNSOutputBuffer.forThread();
+    os.writeShort(0);
+    os.writeShort(0);
+    os.writeShort(1);
+    os.writeShort(0);
+    os.writeShort(0);
+    os.writeShort(1);
+    question.writeBytes(os, null);
+    DNSRecord.writeOpt(os, false);
+    return os.toByteArray();
+  }
+
+  /**
+   * Constructs an answerless response carrying an error code for the client's requested message.
+   * @param request - The client's request message
+   * @param rCode - The response code to send back.
+   * @return
+   */
+  static DNSMessage buildErrorResponse(final DNSMessage request, final byte rCode){
+    DNSMessage ret = new DNSMessage();
+    DNSHeader.buildResponseHeader(request, ret);
+    ret.header.rCode = rCode;
+    ret.header.anCount = 0;
+    ret.header.nsCount = 0;
+    ret.header.arCount = 0;
+    ret.questions = request.questions;
+    ret.answers = new DNSRecord[0];
+    ret.authorityRecords = new DNSRecord[0];
+    ret.additionalRecords = new DNSRecord[0];
+    ret.addOpt(request);
+    return ret;
+  }
+
+  /**
+   * Encodes the message into this thread's reusable output buffer.
+   * @return - A copy of the encoded bytes.
+   */
+  byte[] toBytes() {
+    DNSOutputBuffer os = DNSOutputBuffer.forThread();
+    writeBytes(os);
+    return os.toByteArray();
+  }
+
+  /**
+   * Encodes the message, compressing names against this thread's reusable compression table.
+   * @param os - The buffer to write to.
+   */
+  void writeBytes(final DNSOutputBuffer os) {
+    DNSCompressionTable compression = DNSCompressionTable.forThread(os.size());
+    header.writeBytes(os);
     for (int i = 0; i < questions.length; i++)
-      questions[i].writeBytes(bos, domainNameLocations);
+      questions[i].writeBytes(os, compression);
     for (int i = 0; i < answers.length; i++)
-      answers[i].writeBytes(bos, domainNameLocations);
+      answers[i].writeBytes(os, compression);
     for (int i = 0; i < authorityRecords.length; i++)
-      authorityRecords[i].writeBytes(bos, domainNameLocations);
-    if (additionalRecords[0] != null) {
-      for (int i = 0; i < additionalRecords.length; i++)
-        additionalRecords[i].writeBytes(bos, domainNameLocations);
-    }
-    return bos.toByteArray();
+      authorityRecords[i].writeBytes(os, compression);
+    for (int i = 0; i < additionalRecords.length; i++)
+      additionalRecords[i].writeBytes(os, compression);
   }
 
   /**
-   * Writes the domain name in an output stream. To be used while constructing
+   * Writes the domain name in an output buffer. To be used while constructing
    * teh reply message.
-   * @param os - The ByteArrayOutputStream constructing the reply byte array.
-   * @param domainLocations - A hash map of pairs of domains and the location
-   * of that domain within the byte array.
-   * @param domainPieces - The parts of the domain parsed by ".".
-   * @throws IOException
+   * @param os - The buffer constructing the reply.
+   * @param compression - The names already in the reply, or null to write the name uncompressed.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
    */
-  static void writeDomainName(final ByteArrayOutputStream os, final HashMap<String,Integer> domainLocations, final String[] domainPieces)
-      throws IOException {
-    if(domainPieces[0].equals("0")){
-      os.write(0);
+  static void writeDomainName(final DNSOutputBuffer os, final DNSCompressionTable compression,
+      final byte[] data, final int offset) {
+    if (compression != null) {
+      compression.writeName(os, data, offset);
       return;
     }
-    String domain = octetsToString(domainPieces);
-    if (domainLocations.containsKey(domain)){
-      short location = domainLocations.get(domain).shortValue();
-      short mask = (short) 49152;
-      short firstBytes =(short) (mask | location);
-      os.write(shortToBytes(firstBytes));
-    } else {
-      domainLocations.put(domain, os.size());
-      for (int i = 0; i < domainPieces.length; i++){
-        os.write(domainPieces[i].length());
-        os.write(domainPieces[i].getBytes());
-      }
-      os.write(0);
+    int pos = followPointers(data, offset);
+    while (data[pos] != 0) {
+      int length = data[pos] & 0xff;
+      os.writeBytes(data, pos, length + 1);
+      pos = followPointers(data, pos + length + 1);
     }
+    os.writeByte(0);
   }
 
   /**
-   * Merges an array of string into a single string.
-   * @param octets
-   * @return A string of the combine octects.
+   * Reads a big endian short.
+   * @param data - The bytes to read from.
+   * @param offset - The index of the short's first byte.
+   * @return The two bytes merged into a short.
    */
-  static String octetsToString(final String[] octets){
-    String ret = null;
-    for (int i = 0; i < octets.length; i++)
-      ret += octets[i];
-    return ret;
+  static short getShort (final byte[] data, final int offset) {
+    return (short) ((data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff));
   }
 
   /**
-   *  Converts a short into two bytes.
-   * @param s
-   * @return an array of two bytes. MSB is contain in index 0.
+   * Reads a big endian int.
+   * @param data - The bytes to read from.
+   * @param offset - The index of the int's first byte.
+   * @return The four bytes merged into an int.
    */
-  public static byte[] shortToBytes (final short s){
-    byte[] ret = new byte[2];
-    ret[0] = (byte) (s >> 8 & 0xff);
-    ret[1] = (byte) (s & 0xff);
-    return ret;
+  static int getInt (final byte[] data, final int offset) {
+    return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+        (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
   }
 
   /**
-   * Reads in a short from and inputStream.
-   * @param buf
-   * @return The two read in bytes merged into a byte.
+   * Checks that the message has enough bytes left to read from the current position.
+   * @param count - The number of bytes about to be read.
    * @throws IOException
    */
-  public static short getShort (final InputStream buf) throws IOException {
-    return (short) ((buf.read() << 8) | buf.read());
+  void require(final int count) throws IOException {
+    if (position + count > rawData.length)
+      throw new IOException("Message truncated at byte " + position);
   }
 }
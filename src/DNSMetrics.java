@@ -0,0 +1,253 @@
+package MSD;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//The server's metrics: queries by type, responses by code, the cache, upstream and prefetch
+//counters kept elsewhere, and a latency histogram for each stage of handling a query. They are
+//served over HTTP in the Prometheus text format, from the loopback address only.
+public class DNSMetrics {
+  // The quantiles reported for each histogram.
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  // Query types from 0 to 255 are counted apart; the rest together in the last slot.
+  private static final int OTHER_TYPE = 256;
+
+  // How long each stage of handling a query takes.
+  static final DNSHistogram decode = new DNSHistogram();
+  static final DNSHistogram cacheLookup = new DNSHistogram();
+  static final DNSHistogram upstream = new DNSHistogram();
+  static final DNSHistogram encode = new DNSHistogram();
+  static final DNSHistogram send = new DNSHistogram();
+  // Round trip times of the queries answered by upstreams or nameservers.
+  static final DNSHistogram upstreamRtt = new DNSHistogram();
+
+  private static final AtomicLongArray queriesByType = new AtomicLongArray(OTHER_TYPE + 1);
+  private static final AtomicLongArray responsesByRCode = new AtomicLongArray(16);
+
+  private static HttpServer httpServer;
+
+  /**
+   * Counts a client's query by the type of each of its questions.
+   * @param message - The query.
+   */
+  static void onQuery(final DNSMessage message) {
+    for (DNSQuestion question : message.questions)
+      queriesByType.incrementAndGet(Math.min(Short.toUnsignedInt(question.qType), OTHER_TYPE));
+  }
+
+  /**
+   * Counts a reply sent to a client by its response code.
+   * @param reply - The reply bytes.
+   */
+  static void onReply(final byte[] reply) {
+    if (reply.length >= DNSHeader.HEADER_LENGTH)
+      responsesByRCode.incrementAndGet(reply[3] & 0xF);
+  }
+
+  /**
+   * @return Every metric in the Prometheus text exposition format.
+   */
+  static String prometheus() {
+    StringBuilder out = new StringBuilder(8192);
+    type(out, "dns_queries_total", "counter");
+    for (int i = 0; i <= OTHER_TYPE; i++) {
+      long count = queriesByType.get(i);
+      if (count != 0)
+        sample(out, "dns_queries_total", "type", typeName(i), count);
+    }
+    type(out, "dns_responses_total", "counter");
+    for (int i = 0; i < 16; i++) {
+      long count = responsesByRCode.get(i);
+      if (count != 0)
+        sample(out, "dns_responses_total", "rcode", rCodeName(i), count);
+    }
+
+    counter(out, "dns_cache_hits_total", DNSCache.hits());
+    counter(out, "dns_cache_negative_hits_total", DNSCache.negativeHits());
+    counter(out, "dns_cache_misses_total", DNSCache.misses());
+    counter(out, "dns_cache_evictions_total", DNSCache.evictions());
+    counter(out, "dns_cache_expirations_total", DNSCache.expirations());
+    counter(out, "dns_stale_answers_total", DNSServer.staleAnswers());
+    counter(out, "dns_udp_overloaded_total", DNSUdpServer.overloaded());
+    type(out, "dns_cache_entries", "gauge");
+    sample(out, "dns_cache_entries", "table", "all", DNSCache.size());
+    sample(out, "dns_cache_entries", "table", "negative", DNSCache.negativeSize());
+    sample(out, "dns_cache_entries", "table", "delegation", DNSCache.delegationSize());
+    counter(out, "dns_prefetches_total", DNSPrefetcher.prefetches());
+    counter(out, "dns_prefetches_rate_limited_total", DNSPrefetcher.prefetchesRateLimited());
+    counter(out, "dns_prefetched_hits_total", DNSPrefetcher.prefetchedHits());
+
+    counter(out, "dns_upstream_queries_total", DNSServer.upstreamQueries());
+    counter(out, "dns_coalesced_queries_total", DNSServer.coalescedQueries());
+    DNSUpstreams upstreams = DNSServer.upstreams();
+    if (upstreams != null) {
+      counter(out, "dns_upstream_timeouts_total", upstreams.timeouts());
+      counter(out, "dns_upstream_receive_errors_total", upstreams.receiveErrors());
+      counter(out, "dns_upstream_hedges_total", upstreams.hedges());
+      counter(out, "dns_upstream_failovers_total", upstreams.failovers());
+      counter(out, "dns_upstream_probes_total", upstreams.probes());
+      upstreams.writeMetrics(out);
+    }
+    DNSIterativeResolver iterative = DNSServer.iterativeResolver();
+    if (iterative != null) {
+      counter(out, "dns_upstream_timeouts_total", iterative.timeouts());
+      counter(out, "dns_upstream_receive_errors_total", iterative.receiveErrors());
+      counter(out, "dns_iterative_queries_total", iterative.queries());
+      counter(out, "dns_iterative_referrals_total", iterative.referrals());
+      counter(out, "dns_iterative_delegation_hits_total", iterative.delegationHits());
+    }
+    summary(out, "dns_upstream_rtt_seconds", null, upstreamRtt);
+
+    type(out, "dns_stage_duration_seconds", "summary");
+    summary(out, "dns_stage_duration_seconds", "decode", decode);
+    summary(out, "dns_stage_duration_seconds", "cache_lookup", cacheLookup);
+    summary(out, "dns_stage_duration_seconds", "upstream", upstream);
+    summary(out, "dns_stage_duration_seconds", "encode", encode);
+    summary(out, "dns_stage_duration_seconds", "send", send);
+
+    type(out, "dns_zones", "gauge");
+    sample(out, "dns_zones", null, null, DNSZones.size());
+    counter(out, "dns_log_dropped_total", DNSLog.dropped());
+    return out.toString();
+  }
+
+  private static String typeName(final int type) {
+    switch (type) {
+      case DNSRecord.TYPE_A: return "A";
+      case DNSRecord.TYPE_NS: return "NS";
+      case DNSRecord.TYPE_CNAME: return "CNAME";
+      case DNSRecord.TYPE_SOA: return "SOA";
+      case DNSRecord.TYPE_PTR: return "PTR";
+      case DNSRecord.TYPE_MX: return "MX";
+      case DNSZoneParser.TYPE_TXT: return "TXT";
+      case DNSZone.TYPE_AAAA: return "AAAA";
+      case DNSRecord.TYPE_SRV: return "SRV";
+      case DNSZone.TYPE_ANY: return "ANY";
+      case OTHER_TYPE: return "other";
+      default: return "TYPE" + type;
+    }
+  }
+
+  private static String rCodeName(final int rCode) {
+    switch (rCode) {
+      case 0: return "NOERROR";
+      case 1: return "FORMERR";
+      case DNSMessage.RCODE_SERVER_FAILURE: return "SERVFAIL";
+      case DNSMessage.RCODE_NAME_ERROR: return "NXDOMAIN";
+      case 4: return "NOTIMP";
+      case 5: return "REFUSED";
+      default: return "RCODE" + rCode;
+    }
+  }
+
+  static void type(final StringBuilder out, final String name, final String type) {
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void counter(final StringBuilder out, final String name, final long value) {
+    type(out, name, "counter");
+    sample(out, name, null, null, value);
+  }
+
+  /**
+   * Appends one sample.
+   * @param out - Where the sample is appended.
+   * @param name - The metric's name.
+   * @param label - The name of the sample's label, or null for none.
+   * @param labelValue - The label's value.
+   * @param value - The sample's value.
+   */
+  static void sample(final StringBuilder out, final String name, final String label, final String labelValue,
+      final double value) {
+    out.append(name);
+    if (label != null)
+      out.append('{').append(label).append("=\"").append(labelValue).append("\"}");
+    out.append(' ');
+    if (value == Math.rint(value) && Math.abs(value) < 1e15)
+      out.append((long) value);
+    else
+      out.append(String.format(Locale.ROOT, "%.6g", value));
+    out.append('\n');
+  }
+
+  /**
+   * Appends a histogram as a Prometheus summary in seconds.
+   * @param stage - The value of the stage label, or null for a summary of its own.
+   */
+  private static void summary(final StringBuilder out, final String name, final String stage,
+      final DNSHistogram histogram) {
+    if (stage == null)
+      type(out, name, "summary");
+    String labels = stage == null ? "" : "stage=\"" + stage + "\",";
+    long[] values = histogram.quantiles(QUANTILES);
+    for (int i = 0; i < QUANTILES.length; i++) {
+      out.append(name).append('{').append(labels).append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+          .append(String.format(Locale.ROOT, "%.6f", values[i] / 1e6)).append('\n');
+    }
+    String suffix = stage == null ? " " : "{stage=\"" + stage + "\"} ";
+    out.append(name).append("_sum").append(suffix)
+        .append(String.format(Locale.ROOT, "%.6f", histogram.sumMicros() / 1e6)).append('\n');
+    out.append(name).append("_count").append(suffix).append(histogram.count()).append('\n');
+  }
+
+  /**
+   * Serves the metrics at http://127.0.0.1:port/metrics from a thread of its own. Logging is
+   * turned on or off at /log?enabled=true|false, and its sample rate set at /log?sample=0.01.
+   * @param port - The port to listen on.
+   * @throws IOException If the port cannot be bound.
+   */
+  static synchronized void serve(final int port) throws IOException {
+    if (httpServer != null)
+      return;
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext("/metrics", exchange -> respond(exchange, 200, "text/plain; version=0.0.4", prometheus()));
+    httpServer.createContext("/log", DNSMetrics::configureLog);
+    httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "dns-metrics");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    httpServer.start();
+  }
+
+  private static void configureLog(final HttpExchange exchange) throws IOException {
+    URI uri = exchange.getRequestURI();
+    String query = uri.getRawQuery();
+    try {
+      if (query != null) {
+        for (String parameter : query.split("&")) {
+          int equals = parameter.indexOf('=');
+          String name = equals < 0 ? parameter : parameter.substring(0, equals);
+          String value = equals < 0 ? "" : parameter.substring(equals + 1);
+          if (name.equals("enabled"))
+            DNSLog.setEnabled(Boolean.parseBoolean(value));
+          else if (name.equals("sample"))
+            DNSLog.setSampleRate(Math.max(0, Math.min(1, Double.parseDouble(value))));
+        }
+      }
+    } catch (NumberFormatException e) {
+      respond(exchange, 400, "text/plain", "Bad sample rate\n");
+      return;
+    }
+    respond(exchange, 200, "text/plain", "enabled=" + DNSLog.enabled() + " sample=" + DNSLog.sampleRate() + "\n");
+  }
+
+  private static void respond(final HttpExchange exchange, final int status, final String contentType,
+      final String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package MSD;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+//Cached responses kept outside the Java heap, for caches of tens of millions of entries that
+//would otherwise cost the garbage collector hundreds of objects each. Every segment holds its
+//entries in one direct buffer, written one after another as a ring: each entry is a small
+//header, the question and the response in wire format. When the ring is full the oldest entries
+//are overwritten, so eviction is first in first out rather than least recently used.
+//Entries are found through an open addressing index of longs, each the question's hash and the
+//entry's place in the ring, which the collector never has to look inside.
+//An entry is decoded into a DNSCacheEntry every time it is read.
+public class DNSOffHeapStore {
+  // Entry layout: length, hash, expiry, time stored, hits, flags, key length, key, response.
+  private static final int LENGTH = 0;
+  private static final int HASH = 4;
+  private static final int EXPIRES = 8;
+  private static final int STORED = 16;
+  private static final int HITS = 24;
+  private static final int FLAGS = 28;
+  private static final int KEY_LENGTH = 29;
+  private static final int HEADER = 31;
+  // Set while the entry is in the index. Replaced and expired entries keep their space
+  // until the ring comes round to them.
+  private static final byte FLAG_LIVE = 1;
+  private static final byte FLAG_PREFETCHED = 2;
+  // Written where the ring wraps early because the next entry did not fit before its end.
+  private static final int WRAP = 0;
+  private static final int INITIAL_SLOTS = 1024;
+  // Each thread's buffer for encoding a key, followed by a response when storing one.
+  private static final ThreadLocal<DNSOutputBuffer> ENCODING = ThreadLocal.withInitial(DNSOutputBuffer::new);
+
+  private final Segment[] segments;
+  private final LongAdder evictions;
+  private final LongAdder expirations;
+
+  //One lock's worth of the store.
+  private final class Segment {
+    final ByteBuffer ring;
+    // Where the next entry is written, where the oldest entry starts, and how many entries,
+    // live or not, lie between them.
+    int head;
+    int tail;
+    int entries;
+    int live;
+    // Each slot is the question's hash in the high half and the entry's offset plus one in
+    // the low half, or 0 when empty. Collisions go to the next slot.
+    long[] slots = new long[INITIAL_SLOTS];
+
+    Segment(final int bytes) {
+      ring = ByteBuffer.allocateDirect(bytes);
+    }
+
+    /**
+     * @param key - The encoded key in the first keyLength bytes.
+     * @return The index of the key's slot, or -1 if it is not stored.
+     */
+    int find(final int hash, final byte[] key, final int keyLength) {
+      int mask = slots.length - 1;
+      for (int i = home(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+        if ((int) (slots[i] >>> 32) == hash && keyEquals((int) slots[i] - 1, key, keyLength))
+          return i;
+      }
+      return -1;
+    }
+
+    private boolean keyEquals(final int offset, final byte[] key, final int keyLength) {
+      if (Short.toUnsignedInt(ring.getShort(offset + KEY_LENGTH)) != keyLength)
+        return false;
+      int start = offset + HEADER;
+      for (int k = 0; k < keyLength; k++) {
+        if (ring.get(start + k) != key[k])
+          return false;
+      }
+      return true;
+    }
+
+    void insert(final int hash, final int offset) {
+      if (2 * (live + 1) > slots.length)
+        resize(slots.length * 2);
+      int mask = slots.length - 1;
+      int i = home(hash) & mask;
+      while (slots[i] != 0)
+        i = (i + 1) & mask;
+      slots[i] = (long) hash << 32 | (offset + 1);
+      live++;
+    }
+
+    private void resize(final int size) {
+      long[] old = slots;
+      slots = new long[size];
+      int mask = size - 1;
+      for (long slot : old) {
+        if (slot == 0)
+          continue;
+        int i = home((int) (slot >>> 32)) & mask;
+        while (slots[i] != 0)
+          i = (i + 1) & mask;
+        slots[i] = slot;
+      }
+    }
+
+    /**
+     * Takes an entry out of the index, shifting back the entries that collided with it so
+     * that no lookup stops short at the emptied slot.
+     */
+    void remove(int i) {
+      ring.put((int) slots[i] - 1 + FLAGS, (byte) (ring.get((int) slots[i] - 1 + FLAGS) & ~FLAG_LIVE));
+      int mask = slots.length - 1;
+      for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+        int k = home((int) (slots[j] >>> 32)) & mask;
+        if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+          slots[i] = slots[j];
+          i = j;
+        }
+      }
+      slots[i] = 0;
+      live--;
+    }
+
+    private void removeAt(final int offset) {
+      int hash = ring.getInt(offset + HASH);
+      int mask = slots.length - 1;
+      for (int i = home(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+        if ((int) slots[i] - 1 == offset) {
+          remove(i);
+          return;
+        }
+      }
+    }
+
+    /**
+     * Makes room for an entry at head, overwriting the oldest entries as needed.
+     * @return False if the entry is larger than the whole ring.
+     */
+    boolean reserve(final int length) {
+      int capacity = ring.capacity();
+      if (length > capacity)
+        return false;
+      while (true) {
+        if (entries == 0) {
+          head = 0;
+          tail = 0;
+          return true;
+        }
+        if (head > tail) {
+          if (capacity - head >= length)
+            return true;
+          if (capacity - head >= 4)
+            ring.putInt(head, WRAP);
+          head = 0;
+        } else if (tail - head >= length) {
+          return true;
+        } else {
+          evictTail();
+        }
+      }
+    }
+
+    private void evictTail() {
+      if ((ring.get(tail + FLAGS) & FLAG_LIVE) != 0) {
+        removeAt(tail);
+        evictions.increment();
+      }
+      tail = next(tail);
+      entries--;
+    }
+
+    /**
+     * @return The offset of the entry after the one at offset, following the ring round.
+     */
+    int next(final int offset) {
+      int ret = offset + ring.getInt(offset + LENGTH);
+      if (ring.capacity() - ret < 4 || ring.getInt(ret + LENGTH) == WRAP)
+        ret = 0;
+      return ret;
+    }
+
+    void append(final int hash, final DNSCacheEntry entry, final byte[] encoded, final int keyLength,
+        final int length) {
+      ring.putInt(head + LENGTH, HEADER + length);
+      ring.putInt(head + HASH, hash);
+      ring.putLong(head + EXPIRES, entry.expirationMillis);
+      ring.putLong(head + STORED, entry.storedMillis);
+      ring.putInt(head + HITS, entry.hits);
+      ring.put(head + FLAGS, (byte) (FLAG_LIVE | (entry.prefetched ? FLAG_PREFETCHED : 0)));
+      ring.putShort(head + KEY_LENGTH, (short) keyLength);
+      ring.put(head + HEADER, encoded, 0, length);
+      insert(hash, head);
+      entries++;
+      head += HEADER + length;
+    }
+
+    /**
+     * Copies out an entry's response and the fields needed to rebuild it.
+     */
+    Stored copy(final int offset) {
+      int start = offset + HEADER + Short.toUnsignedInt(ring.getShort(offset + KEY_LENGTH));
+      byte[] data = new byte[offset + ring.getInt(offset + LENGTH) - start];
+      ring.get(start, data);
+      return new Stored(data, ring.getLong(offset + STORED), ring.getLong(offset + EXPIRES),
+          ring.getInt(offset + HITS), (ring.get(offset + FLAGS) & FLAG_PREFETCHED) != 0);
+    }
+  }
+
+  //An entry copied out of a segment, to be decoded once the segment's lock is released.
+  private static final class Stored {
+    final byte[] data;
+    final long storedMillis;
+    final long expirationMillis;
+    final int hits;
+    final boolean prefetched;
+
+    Stored(final byte[] data, final long storedMillis, final long expirationMillis, final int hits,
+        final boolean prefetched) {
+      this.data = data;
+      this.storedMillis = storedMillis;
+      this.expirationMillis = expirationMillis;
+      this.hits = hits;
+      this.prefetched = prefetched;
+    }
+
+    DNSCacheEntry decode() {
+      try {
+        DNSCacheEntry ret = DNSCacheEntry.fromStored(data, storedMillis, expirationMillis);
+        ret.hits = hits;
+        ret.prefetched = prefetched;
+        return ret;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Allocates the store's memory.
+   * @param bytes - The memory for entries, split evenly between the segments.
+   * @param evictions - Counts the live entries overwritten to make room.
+   * @param expirations - Counts the entries removed for having expired.
+   */
+  DNSOffHeapStore(final long bytes, final LongAdder evictions, final LongAdder expirations) {
+    long perSegment = Math.min(Integer.MAX_VALUE, bytes / DNSCache.SEGMENT_COUNT);
+    segments = new Segment[DNSCache.SEGMENT_COUNT];
+    for (int i = 0; i < segments.length; i++)
+      segments[i] = new Segment((int) Math.max(perSegment, 4096));
+    this.evictions = evictions;
+    this.expirations = expirations;
+  }
+
+  private static int home(final int hash) {
+    return hash ^ hash >>> 16;
+  }
+
+  private static int encodeKey(final DNSOutputBuffer os, final DNSQuestion question) {
+    os.reset();
+    DNSMessage.writeDomainName(os, null, question.nameData, question.nameOffset);
+    DNSMessage.lowerCaseName(os.array(), 0);
+    os.writeShort(question.qType);
+    os.writeShort(question.qClass);
+    return os.size();
+  }
+
+  /**
+   * Looks up an unexpired response, counting the hit, and removes the entry if it has also
+   * left the stale window.
+   * @param question - The client's question.
+   * @param staleWindowMillis - How long after expiring the entry is kept.
+   * @return The response, or null if there is none or it has expired.
+   */
+  DNSCacheEntry getFresh(final DNSQuestion question, final long staleWindowMillis) {
+    return get(question, staleWindowMillis, true, false);
+  }
+
+  /**
+   * Looks up an unexpired response without counting a hit.
+   */
+  DNSCacheEntry peek(final DNSQuestion question) {
+    return get(question, 0, false, false);
+  }
+
+  /**
+   * Looks up an expired response that is still inside the stale window.
+   */
+  DNSCacheEntry getStale(final DNSQuestion question, final long staleWindowMillis) {
+    return get(question, staleWindowMillis, false, true);
+  }
+
+  private DNSCacheEntry get(final DNSQuestion question, final long staleWindowMillis, final boolean hit,
+      final boolean stale) {
+    int hash = question.hashCode();
+    DNSOutputBuffer os = ENCODING.get();
+    int keyLength = encodeKey(os, question);
+    Segment segment = segments[DNSCache.segmentIndex(question)];
+    Stored stored;
+    synchronized (segment) {
+      int slot = segment.find(hash, os.array(), keyLength);
+      if (slot < 0)
+        return null;
+      int offset = (int) segment.slots[slot] - 1;
+      long expires = segment.ring.getLong(offset + EXPIRES);
+      long now = DNSClock.millis();
+      if (now >= expires + staleWindowMillis) {
+        if (hit) {
+          segment.remove(slot);
+          expirations.increment();
+        }
+        return null;
+      }
+      if ((now < expires) == stale)
+        return null;
+      if (hit)
+        segment.ring.putInt(offset + HITS, segment.ring.getInt(offset + HITS) + 1);
+      stored = segment.copy(offset);
+    }
+    return stored.decode();
+  }
+
+  /**
+   * Stores a response, replacing any earlier one to the same question. A response too
+   * large for a segment is not stored.
+   * @param question - The question answered.
+   * @param entry - The response.
+   */
+  void put(final DNSQuestion question, final DNSCacheEntry entry) {
+    int hash = question.hashCode();
+    DNSOutputBuffer os = ENCODING.get();
+    int keyLength = encodeKey(os, question);
+    entry.writeMessage(os, question, false);
+    Segment segment = segments[DNSCache.segmentIndex(question)];
+    synchronized (segment) {
+      int slot = segment.find(hash, os.array(), keyLength);
+      if (slot >= 0)
+        segment.remove(slot);
+      if (segment.reserve(HEADER + os.size()))
+        segment.append(hash, entry, os.array(), keyLength, os.size());
+    }
+  }
+
+  /**
+   * Removes the response to a question, if there is one.
+   * @param question - The question.
+   */
+  void remove(final DNSQuestion question) {
+    DNSOutputBuffer os = ENCODING.get();
+    int keyLength = encodeKey(os, question);
+    Segment segment = segments[DNSCache.segmentIndex(question)];
+    synchronized (segment) {
+      int slot = segment.find(question.hashCode(), os.array(), keyLength);
+      if (slot >= 0)
+        segment.remove(slot);
+    }
+  }
+
+  /**
+   * Visits every stored response. Each segment's live entries are copied under its lock and
+   * decoded after releasing it.
+   * @param action - Called with each question and its response.
+   */
+  void forEach(final BiConsumer<DNSQuestion, DNSCacheEntry> action) {
+    ArrayList<Stored> copy = new ArrayList<>();
+    for (Segment segment : segments) {
+      copy.clear();
+      synchronized (segment) {
+        int offset = segment.tail;
+        for (int i = 0; i < segment.entries; i++) {
+          if ((segment.ring.get(offset + FLAGS) & FLAG_LIVE) != 0)
+            copy.add(segment.copy(offset));
+          offset = segment.next(offset);
+        }
+      }
+      for (Stored stored : copy) {
+        byte[] data = stored.data;
+        int questionEnd = DNSMessage.skipName(data, DNSHeader.HEADER_LENGTH);
+        action.accept(DNSQuestion.of(data, DNSHeader.HEADER_LENGTH, DNSMessage.getShort(data, questionEnd),
+            DNSMessage.getShort(data, questionEnd + 2)), stored.decode());
+      }
+    }
+  }
+
+  /**
+   * Removes every entry that has expired and left the stale window. The space is reused
+   * when the ring comes round to it.
+   * @param staleWindowMillis - How long after expiring entries are kept.
+   */
+  void sweep(final long staleWindowMillis) {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        long now = DNSClock.millis();
+        int offset = segment.tail;
+        for (int i = 0; i < segment.entries; i++) {
+          if ((segment.ring.get(offset + FLAGS) & FLAG_LIVE) != 0 &&
+              now >= segment.ring.getLong(offset + EXPIRES) + staleWindowMillis) {
+            segment.removeAt(offset);
+            expirations.increment();
+          }
+          offset = segment.next(offset);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The number of responses stored.
+   */
+  int size() {
+    int ret = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        ret += segment.live;
+      }
+    }
+    return ret;
+  }
+}
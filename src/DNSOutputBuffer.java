@@ -0,0 +1,93 @@
+package MSD;
+
+import java.util.Arrays;
+
+//A growable byte buffer messages are encoded into. Unlike a ByteArrayOutputStream it is
+//meant to be reset and reused, writes shorts and ints without allocating, and lets a
+//length field be patched once the data it describes has been written.
+public class DNSOutputBuffer {
+  // Starting size, large enough for any reply that fits a classic UDP packet.
+  static final int INITIAL_CAPACITY = 512;
+
+  // One buffer per thread, reused for every message the thread encodes.
+  private static final ThreadLocal<DNSOutputBuffer> PER_THREAD = ThreadLocal.withInitial(DNSOutputBuffer::new);
+
+  private byte[] buf = new byte[INITIAL_CAPACITY];
+  private int size;
+
+  /**
+   * @return This thread's buffer, emptied.
+   */
+  static DNSOutputBuffer forThread() {
+    DNSOutputBuffer ret = PER_THREAD.get();
+    ret.reset();
+    return ret;
+  }
+
+  void reset() {
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return The backing array. Only the first size() bytes are meaningful.
+   */
+  byte[] array() {
+    return buf;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  private void ensureCapacity(final int extra) {
+    if (size + extra > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+  }
+
+  void writeByte(final int b) {
+    ensureCapacity(1);
+    buf[size++] = (byte) b;
+  }
+
+  void writeShort(final int s) {
+    ensureCapacity(2);
+    buf[size++] = (byte) (s >> 8);
+    buf[size++] = (byte) s;
+  }
+
+  void writeInt(final int i) {
+    ensureCapacity(4);
+    buf[size++] = (byte) (i >> 24);
+    buf[size++] = (byte) (i >> 16);
+    buf[size++] = (byte) (i >> 8);
+    buf[size++] = (byte) i;
+  }
+
+  void writeBytes(final byte[] src, final int offset, final int length) {
+    ensureCapacity(length);
+    System.arraycopy(src, offset, buf, size, length);
+    size += length;
+  }
+
+  /**
+   * Drops everything written after a position.
+   * @param position - The new size.
+   */
+  void truncate(final int position) {
+    size = position;
+  }
+
+  /**
+   * Overwrites a short that was already written.
+   * @param position - The index of the short.
+   * @param s - The new value.
+   */
+  void setShort(final int position, final int s) {
+    buf[position] = (byte) (s >> 8);
+    buf[position + 1] = (byte) s;
+  }
+}
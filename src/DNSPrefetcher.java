@@ -0,0 +1,120 @@
+package MSD;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//Decides when a cache hit should also refresh its entry ahead of expiry, so popular names are
+//re-resolved in the background and never miss. Only entries hit often enough and close enough
+//to their expiry qualify, and refreshes are rate limited by a token bucket.
+public class DNSPrefetcher {
+  // Default share of an entry's TTL left when a refresh may start.
+  static final double DEFAULT_REFRESH_FRACTION = 0.1;
+  // Default number of hits an entry needs before it is worth refreshing.
+  static final int DEFAULT_MIN_HITS = 3;
+  // Default most refreshes started per second.
+  static final int DEFAULT_MAX_PER_SECOND = 100;
+
+  private static volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+  private static volatile int minHits = DEFAULT_MIN_HITS;
+  private static volatile int maxPerSecond = DEFAULT_MAX_PER_SECOND;
+
+  // The token bucket, refilled at maxPerSecond and holding at most a second's worth.
+  private static double tokens = DEFAULT_MAX_PER_SECOND;
+  private static long lastRefillNanos = System.nanoTime();
+  // Questions whose refresh is under way, so only one is started. Kept by question rather than
+  // on the entry, as the off-heap store decodes a new entry for every hit.
+  private static final Set<DNSQuestion> refreshing = ConcurrentHashMap.newKeySet();
+
+  private static final LongAdder prefetches = new LongAdder();
+  private static final LongAdder prefetchesRateLimited = new LongAdder();
+  private static final LongAdder prefetchedHits = new LongAdder();
+
+  /**
+   * @param fraction - Share of an entry's TTL left when a refresh may start, between 0 and 1.
+   * @param hits - Number of hits an entry needs before it is refreshed.
+   * @param perSecond - Most refreshes started per second. 0 turns refresh-ahead off.
+   */
+  static void configure(final double fraction, final int hits, final int perSecond) {
+    refreshFraction = fraction;
+    minHits = hits;
+    maxPerSecond = perSecond;
+  }
+
+  /**
+   * Called on every cache hit. Records hits served by refreshed entries, and claims the
+   * entry's refresh if it is due.
+   * @param question - The question that hit the entry. It must stay valid until the refresh is done.
+   * @param entry - The entry that was hit.
+   * @return True if the caller should refresh the entry now, and call onRefreshed once it has.
+   */
+  static boolean onHit(final DNSQuestion question, final DNSCacheEntry entry) {
+    if (entry.prefetched)
+      prefetchedHits.increment();
+    if (entry.hits < minHits || maxPerSecond <= 0)
+      return false;
+    long now = DNSClock.millis();
+    long lifetime = entry.expirationMillis - entry.storedMillis;
+    if (entry.expirationMillis - now > lifetime * refreshFraction)
+      return false;
+    if (!refreshing.add(question))
+      return false;
+    if (!takeToken()) {
+      refreshing.remove(question);
+      prefetchesRateLimited.increment();
+      return false;
+    }
+    prefetches.increment();
+    return true;
+  }
+
+  /**
+   * Releases the claim onHit took, whether the refresh was cached or not, so a later hit on an
+   * entry it left in place, such as after a SERVFAIL, may try again.
+   * @param question - The question refreshed.
+   */
+  static void onRefreshed(final DNSQuestion question) {
+    refreshing.remove(question);
+  }
+
+  private static synchronized boolean takeToken() {
+    long now = System.nanoTime();
+    int rate = maxPerSecond;
+    tokens = Math.min(rate, tokens + (now - lastRefillNanos) / 1e9 * rate);
+    lastRefillNanos = now;
+    if (tokens < 1)
+      return false;
+    tokens--;
+    return true;
+  }
+
+  /**
+   * @return The number of refreshes started.
+   */
+  static long prefetches() {
+    return prefetches.sum();
+  }
+
+  /**
+   * @return The number of refreshes skipped because of the rate limit.
+   */
+  static long prefetchesRateLimited() {
+    return prefetchesRateLimited.sum();
+  }
+
+  /**
+   * @return The number of cache hits served by refreshed entries, each of which would
+   * otherwise have been a miss waiting on upstream once the original entry expired.
+   */
+  static long prefetchedHits() {
+    return prefetchedHits.sum();
+  }
+
+  /**
+   * @return A one line summary of the refresh-ahead counters.
+   */
+  static String stats() {
+    return "Prefetches:" + prefetches() + " RateLimited:" + prefetchesRateLimited() +
+        " PrefetchedHits:" + prefetchedHits();
+  }
+}
@@ -1,15 +1,12 @@
 package MSD;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Objects;
 
 public class DNSQuestion {
-  // Domain questions
-  String[] qName;
+  // Domain questions. The name is kept in wire format as a slice of nameData,
+  // normally the packet it was read from, starting at nameOffset.
+  byte[] nameData;
+  int nameOffset;
   // A two octet code which specifies the type of the query.
   //x'0001 (1)	An A record for the domain name
   //x'0002 (2)	A NS record( for the domain name
@@ -24,24 +21,67 @@ public class DNSQuestion {
   // A  two octet code that specifies the class of the query.
   // Most likely just 01  for IN, internet
   short qClass;
+  // Cached hash of the lower cased name, type and class; 0 until first computed.
+  private int hash;
 
 
   /**
    * Acts as the constructor ofr a DNSQuestion object
-   * @param input - The input stream used to define member variables.
-   * @param message - The parent DNSMessage.
+   * @param message - The parent DNSMessage, positioned at the question.
+   * @param reuse - A question of an earlier message to overwrite instead of creating one, or null.
    * @return - A DNSQuestion contain the defined member variables.
    * @throws IOException
    */
-  static DNSQuestion decodeQuestion(final InputStream input, final DNSMessage message)
-      throws IOException {
+  static DNSQuestion decodeQuestion(final DNSMessage message, final DNSQuestion reuse) throws IOException {
+    DNSQuestion ret = reuse != null ? reuse : new DNSQuestion();
+    ret.hash = 0;
+    ret.nameData = message.rawData;
+    ret.nameOffset = message.position;
+    message.position = DNSMessage.nameEnd(message.rawData, message.position, message.rawData.length);
+    message.require(4);
+    ret.qType = DNSMessage.getShort(message.rawData, message.position);
+    ret.qClass = DNSMessage.getShort(message.rawData, message.position + 2);
+    message.position += 4;
+    return ret;
+  }
+
+  /**
+   * Creates a question about a name held elsewhere, such as in a record.
+   * @param nameData - The bytes holding the name.
+   * @param nameOffset - The index of the name.
+   * @param qType - The record type asked for.
+   * @param qClass - The class asked for.
+   * @return - The question. The name's bytes are shared, not copied.
+   */
+  static DNSQuestion of(final byte[] nameData, final int nameOffset, final short qType, final short qClass) {
     DNSQuestion ret = new DNSQuestion();
-    ret.qName = message.readDomainName(input);
-    ret.qType = DNSMessage.getShort(input);
-    ret.qClass = DNSMessage.getShort(input);
+    ret.nameData = nameData;
+    ret.nameOffset = nameOffset;
+    ret.qType = qType;
+    ret.qClass = qClass;
+    return ret;
+  }
+
+  /**
+   * Names are compared ignoring ASCII case (RFC 4343), so questions differing only in case
+   * share a cache entry. The copy keeps no reference to the packet this question was read
+   * from, so it can be held as a cache key for as long as the entry lives.
+   * @return - An equal question holding its name alone, lower cased and uncompressed,
+   * with its hash already computed.
+   */
+  DNSQuestion canonical() {
+    DNSQuestion ret = of(DNSMessage.canonicalName(nameData, nameOffset), 0, qType, qClass);
+    ret.hash = hashCode();
     return ret;
   }
 
+  /**
+   * @return The labels of the question's name.
+   */
+  String[] qName() {
+    return DNSMessage.readDomainName(nameData, nameOffset);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -53,19 +93,23 @@ public class DNSQuestion {
     DNSQuestion that = (DNSQuestion) o;
     return qType == that.qType &&
         qClass == that.qClass &&
-        Arrays.equals(qName, that.qName);
+        DNSMessage.nameEqualsIgnoreCase(nameData, nameOffset, that.nameData, that.nameOffset);
   }
 
   @Override
   public int hashCode() {
-    int result = Objects.hash(qType, qClass);
-    result = 31 * result + Arrays.hashCode(qName);
+    int result = hash;
+    if (result == 0) {
+      result = 31 * (31 * qType + qClass) + DNSMessage.nameHash(nameData, nameOffset);
+      hash = result;
+    }
     return result;
   }
 
   @Override
   public String toString() {
     String ret = new String();
+    String[] qName = qName();
     for (int i = 0; i < qName.length; i++)
       ret += "Name" + i + ":" + qName[i] + " ";
     ret += "QType:" + qType + " QClass:" + qClass;
@@ -73,15 +117,13 @@ public class DNSQuestion {
   }
 
   /**
-   * Writes the member variables into a ByteArrayOutputStream
-   * @param os - The ByteArrayOutputStream to write out to.
-   * @param domainNameLocations - A hash map of domain/ array location pairs.
-   * @throws IOException
+   * Writes the member variables into an output buffer.
+   * @param os - The buffer to write out to.
+   * @param compression - The names already written to the message.
    */
-  void writeBytes(final ByteArrayOutputStream os, final HashMap<String,Integer> domainNameLocations)
-      throws IOException {
-    DNSMessage.writeDomainName(os, domainNameLocations, qName);
-    os.write(DNSMessage.shortToBytes(qType));
-    os.write(DNSMessage.shortToBytes(qClass));
+  void writeBytes(final DNSOutputBuffer os, final DNSCompressionTable compression) {
+    DNSMessage.writeDomainName(os, compression, nameData, nameOffset);
+    os.writeShort(qType);
+    os.writeShort(qClass);
   }
 }
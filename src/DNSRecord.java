@@ -1,16 +1,13 @@
 package MSD;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Calendar;
-import java.util.HashMap;
 
 public class DNSRecord {
 
   // The URL who’s IP address this response contains.
-  // This uses a compressed format.
-  String[] name;
+  // This uses a compressed format, kept as a slice of data starting at nameOffset.
+  byte[] data;
+  int nameOffset;
   // A two octet code which specifies the type of the query.
   //x.0001 (1 )An A record for the domain name
   //x.0002 (2) A NS record for the domain name
@@ -22,116 +19,294 @@ public class DNSRecord {
   //x.0021 (33)	A SRV record(s) for the domain name
   //x.001C (28)	An AAAA record(s) for the domain name
   short type;
+  static final short TYPE_A = 1;
+  static final short TYPE_NS = 2;
+  static final short TYPE_CNAME = 5;
+  static final short TYPE_SOA = 6;
+  static final short TYPE_PTR = 12;
+  static final short TYPE_MX = 15;
+  static final short TYPE_SRV = 33;
+  static final short TYPE_OPT = 41;
+  // The DNSSEC OK flag within an OPT record's TTL.
+  static final int OPT_DO_BIT = 0x8000;
   // A two octet code that specifies the class of the query.
   // Most likely just 01  for IN, internet
   // 4096:unassigned
   short class_;
+  static final short CLASS_IN = 1;
   // Specifying the time to live for this Response, measured in seconds.
   // Before this time interval runs out, the result can be cached. After, it should be discarded.
   int ttl;
   // The byte length of the following RDDATA section;
-  short rdLength;
-  byte[] rdData;
-  private Calendar expirationTime;
+  int rdLength;
+  // The index of the RDDATA section within data.
+  int rdOffset;
+  // When the record expires, on the DNSClock.
+  private long expirationMillis;
+  // The expiration time of records that are not cached.
+  private static final long NEVER = Long.MAX_VALUE;
 
   /**
    * Acts as the constructor ofr a DNSRecord object
-   * @param input - The input stream used to define member variables.
-   * @param message - The parent DNSMessage.
+   * @param message - The parent DNSMessage, positioned at the record.
+   * @param reuse - A record of an earlier message to overwrite instead of creating one, or null.
    * @return - A DNSRecord contain the defined member variables.
    * @throws IOException
    */
-  static DNSRecord decodeRecord(final InputStream input, final DNSMessage message) throws IOException {
-    DNSRecord ret = new DNSRecord();
-    int firstByte = input.read();
-    if ((firstByte >> 6) == 3) {
-      short byteNum = (short) (((firstByte << 10) | input.read()));
-      ret.name = message.readDomainName(byteNum);
-    } else if (firstByte == 0) {
-      ret.name = new String[2];
-      ret.name[0] = String.valueOf(firstByte);
-    } else {
-      ret.name = message.readDomainName(input);
-    }
-    ret.type = DNSMessage.getShort(input);
-    ret.class_ = DNSMessage.getShort(input);
-    ret.ttl = getInt(input);
-    ret.expirationTime = Calendar.getInstance();
-    ret.expirationTime.add(Calendar.SECOND, ret.ttl);
-    ret.rdLength = DNSMessage.getShort(input);
-    ret.rdData = getRdData(input, ret.rdLength);
+  static DNSRecord decodeRecord(final DNSMessage message, final DNSRecord reuse) throws IOException {
+    DNSRecord ret = reuse != null ? reuse : new DNSRecord();
+    byte[] data = message.rawData;
+    ret.data = data;
+    ret.nameOffset = message.position;
+    message.position = DNSMessage.nameEnd(data, message.position, data.length);
+    message.require(10);
+    ret.type = DNSMessage.getShort(data, message.position);
+    ret.class_ = DNSMessage.getShort(data, message.position + 2);
+    ret.ttl = DNSMessage.getInt(data, message.position + 4);
+    ret.expirationMillis = DNSClock.millis() + ret.ttl * 1000L;
+    ret.rdLength = Short.toUnsignedInt(DNSMessage.getShort(data, message.position + 8));
+    message.position += 10;
+    message.require(ret.rdLength);
+    ret.rdOffset = message.position;
+    message.position += ret.rdLength;
+    if (hasNamesInRdData(ret.type))
+      checkRdDataNames(data, ret.type, ret.rdOffset, message.position);
     return ret;
   }
 
   /**
-   * Reads in an int, four bytes, from and inputStream.
-   * @param buf
-   * @return The four read in bytes merged into an int.
-   * @throws IOException
+   * @param type - A record type.
+   * @return True if the record type's rdData may contain compressed domain names.
    */
-  private static int getInt (final InputStream buf) throws IOException {
-    int a = buf.read();
-    int b = buf.read();
-    int c = buf.read();
-    int d = buf.read();
-    return ((a << 24 | b << 16) | (c << 8 | d));
+  private static boolean hasNamesInRdData(final short type) {
+    return type == TYPE_NS || type == TYPE_CNAME || type == TYPE_SOA || type == TYPE_PTR ||
+        type == TYPE_MX || type == TYPE_SRV;
   }
 
   /**
-   * Extracts the rdData member variable from an input stream
-   * @param buf - The input stream used to define member variables.
-   * @param arraySize
-   * @return - A byte array of rdData.
+   * @param type - The record type.
+   * @return The number of fixed bytes in the rdData before the first domain name.
+   */
+  private static int rdDataPrefix(final short type) {
+    if (type == TYPE_MX)
+      return 2;
+    if (type == TYPE_SRV)
+      return 6;
+    return 0;
+  }
+
+  /**
+   * Checks that the domain names inside rdData are well formed, so they can later be
+   * followed through the message they came from.
+   * @param data - The message bytes.
+   * @param type - The record type.
+   * @param rdStart - The index of the rdData.
+   * @param rdEnd - The index just past the rdData.
    * @throws IOException
    */
-  private static byte[] getRdData (final InputStream buf, final short arraySize) throws IOException {
-    byte[] ret = new byte[arraySize];
-    for (int i = 0; i < arraySize; ++i){
-      ret[i] = (byte) buf.read();
-    }
-    return ret;
+  private static void checkRdDataNames(final byte[] data, final short type, final int rdStart, final int rdEnd)
+      throws IOException {
+    int pos = DNSMessage.nameEnd(data, rdStart + rdDataPrefix(type), rdEnd);
+    if (type == TYPE_SOA)
+      pos = DNSMessage.nameEnd(data, pos, rdEnd) + 20;
+    if (pos != rdEnd)
+      throw new IOException("Malformed rdData for type " + type);
+  }
+
+  /**
+   * @return The labels of the record's name.
+   */
+  String[] name() {
+    return DNSMessage.readDomainName(data, nameOffset);
   }
 
   @Override
   public String toString() {
     String ret = new String();
+    String[] name = name();
     for (int i = 0; i < name.length; i++)
       ret += "Name" + i + ":" + name[i] + " ";
     ret = "Type:" + type + " Class:" + class_ + " TTL:" + ttl + " RDLength:" + rdLength + " RDData:";
     for (int i = 0; i < rdLength; i++)
-      ret += rdData[i] + ".";
+      ret += data[rdOffset + i] + ".";
+    return ret;
+  }
+
+  /**
+   * Writes the member variables into an output buffer. Domain names inside rdData are
+   * expanded from the message the record came from and compressed against this one.
+   * @param os - The buffer to write out to.
+   * @param compression - The names already written to the message.
+   */
+  void writeBytes(final DNSOutputBuffer os, final DNSCompressionTable compression) {
+    DNSMessage.writeDomainName(os, compression, data, nameOffset);
+    os.writeShort(type);
+    os.writeShort(class_);
+    os.writeInt(ttl);
+    if (!hasNamesInRdData(type)) {
+      os.writeShort(rdLength);
+      os.writeBytes(data, rdOffset, rdLength);
+      return;
+    }
+    int lengthPosition = os.size();
+    os.writeShort(0);
+    int prefix = rdDataPrefix(type);
+    os.writeBytes(data, rdOffset, prefix);
+    // Names in SRV rdData must not be compressed (RFC 2782).
+    DNSCompressionTable rdCompression = type == TYPE_SRV ? null : compression;
+    int pos = rdOffset + prefix;
+    DNSMessage.writeDomainName(os, rdCompression, data, pos);
+    if (type == TYPE_SOA) {
+      pos = DNSMessage.skipName(data, pos);
+      DNSMessage.writeDomainName(os, rdCompression, data, pos);
+      os.writeBytes(data, DNSMessage.skipName(data, pos), 20);
+    }
+    os.setShort(lengthPosition, os.size() - lengthPosition - 2);
+  }
+
+  /**
+   * Reads a record stored without its owner name, as the server's zones keep them: type,
+   * class, TTL, rdLength and rdData.
+   * @param data - The bytes holding the owner name and the record.
+   * @param nameOffset - The index of the owner name.
+   * @param position - The index of the record's type.
+   * @return - The record. Its TTL never runs down.
+   */
+  static DNSRecord fromZoneData(final byte[] data, final int nameOffset, final int position) {
+    DNSRecord ret = new DNSRecord();
+    ret.data = data;
+    ret.nameOffset = nameOffset;
+    ret.type = DNSMessage.getShort(data, position);
+    ret.class_ = DNSMessage.getShort(data, position + 2);
+    ret.ttl = DNSMessage.getInt(data, position + 4);
+    ret.rdLength = Short.toUnsignedInt(DNSMessage.getShort(data, position + 8));
+    ret.rdOffset = position + 10;
+    ret.expirationMillis = NEVER;
     return ret;
   }
 
   /**
-   *  Converts an int into four bytes.
-   * @param i
-   * @return An array of four bytes. MSB is contain in index 0.
+   * Builds the server's own OPT pseudo-record (RFC 6891), advertising the UDP payload size
+   * it accepts. An OPT record's class holds the payload size and its TTL the extended
+   * flags, of which only the DNSSEC OK bit is used.
+   * @param dnssecOk - Whether to set the DO bit.
+   * @return - The OPT record.
    */
-  private static byte[] intToBytes (final int i){
-    byte[] ret = new byte[4];
-    ret[0] = (byte) (i >> 24 & 0xff);
-    ret[1] = (byte) (i >> 16 & 0xff);
-    ret[2] = (byte) (i >> 8 & 0xff);
-    ret[3] = (byte) (i & 0xff);
+  static DNSRecord newOpt(final boolean dnssecOk) {
+    DNSRecord ret = new DNSRecord();
+    ret.data = new byte[] {0};
+    ret.nameOffset = 0;
+    ret.type = TYPE_OPT;
+    ret.class_ = (short) DNSServer.MAX_UDP_PAYLOAD;
+    ret.ttl = dnssecOk ? OPT_DO_BIT : 0;
+    ret.rdLength = 0;
+    ret.rdOffset = 1;
     return ret;
   }
 
   /**
-   * Writes the member variables into a ByteArrayOutputStream
-   * @param os - The ByteArrayOutputStream to write out to.
-   * @param domainNameLocations - A hash map of domain/ array location pairs.
-   * @throws IOException
+   * Writes the server's own OPT pseudo-record, as newOpt builds it, without building it.
+   * @param os - The buffer to write to.
+   * @param dnssecOk - Whether to set the DO bit.
    */
-  void writeBytes(final ByteArrayOutputStream os, final HashMap<String, Integer> domainNameLocations)
-      throws IOException {
-    DNSMessage.writeDomainName(os, domainNameLocations, name);
-    os.write(DNSMessage.shortToBytes(type));
-    os.write(DNSMessage.shortToBytes(class_));
-    os.write(intToBytes(ttl));
-    os.write(DNSMessage.shortToBytes(rdLength));
-    for (int i = 0; i < rdLength; i++)
-      os.write(rdData[i]);
+  static void writeOpt(final DNSOutputBuffer os, final boolean dnssecOk) {
+    os.writeByte(0);
+    os.writeShort(TYPE_OPT);
+    os.writeShort(DNSServer.MAX_UDP_PAYLOAD);
+    os.writeInt(dnssecOk ? OPT_DO_BIT : 0);
+    os.writeShort(0);
+  }
+
+  /**
+   * Only meaningful for OPT records.
+   * @return The UDP payload size the sender accepts, never less than the classic 512 bytes.
+   */
+  int udpPayloadSize() {
+    return Math.max(DNSServer.CLASSIC_UDP_PAYLOAD, Short.toUnsignedInt(class_));
+  }
+
+  /**
+   * Only meaningful for OPT records.
+   * @return Whether the sender set the DNSSEC OK bit.
+   */
+  boolean dnssecOk() {
+    return (ttl & OPT_DO_BIT) != 0;
+  }
+
+  /**
+   * @return The index of the TTL field within data.
+   */
+  int ttlOffset() {
+    return DNSMessage.skipName(data, nameOffset) + 4;
+  }
+
+  /**
+   * @return The number of whole seconds left before the record expires, never negative.
+   */
+  int remainingTtl(){
+    long millis = expirationMillis - DNSClock.millis();
+    return millis <= 0 ? 0 : (int) (millis / 1000);
+  }
+
+  /**
+   * Copies records with their TTL set to the time they have left. The underlying
+   * bytes are shared with the originals.
+   * @param records - The records to copy.
+   * @param staleTtl - The TTL given to every copy when serving expired records, or -1.
+   * @return The copies.
+   */
+  static DNSRecord[] withRemainingTtl(final DNSRecord[] records, final int staleTtl){
+    DNSRecord[] ret = new DNSRecord[records.length];
+    for (int i = 0; i < records.length; i++) {
+      DNSRecord copy = new DNSRecord();
+      copy.data = records[i].data;
+      copy.nameOffset = records[i].nameOffset;
+      copy.type = records[i].type;
+      copy.class_ = records[i].class_;
+      if (records[i].type == TYPE_OPT)
+        copy.ttl = records[i].ttl;
+      else
+        copy.ttl = staleTtl >= 0 ? staleTtl : records[i].remainingTtl();
+      copy.rdLength = records[i].rdLength;
+      copy.rdOffset = records[i].rdOffset;
+      copy.expirationMillis = records[i].expirationMillis;
+      ret[i] = copy;
+    }
+    return ret;
+  }
+
+  /**
+   * Only meaningful for SOA records.
+   * @return The MINIMUM field, the TTL of negative answers from the zone (RFC 2308).
+   */
+  int soaMinimum() {
+    return DNSMessage.getInt(data, rdOffset + rdLength - 4);
+  }
+
+  /**
+   * Lowers the record's TTL, and its expiry with it.
+   * @param seconds - The most seconds the record may be kept.
+   */
+  void capTtl(final int seconds) {
+    if (Integer.compareUnsigned(ttl, seconds) <= 0)
+      return;
+    ttl = seconds;
+    expirationMillis = DNSClock.millis() + seconds * 1000L;
+  }
+
+  /**
+   * Times the record's expiry from when it was received rather than when it was decoded.
+   * @param receivedMillis - When the record was received, on the DNSClock.
+   */
+  void rebase(final long receivedMillis) {
+    expirationMillis = receivedMillis + ttl * 1000L;
+  }
+
+  /**
+   * @return The time the record expires, on the DNSClock.
+   */
+  long expirationMillis(){
+    return expirationMillis;
   }
 
   /**
@@ -139,7 +314,6 @@ public class DNSRecord {
    * @return True if the message is still valid, else false.
    */
   boolean timestampValid(){
-    Calendar currentTime = Calendar.getInstance();
-    return currentTime.before(expirationTime);
+    return DNSClock.millis() < expirationMillis;
   }
 }
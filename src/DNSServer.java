@@ -1,106 +1,625 @@
 package MSD;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class DNSServer {
+  // The UDP port the server listens on.
+  static final int PORT = 8053;
+  // Default bound on the number of queries being worked on at once.
+  static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+  // Largest UDP response sent to clients that do not advertise a size with EDNS(0).
+  static final int CLASSIC_UDP_PAYLOAD = 512;
+  // Largest UDP message the server accepts and advertises through EDNS(0).
+  static final int MAX_UDP_PAYLOAD = 4096;
+  // Largest message that fits DNS over TCP's two byte length prefix.
+  static final int MAX_TCP_MESSAGE = 65535;
+  // Number of selector threads serving TCP connections.
+  static final int TCP_EVENT_LOOPS = 2;
+  // Google's public DNS resolver, the default upstream for everything not in the cache.
+  static final InetSocketAddress GOOGLE_DNS = new InetSocketAddress("8.8.8.8", 53);
+  // Settings for each upstream's forwarder. Retries are resends to the same upstream
+  // before failing over to the next one.
+  static final int UPSTREAM_SOCKETS = 4;
+  static final long UPSTREAM_TIMEOUT_MILLIS = 2000;
+  static final int UPSTREAM_RETRIES = 1;
+  // Default percentile of an upstream's round trip times after which a query is hedged.
+  static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+  // How long a client with a stale cache entry waits on upstream before being answered
+  // from it, and the TTL stale answers are given (RFC 8767).
+  static final long STALE_ANSWER_DEADLINE_MILLIS = 1800;
+  static final int STALE_ANSWER_TTL = 30;
+
+  private static ExecutorService workers;
+  private static DNSUpstreams upstreams;
+  // Set to resolve iteratively from these root servers instead of forwarding to upstreams.
+  private static volatile List<InetSocketAddress> rootHints;
+  private static DNSIterativeResolver iterativeResolver;
+  private static DNSTcpServer tcpServer;
+  // Number of UDP sockets sharing the port, each with its own event loop, or 0 to receive on
+  // one socket and hand every query to the worker pool.
+  private static volatile int udpShards;
+  // The packet each thread sends replies with, readdressed for every reply.
+  private static final ThreadLocal<DatagramPacket> REPLY_PACKETS =
+      ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+  // Questions currently being resolved upstream, with the resolution their requesters wait on.
+  private static final ConcurrentHashMap<InFlightKey, CompletableFuture<DNSCacheEntry>> inFlightQuestions =
+      new ConcurrentHashMap<>();
+  private static final LongAdder upstreamQueries = new LongAdder();
+  private static final LongAdder coalescedQueries = new LongAdder();
+  private static final LongAdder staleAnswers = new LongAdder();
+
+  //What requests share an upstream resolution by. Forwarded requests carry their CD and DO
+  //bits and EDNS(0) payload size upstream, which shape the response, so requests only share one
+  //sent the way theirs would be. The iterative resolver sends queries of its own, so there the
+  //question alone decides.
+  private static final class InFlightKey {
+    final DNSQuestion question;
+    final boolean checkingDisabled;
+    final boolean dnssecOk;
+    // The UDP payload size advertised upstream.
+    final int payloadSize;
+
+    /**
+     * @param message - The request.
+     * @param forwarded - Whether the request itself is sent upstream.
+     */
+    InFlightKey(final DNSMessage message, final boolean forwarded) {
+      question = message.questions[0];
+      DNSRecord opt = forwarded ? message.findOpt() : null;
+      checkingDisabled = forwarded && message.header.cd != 0;
+      dnssecOk = opt != null && opt.dnssecOk();
+      // Requests without an OPT record are sent with the server's own, see getAnswerFromUpstream.
+      payloadSize = !forwarded ? 0 : opt == null ? MAX_UDP_PAYLOAD : opt.udpPayloadSize();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof InFlightKey))
+        return false;
+      InFlightKey that = (InFlightKey) o;
+      return checkingDisabled == that.checkingDisabled && dnssecOk == that.dnssecOk &&
+          payloadSize == that.payloadSize && question.equals(that.question);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * question.hashCode() + payloadSize) + (checkingDisabled ? 2 : 0) + (dnssecOk ? 1 : 0);
+    }
+  }
 
   /**
-   * The driving method of the server.
+   * The driving method of the server. Uses one worker per available core.
    * @throws IOException
    */
   public static void openAndRunServerSocket() throws IOException {
-    DatagramSocket dataSocket = new DatagramSocket(8053);
-    byte[] buf = new byte[512];
+    openAndRunServerSocket(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * The driving method of the server, forwarding to Google's public resolver.
+   * @param workerCount - The number of worker threads handling queries.
+   * @param maxInFlight - The most queries allowed to be queued or in progress at once.
+   * @throws IOException
+   */
+  public static void openAndRunServerSocket(final int workerCount, final int maxInFlight) throws IOException {
+    openAndRunServerSocket(workerCount, maxInFlight, List.of(GOOGLE_DNS), DEFAULT_HEDGE_PERCENTILE);
+  }
+
+  /**
+   * Makes the server resolve cache misses itself, starting from root servers, instead of
+   * forwarding them to upstream resolvers. Must be called before the server is started.
+   * @param hints - The root servers. Nameservers found through their referrals are asked
+   * on the same port as the first of them.
+   */
+  static void resolveIteratively(final List<InetSocketAddress> hints) {
+    rootHints = hints;
+  }
+
+  /**
+   * Makes the server receive UDP queries on several sockets bound to its port with
+   * SO_REUSEPORT, each read by an event loop of its own, instead of on one socket read by the
+   * calling thread. Must be called before the server is started.
+   * @param shards - The number of sockets, usually one per core, or 0 for a single socket.
+   */
+  static void shardUdp(final int shards) {
+    udpShards = shards;
+  }
+
+  /**
+   * The driving method of the server. The calling thread only receives packets,
+   * each received query is handed to a worker pool so a slow upstream answer
+   * does not stall the other clients. When UDP is sharded the calling thread waits instead
+   * while the event loops of DNSUdpServer receive and answer queries.
+   * @param workerCount - The number of worker threads handling queries.
+   * @param maxInFlight - The most queries allowed to be queued or in progress at once.
+   * When reached the receive loop waits for a worker to finish before reading more packets.
+   * @param upstreamAddresses - The resolvers cache misses are forwarded to, unless the
+   * server resolves iteratively.
+   * @param hedgePercentile - The percentile of an upstream's round trip times after which a
+   * query is also sent to a second upstream. 0 turns hedging off.
+   * @throws IOException
+   */
+  public static void openAndRunServerSocket(final int workerCount, final int maxInFlight,
+      final List<InetSocketAddress> upstreamAddresses, final double hedgePercentile) throws IOException {
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    if (udpShards > 0) {
+      DNSUdpServer udpServer = new DNSUdpServer(PORT, udpShards, inFlight);
+      startResolving(workerCount, upstreamAddresses, hedgePercentile);
+      tcpServer = new DNSTcpServer(PORT, workers, TCP_EVENT_LOOPS);
+      try {
+        udpServer.run();
+      } finally {
+        stopResolving();
+        tcpServer.close();
+        udpServer.close();
+      }
+      return;
+    }
+    DatagramSocket dataSocket = new DatagramSocket(PORT);
+    startResolving(workerCount, upstreamAddresses, hedgePercentile);
+    tcpServer = new DNSTcpServer(PORT, workers, TCP_EVENT_LOOPS);
+    byte[] buf = new byte[MAX_UDP_PAYLOAD];
     DatagramPacket packet = new DatagramPacket(buf, buf.length);
-    while(dataSocket.isBound()) {
-      dataSocket.receive(packet);
-      DNSMessage message = DNSMessage.decodeMessage(buf);
-      System.out.println("Request from client:");
-      System.out.println(message.toString());
-
-      // checking if message is a query.
-      if (message.header.qr == 0){
-        byte [] reply = generateReply(message);
-        sendReply(dataSocket, packet, reply);
-      } else {
-        System.out.println("Non-query message received");
+    try {
+      while (dataSocket.isBound()) {
+        packet.setLength(buf.length);
+        dataSocket.receive(packet);
+        // The receive buffer is reused, so each query gets its own copy.
+        byte[] data = Arrays.copyOf(buf, packet.getLength());
+        InetAddress address = packet.getAddress();
+        int port = packet.getPort();
+        inFlight.acquireUninterruptibly();
+        try {
+          workers.execute(() -> {
+            CompletableFuture<Void> handled;
+            try {
+              handled = handleQuery(dataSocket, data, address, port);
+            } catch (IOException | RuntimeException e) {
+              handled = CompletableFuture.failedFuture(e);
+            }
+            // The permit is held until the reply is sent, including while waiting on upstream.
+            handled.whenComplete((ignored, error) -> {
+              inFlight.release();
+              if (error != null)
+                DNSLog.log("Query failed: " + error);
+            });
+          });
+        } catch (RuntimeException e) {
+          inFlight.release();
+          throw e;
+        }
+      }
+    } finally {
+      stopResolving();
+      tcpServer.close();
+      dataSocket.close();
+    }
+  }
+
+  /**
+   * Starts the worker pool and the upstream or iterative resolver generateReply needs, without
+   * listening for clients. The benchmarks call it to generate replies directly.
+   * @param workerCount - The number of worker threads handling queries.
+   * @param upstreamAddresses - The resolvers cache misses are forwarded to, unless the
+   * server resolves iteratively.
+   * @param hedgePercentile - The percentile of an upstream's round trip times after which a
+   * query is also sent to a second upstream. 0 turns hedging off.
+   * @throws IOException If the upstream sockets cannot be opened.
+   */
+  static void startResolving(final int workerCount, final List<InetSocketAddress> upstreamAddresses,
+      final double hedgePercentile) throws IOException {
+    workers = newWorkerPool(workerCount);
+    if (rootHints != null)
+      iterativeResolver = new DNSIterativeResolver(rootHints, rootHints.get(0).getPort(), workers);
+    else
+      upstreams = new DNSUpstreams(upstreamAddresses, UPSTREAM_SOCKETS, UPSTREAM_TIMEOUT_MILLIS, UPSTREAM_RETRIES,
+          hedgePercentile);
+  }
+
+  /**
+   * Stops the worker pool and closes the upstream or iterative resolver.
+   * @throws IOException
+   */
+  static void stopResolving() throws IOException {
+    workers.shutdown();
+    if (upstreams != null)
+      upstreams.close();
+    if (iterativeResolver != null)
+      iterativeResolver.close();
+    upstreams = null;
+    iterativeResolver = null;
+  }
+
+  /**
+   * Creates the fixed size pool of daemon threads that handle client queries.
+   * @param workerCount - The number of threads in the pool.
+   * @return - The worker pool.
+   */
+  private static ExecutorService newWorkerPool(final int workerCount) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "dns-worker-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Decodes a single client packet and replies to it if it is a query.
+   * @param socket - The server's DatagramSocket.
+   * @param data - The bytes of the client's packet.
+   * @param address - The client's address.
+   * @param port - The client's port.
+   * @return - A future completed once the reply, if any, has been sent.
+   * @throws IOException
+   */
+  private static CompletableFuture<Void> handleQuery(final DatagramSocket socket, final byte[] data,
+      final InetAddress address, final int port) throws IOException {
+    return answerDatagram(data).thenAccept(reply -> {
+      try {
+        if (reply != null)
+          sendReply(socket, address, port, reply);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
+    });
+  }
+
+  /**
+   * Decodes a client's UDP packet and generates the reply to it if it is a query.
+   * The message is decoded into the thread's spare one, which is recycled once the reply is
+   * built unless the reply waits on upstream.
+   * @param data - The bytes of the client's packet.
+   * @return - A future of the reply, or of null when there is nothing to send.
+   * @throws IOException If the packet is not a valid DNS message.
+   */
+  static CompletableFuture<byte[]> answerDatagram(final byte[] data) throws IOException {
+    long start = System.nanoTime();
+    DNSMessage message = DNSMessage.decodePooled(data);
+    DNSMetrics.decode.recordSince(start);
+    DNSMetrics.onQuery(message);
+    if (DNSLog.sampled())
+      DNSLog.log("Request from client:\n" + message);
+
+    // checking if message is a query.
+    if (message.header.qr == 0){
+      CompletableFuture<byte[]> reply = generateReply(message, message.maxUdpResponse());
+      if (reply.isDone())
+        message.recycle();
+      return reply;
+    } else {
+      DNSLog.log("Non-query message received");
+      message.recycle();
+      return CompletableFuture.completedFuture(null);
     }
   }
 
   /**
    * Will check if the the requested message/ answer is contained within DSNCache.
-   * If not it will recursively request the answer from Google's DNS resolver
-   * and then store the message/ answer pair into the Cache hash table.
+   * If not it will recursively request the answer from the upstream resolvers
+   * and then store the question and every record of the reply into the Cache hash table.
+   * Questions within a local zone are answered from the zone instead, authoritatively.
+   * The upstream request does not hold a worker thread while it waits. If an expired entry
+   * is still held for the question it is served instead when upstream fails or is slow.
    * @param message - The DSN message contain the DNS questions.
-   * @return A byte array contain the answer message for the client.
+   * @param maxLength - The largest reply the client accepts. Longer replies are
+   * replaced by a truncated one with the TC bit set.
+   * @return A future of the byte array contain the answer message for the client.
    * @throws IOException
    */
-  private static byte[] generateReply(final DNSMessage message) throws IOException {
-    byte[] reply;
+  static CompletableFuture<byte[]> generateReply(final DNSMessage message, final int maxLength) throws IOException {
+    DNSMessage authoritative = DNSZones.answer(message);
+    if (authoritative != null) {
+      long start = System.nanoTime();
+      byte[] reply = fitReply(message, authoritative.toBytes(), maxLength);
+      DNSMetrics.encode.recordSince(start);
+      return CompletableFuture.completedFuture(reply);
+    }
     for (int i = 0; i < message.questions.length; i++){
-      if (!DNSCache.contains(message.questions[i])){
-        reply = getAnswerFromGoogle(message);
+      long start = System.nanoTime();
+      DNSCacheEntry cached = DNSCache.getEntry(message.questions[i]);
+      DNSMetrics.cacheLookup.recordSince(start);
+      if (cached == null){
+        DNSCacheEntry stale = DNSCache.getStaleEntry(message.questions[i]);
+        if (stale != null)
+          return replyOrStale(message, resolve(message, false), stale, maxLength);
+        return resolve(message, false).handleAsync((entry, error) -> {
+          if (error != null) {
+            DNSLog.log("No response from upstream: " + error);
+            return DNSMessage.buildErrorResponse(message, DNSMessage.RCODE_SERVER_FAILURE).toBytes();
+          }
+          return encode(message, entry, -1, maxLength);
+        }, workers);
+      } else {
+        // fetch the answer, create the answer and send it back to the client.
+        if (DNSLog.sampled())
+          DNSLog.log("Sent from cache");
+        if (DNSPrefetcher.onHit(message.questions[i], cached))
+          prefetch(message);
+        return CompletableFuture.completedFuture(encode(message, cached, -1, maxLength));
+      }
+    }
+    DNSLog.log("Reply Generation Error");
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Answers with the upstream response if it arrives in time, and from the stale entry if
+   * upstream fails or the deadline passes first. The resolution carries on either way and
+   * refreshes the cache once it completes.
+   * @param message - The client's request.
+   * @param resolution - The upstream resolution of the request's question.
+   * @param stale - The expired entry for the request's question.
+   * @param maxLength - The largest reply the client accepts.
+   * @return A future of the reply bytes.
+   */
+  private static CompletableFuture<byte[]> replyOrStale(final DNSMessage message,
+      final CompletableFuture<DNSCacheEntry> resolution, final DNSCacheEntry stale, final int maxLength) {
+    CompletableFuture<byte[]> ret = new CompletableFuture<>();
+    resolution.whenCompleteAsync((entry, error) -> {
+      if (error != null || entry.rCode == DNSMessage.RCODE_SERVER_FAILURE) {
+        DNSLog.log("No usable response from upstream: " + (error != null ? error : "SERVFAIL"));
+        answerStale(ret, message, stale, maxLength);
+      } else if (!ret.isDone()) {
+        ret.complete(encode(message, entry, -1, maxLength));
+      }
+    }, workers);
+    CompletableFuture.delayedExecutor(STALE_ANSWER_DEADLINE_MILLIS, TimeUnit.MILLISECONDS, workers)
+        .execute(() -> answerStale(ret, message, stale, maxLength));
+    return ret;
+  }
+
+  private static void answerStale(final CompletableFuture<byte[]> reply, final DNSMessage message,
+      final DNSCacheEntry stale, final int maxLength) {
+    if (reply.isDone())
+      return;
+    if (reply.complete(encode(message, stale, STALE_ANSWER_TTL, maxLength))) {
+      if (DNSLog.sampled())
+        DNSLog.log("Sent stale answer from cache");
+      staleAnswers.increment();
+    }
+  }
+
+  /**
+   * Gets the upstream response to a request's question. Requests asking a question that is
+   * already being resolved, with the same flags forwarded, wait for that resolution instead of
+   * sending their own upstream query.
+   * Cacheable responses are placed in the cache before the waiting requests are released.
+   * @param message - The client's request.
+   * @param prefetch - Whether the resolution is a refresh-ahead, which its cached entry is marked as.
+   * @return A future of the response, shared by every request for the same question.
+   */
+  private static CompletableFuture<DNSCacheEntry> resolve(final DNSMessage message, final boolean prefetch) {
+    // The question keys inFlightQuestions and the request's bytes are forwarded.
+    message.retain();
+    DNSQuestion question = message.questions[0];
+    InFlightKey key = new InFlightKey(message, iterativeResolver == null);
+    CompletableFuture<DNSCacheEntry> resolution = new CompletableFuture<>();
+    CompletableFuture<DNSCacheEntry> existing = inFlightQuestions.putIfAbsent(key, resolution);
+    if (existing != null) {
+      coalescedQueries.increment();
+      return existing;
+    }
+    upstreamQueries.increment();
+    long start = System.nanoTime();
+    CompletableFuture<DNSCacheEntry> lookup;
+    if (iterativeResolver != null) {
+      lookup = iterativeResolver.resolve(question).thenApply(entry -> {
+        if (DNSLog.sampled())
+          DNSLog.log("Resolved iteratively: " + entry);
+        cacheIfUsable(question, entry, prefetch);
+        return entry;
+      });
+    } else {
+      lookup = forward(message, prefetch);
+    }
+    lookup.whenComplete((entry, error) -> {
+      DNSMetrics.upstream.recordSince(start);
+      inFlightQuestions.remove(key, resolution);
+      if (error != null)
+        resolution.completeExceptionally(error);
+      else
+        resolution.complete(entry);
+    });
+    return resolution;
+  }
+
+  /**
+   * Forwards a request to the upstream resolvers and caches their response.
+   * @param message - The client's request.
+   * @param prefetch - Whether the request is a refresh-ahead.
+   * @return A future of the response.
+   */
+  private static CompletableFuture<DNSCacheEntry> forward(final DNSMessage message, final boolean prefetch) {
+    return getAnswerFromUpstream(message).thenApplyAsync(reply -> {
+      try {
         DNSMessage replyMessage = DNSMessage.decodeMessage(reply);
-        System.out.println("Sent response from Google:");
-        System.out.println(replyMessage.toString());
-        // Error handling
-        if (replyMessage.header.rCode != 0){
-          System.out.println("RCode: " + replyMessage.header.rCode +
-              ". Response from Google sent to client.");
-          return reply;
-        }
+        if (DNSLog.sampled())
+          DNSLog.log("Sent response from upstream:\n" + replyMessage);
+        DNSCacheEntry entry = DNSCacheEntry.fromMessage(replyMessage);
         // Dig does not support sending multiple questions in one request.
         // This feature will be built when i have a tool to test it properly.
-        DNSCache.placeRecord(replyMessage.questions[0], replyMessage.answers[0]);
-        return reply;
-      } else {
-        // fetch the answer, create the answer and send it back to the client.
-        System.out.println("Sent from cache");
-        DNSMessage ret = DNSMessage.buildResponse(message);
-        System.out.println(ret.toString());
-        return ret.toBytes();
+        if (replyMessage.header.tc == 0)
+          cacheIfUsable(replyMessage.questions[0], entry, prefetch);
+        return entry;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
+    }, workers);
+  }
+
+  /**
+   * Caches a response if it answers the question, or is a negative answer carrying an
+   * SOA (RFC 2308).
+   * @param question - The question answered.
+   * @param entry - The response.
+   * @param prefetch - Whether it was fetched by a refresh-ahead. Marked on the entry before it is
+   * cached, as the off-heap store copies the mark when the entry is placed.
+   */
+  private static void cacheIfUsable(final DNSQuestion question, final DNSCacheEntry entry, final boolean prefetch) {
+    boolean positive = entry.rCode == 0 && entry.answers.length > 0;
+    if (!(positive || entry.negative)) {
+      if (DNSLog.sampled())
+        DNSLog.log("RCode: " + entry.rCode + ". Response sent to client without caching.");
+      return;
     }
-    System.out.println("Reply Generation Error");
-    return null;
+    entry.prefetched = prefetch;
+    DNSCache.placeEntry(question, entry);
+  }
+
+  /**
+   * Re-resolves a popular entry in the background before it expires, so its next
+   * requests are still answered from the cache.
+   * @param message - The request that hit the entry. resolve retains it, keeping the question
+   * DNSPrefetcher claimed the refresh by valid.
+   */
+  private static void prefetch(final DNSMessage message) {
+    if (DNSLog.sampled())
+      DNSLog.log("Refreshing cache entry ahead of expiry");
+    resolve(message, true).whenComplete((entry, error) -> DNSPrefetcher.onRefreshed(message.questions[0]));
+  }
+
+  /**
+   * @return The number of queries sent upstream.
+   */
+  static long upstreamQueries() {
+    return upstreamQueries.sum();
+  }
+
+  /**
+   * @return The number of cache misses that waited on another request's upstream query.
+   */
+  static long coalescedQueries() {
+    return coalescedQueries.sum();
+  }
+
+  /**
+   * @return The number of requests answered from an expired cache entry.
+   */
+  static long staleAnswers() {
+    return staleAnswers.sum();
+  }
+
+  /**
+   * @return The upstream resolvers, or null when resolving iteratively or not yet started.
+   */
+  static DNSUpstreams upstreams() {
+    return upstreams;
+  }
+
+  /**
+   * @return The iterative resolver, or null when forwarding to upstreams.
+   */
+  static DNSIterativeResolver iterativeResolver() {
+    return iterativeResolver;
+  }
+
+  /**
+   * @return The average number of client requests answered by each upstream query.
+   */
+  static double requestsPerUpstreamQuery() {
+    long upstream = upstreamQueries();
+    return upstream == 0 ? 0 : (double) (upstream + coalescedQueries()) / upstream;
+  }
+
+  /**
+   * Creates the reply to a request from a cached or freshly received upstream response,
+   * replaying its stored bytes when possible and rebuilding it otherwise.
+   * @param message - The client's request.
+   * @param entry - The response to the request's question.
+   * @param staleTtl - The TTL given to every record of an expired entry, or -1.
+   * @return The reply bytes.
+   */
+  private static byte[] replyFromEntry(final DNSMessage message, final DNSCacheEntry entry, final int staleTtl) {
+    byte[] replayed = entry.replay(message, staleTtl);
+    if (replayed != null)
+      return replayed;
+    DNSMessage ret = DNSMessage.buildResponse(message, entry, staleTtl);
+    if (DNSLog.sampled())
+      DNSLog.log(ret.toString());
+    return ret.toBytes();
+  }
+
+  /**
+   * Creates the reply to a request from a response, fitted to the client, and times it.
+   * @param message - The client's request.
+   * @param entry - The response to the request's question.
+   * @param staleTtl - The TTL given to every record of an expired entry, or -1.
+   * @param maxLength - The largest reply the client accepts.
+   * @return The reply bytes.
+   */
+  private static byte[] encode(final DNSMessage message, final DNSCacheEntry entry, final int staleTtl,
+      final int maxLength) {
+    long start = System.nanoTime();
+    byte[] ret = fitReply(message, replyFromEntry(message, entry, staleTtl), maxLength);
+    DNSMetrics.encode.recordSince(start);
+    return ret;
+  }
+
+  /**
+   * Swaps a reply that is too large for the client for a truncated one.
+   * @param message - The client's request.
+   * @param reply - The full reply.
+   * @param maxLength - The largest reply the client accepts.
+   * @return The reply to send.
+   */
+  private static byte[] fitReply(final DNSMessage message, final byte[] reply, final int maxLength) {
+    if (reply.length <= maxLength)
+      return reply;
+    if (DNSLog.sampled())
+      DNSLog.log("Reply of " + reply.length + " bytes truncated to fit " + maxLength);
+    return DNSMessage.buildTruncatedResponse(message, (byte) (reply[3] & 0xF)).toBytes();
   }
 
   /**
-   * Sends a requested DNS message to Google's DNS resolver.
+   * Sends a requested DNS message to the best upstream resolver. Queries without EDNS(0) get an
+   * OPT record added, so the answer is not truncated upstream before it is cached.
    * @param message - The DSN message contain the DNS questions.
-   * @return - A byte array contain the answer message for the client.
-   * @throws IOException
+   * @return - A future of the byte array contain the answer message for the client.
    */
-  private static byte[] getAnswerFromGoogle(final DNSMessage message) throws IOException {
-    DatagramSocket dataSocket = new DatagramSocket();
-    byte[] addr = new byte[] {8,8,8,8};
-    InetAddress address = InetAddress.getByAddress(addr);
-    DatagramPacket sendPacket = new DatagramPacket(message.rawData, message.rawData.length, address, 53);
-    dataSocket.send(sendPacket);
-    byte[] receiveData = new byte[512];
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-    dataSocket.receive(receivePacket);
-    dataSocket.close();
-    return receiveData;
+  private static CompletableFuture<byte[]> getAnswerFromUpstream(final DNSMessage message) {
+    byte[] query = message.findOpt() == null ? DNSMessage.withOpt(message.rawData) : message.rawData;
+    return upstreams.forward(query);
   }
 
   /**
    *  Sends a byte array reply to the client
    * @param socket - The server's DatagramSocket.
-   * @param packet - The client's received DatagramPacket.
+   * @param address - The client's address.
+   * @param port - The client's port.
    * @param reply - The response to send back to the client.
    * @throws IOException
    */
-  private static void sendReply(final DatagramSocket socket, final DatagramPacket packet, final byte[] reply) throws IOException {
-    InetAddress address = packet.getAddress();
-    int port = packet.getPort();
-    DatagramPacket returnPacket = new DatagramPacket(reply, reply.length, address, port);
+  private static void sendReply(final DatagramSocket socket, final InetAddress address, final int port, final byte[] reply)
+      throws IOException {
+    long start = System.nanoTime();
+    DatagramPacket returnPacket = REPLY_PACKETS.get();
+    returnPacket.setData(reply);
+    returnPacket.setAddress(address);
+    returnPacket.setPort(port);
     socket.send(returnPacket);
+    DNSMetrics.send.recordSince(start);
+    DNSMetrics.onReply(reply);
   }
 }
 
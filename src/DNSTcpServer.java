@@ -0,0 +1,294 @@
+package MSD;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+//Serves DNS over TCP (RFC 7766) with a few selector threads instead of a thread per connection.
+//Each connection may pipeline many length prefixed queries; they are answered on the worker
+//pool concurrently and every response is written back as soon as it is ready, in any order.
+public class DNSTcpServer {
+  // How long a connection may sit idle with no query outstanding before it is closed.
+  static final long IDLE_TIMEOUT_MILLIS = 10_000;
+  // Most queries answered at once per connection; reading pauses while this many are pending.
+  static final int MAX_PIPELINED_QUERIES = 64;
+  // How often idle connections are looked for.
+  private static final long IDLE_CHECK_MILLIS = 1_000;
+
+  private final Executor workers;
+  private final ServerSocketChannel serverChannel;
+  private final EventLoop[] loops;
+  private int nextLoop;
+
+  //One selector thread and the connections it owns.
+  private final class EventLoop implements Runnable {
+    final Selector selector = Selector.open();
+    // Connections handed over by the acceptor, or with responses ready to write.
+    final ConcurrentLinkedQueue<Connection> pendingChanges = new ConcurrentLinkedQueue<>();
+    private long lastIdleCheck = DNSClock.millis();
+
+    EventLoop() throws IOException {
+    }
+
+    @Override
+    public void run() {
+      while (selector.isOpen()) {
+        try {
+          selector.select(IDLE_CHECK_MILLIS);
+          Connection changed;
+          while ((changed = pendingChanges.poll()) != null) {
+            try {
+              changed.applyChanges();
+            } catch (IOException | RuntimeException e) {
+              // Such as a key cancelled while the change was queued; only this connection is lost.
+              changed.close();
+            }
+          }
+          for (SelectionKey key : selector.selectedKeys()) {
+            if (!key.isValid())
+              continue;
+            if (key.isAcceptable())
+              accept();
+            else
+              ((Connection) key.attachment()).onReady(key);
+          }
+          long now = DNSClock.millis();
+          if (now - lastIdleCheck >= IDLE_CHECK_MILLIS) {
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+              if (key.attachment() instanceof Connection)
+                ((Connection) key.attachment()).closeIfIdle(now);
+            }
+          }
+        } catch (ClosedSelectorException e) {
+          return;
+        } catch (IOException | RuntimeException e) {
+          if (selector.isOpen())
+            DNSLog.log("TCP event loop failed: " + e);
+        } finally {
+          if (selector.isOpen())
+            selector.selectedKeys().clear();
+        }
+      }
+    }
+  }
+
+  //The state of one client connection. Only touched by its event loop's thread, apart from
+  //the queue of finished responses.
+  private final class Connection {
+    final EventLoop loop;
+    final SocketChannel channel;
+    SelectionKey key;
+    // Holds the two byte length prefix, then the message itself.
+    ByteBuffer readBuffer = ByteBuffer.allocate(2);
+    boolean readingLength = true;
+    final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    final ConcurrentLinkedQueue<byte[]> finished = new ConcurrentLinkedQueue<>();
+    int outstanding;
+    // Set once the client has shut down its side of the connection.
+    boolean inputShutdown;
+    long lastActivity = DNSClock.millis();
+
+    Connection(final EventLoop loop, final SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+    }
+
+    /**
+     * Registers a newly accepted connection, or moves finished responses to the write queue.
+     * Runs on the event loop's thread.
+     */
+    void applyChanges() throws IOException {
+      if (key == null) {
+        key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+        return;
+      }
+      byte[] reply;
+      while ((reply = finished.poll()) != null) {
+        outstanding--;
+        if (reply.length == 0)
+          continue;
+        ByteBuffer buffer = ByteBuffer.allocate(reply.length + 2);
+        buffer.putShort((short) reply.length).put(reply).flip();
+        writeQueue.add(buffer);
+      }
+      updateInterest();
+    }
+
+    void onReady(final SelectionKey key) {
+      try {
+        if (key.isReadable())
+          read();
+        if (key.isValid() && key.isWritable())
+          write();
+        if (key.isValid())
+          updateInterest();
+      } catch (IOException | RuntimeException e) {
+        close();
+      }
+    }
+
+    /**
+     * Reads as many complete queries as are available and hands each to the workers.
+     */
+    private void read() throws IOException {
+      while (outstanding < MAX_PIPELINED_QUERIES) {
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+          // Half closed: finish answering what was asked, then close.
+          inputShutdown = true;
+          return;
+        }
+        if (readBuffer.hasRemaining())
+          return;
+        lastActivity = DNSClock.millis();
+        if (readingLength) {
+          int length = Short.toUnsignedInt(readBuffer.getShort(0));
+          readBuffer = ByteBuffer.allocate(length);
+          readingLength = false;
+          if (length > 0)
+            continue;
+        }
+        byte[] query = readBuffer.array();
+        readBuffer = ByteBuffer.allocate(2);
+        readingLength = true;
+        outstanding++;
+        answer(query);
+      }
+    }
+
+    /**
+     * Answers one query on the worker pool and queues the response for the event loop.
+     */
+    private void answer(final byte[] query) {
+      CompletableFuture.supplyAsync(() -> query, workers)
+          .thenCompose(DNSTcpServer::generateReply)
+          .whenComplete((reply, error) -> {
+            if (error != null)
+              DNSLog.log("Query failed: " + error);
+            else if (reply != null)
+              DNSMetrics.onReply(reply);
+            finished.add(reply == null ? new byte[0] : reply);
+            loop.pendingChanges.add(this);
+            loop.selector.wakeup();
+          });
+    }
+
+    private void write() throws IOException {
+      while (!writeQueue.isEmpty()) {
+        ByteBuffer buffer = writeQueue.peek();
+        channel.write(buffer);
+        if (buffer.hasRemaining())
+          return;
+        writeQueue.poll();
+        lastActivity = DNSClock.millis();
+      }
+    }
+
+    private void updateInterest() {
+      if (!key.isValid())
+        return;
+      if (inputShutdown && outstanding == 0 && writeQueue.isEmpty()) {
+        close();
+        return;
+      }
+      int ops = outstanding < MAX_PIPELINED_QUERIES && !inputShutdown ? SelectionKey.OP_READ : 0;
+      if (!writeQueue.isEmpty())
+        ops |= SelectionKey.OP_WRITE;
+      key.interestOps(ops);
+    }
+
+    void closeIfIdle(final long now) {
+      if (outstanding == 0 && writeQueue.isEmpty() && now - lastActivity > IDLE_TIMEOUT_MILLIS)
+        close();
+    }
+
+    void close() {
+      try {
+        if (key != null)
+          key.cancel();
+        channel.close();
+      } catch (IOException e) {
+        DNSLog.log("Closing TCP connection failed: " + e);
+      }
+    }
+  }
+
+  /**
+   * Binds the listening socket and starts the event loops.
+   * @param port - The TCP port to listen on.
+   * @param workers - The pool queries are answered on.
+   * @param loopCount - The number of selector threads connections are spread across.
+   * @throws IOException
+   */
+  DNSTcpServer(final int port, final Executor workers, final int loopCount) throws IOException {
+    this.workers = workers;
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port), 1024);
+    serverChannel.configureBlocking(false);
+    loops = new EventLoop[loopCount];
+    for (int i = 0; i < loopCount; i++)
+      loops[i] = new EventLoop();
+    // The first loop also accepts connections.
+    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    for (int i = 0; i < loopCount; i++) {
+      Thread thread = new Thread(loops[i], "dns-tcp-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Accepts every pending connection and hands each to an event loop in turn.
+   */
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      EventLoop loop = loops[nextLoop];
+      nextLoop = (nextLoop + 1) % loops.length;
+      loop.pendingChanges.add(new Connection(loop, channel));
+      loop.selector.wakeup();
+    }
+  }
+
+  /**
+   * Decodes a TCP query and generates its reply.
+   * @param query - The query bytes, without the length prefix.
+   * @return - A future of the reply, or of null if there is nothing to send back.
+   */
+  private static CompletableFuture<byte[]> generateReply(final byte[] query) {
+    try {
+      long start = System.nanoTime();
+      DNSMessage message = DNSMessage.decodePooled(query);
+      DNSMetrics.decode.recordSince(start);
+      DNSMetrics.onQuery(message);
+      if (message.header.qr != 0) {
+        message.recycle();
+        return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<byte[]> reply = DNSServer.generateReply(message, DNSServer.MAX_TCP_MESSAGE);
+      if (reply.isDone())
+        message.recycle();
+      return reply;
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  void close() throws IOException {
+    serverChannel.close();
+    for (EventLoop loop : loops)
+      loop.selector.close();
+  }
+}
@@ -0,0 +1,158 @@
+package MSD;
+
+import java.util.ArrayList;
+
+//A hierarchical timer wheel: four wheels of 64 slots, each slot of a wheel spanning a whole turn
+//of the wheel below. A timer goes into the lowest wheel whose turn reaches its deadline, and is
+//moved down a wheel each time the wheel above comes round to its slot, so scheduling,
+//cancelling and firing a timer all take constant time however many are pending. Deadlines
+//beyond the top wheel wait in its furthest slot and are placed again when it comes round.
+public class DNSTimerWheel {
+  static final int WHEELS = 4;
+  // Slots per wheel, a power of two.
+  static final int SLOTS = 64;
+  private static final int SLOT_BITS = Integer.numberOfTrailingZeros(SLOTS);
+
+  private final long tickMillis;
+  // Each slot is a circular list through a sentinel timer.
+  private final Timer[][] slots = new Timer[WHEELS][SLOTS];
+  // The last tick the wheel has been advanced to.
+  private long currentTick;
+  private int size;
+
+  //Something to do at a deadline. A timer is pending in at most one wheel at a time.
+  abstract static class Timer {
+    // The tick the timer is due at.
+    private long tick;
+    private Timer next;
+    private Timer previous;
+
+    /**
+     * Runs when the deadline has passed, outside the wheel's lock.
+     */
+    abstract void expire();
+
+    boolean pending() {
+      return next != null;
+    }
+  }
+
+  //The head of a slot's list.
+  private static final class Sentinel extends Timer {
+    @Override
+    void expire() {
+    }
+  }
+
+  /**
+   * Creates an empty wheel.
+   * @param tickMillis - The wheel's resolution. Timers fire up to one tick late.
+   * @param nowMillis - The current time, on the clock deadlines are given in.
+   */
+  DNSTimerWheel(final long tickMillis, final long nowMillis) {
+    this.tickMillis = tickMillis;
+    this.currentTick = nowMillis / tickMillis;
+    for (Timer[] wheel : slots) {
+      for (int i = 0; i < SLOTS; i++) {
+        Timer sentinel = new Sentinel();
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+        wheel[i] = sentinel;
+      }
+    }
+  }
+
+  /**
+   * Schedules a timer, moving it if it is already pending.
+   * @param timer - The timer.
+   * @param deadlineMillis - When the timer is due. A deadline already past fires on the next tick.
+   */
+  synchronized void schedule(final Timer timer, final long deadlineMillis) {
+    if (timer.pending()) {
+      unlink(timer);
+      size--;
+    }
+    // Rounded up, so the timer never fires before its deadline.
+    long tick = deadlineMillis / tickMillis + (deadlineMillis % tickMillis == 0 ? 0 : 1);
+    timer.tick = Math.max(tick, currentTick + 1);
+    insert(timer);
+    size++;
+  }
+
+  /**
+   * Cancels a timer if it is pending.
+   * @param timer - The timer.
+   */
+  synchronized void cancel(final Timer timer) {
+    if (timer.pending()) {
+      unlink(timer);
+      size--;
+    }
+  }
+
+  /**
+   * Places a timer in the lowest wheel whose turn reaches its tick.
+   */
+  private void insert(final Timer timer) {
+    long delta = Math.max(0, timer.tick - currentTick);
+    int wheel = 0;
+    while (wheel < WHEELS - 1 && delta >= 1L << (SLOT_BITS * (wheel + 1)))
+      wheel++;
+    long tick = Math.min(timer.tick, currentTick + (1L << (SLOT_BITS * WHEELS)) - 1);
+    Timer head = slots[wheel][(int) (tick >>> (SLOT_BITS * wheel)) & (SLOTS - 1)];
+    timer.next = head;
+    timer.previous = head.previous;
+    head.previous.next = timer;
+    head.previous = timer;
+  }
+
+  private static void unlink(final Timer timer) {
+    timer.previous.next = timer.next;
+    timer.next.previous = timer.previous;
+    timer.next = null;
+    timer.previous = null;
+  }
+
+  /**
+   * Moves the wheel on to the current time and fires every timer that has come due, in the
+   * calling thread.
+   * @param nowMillis - The current time.
+   * @return The number of timers fired.
+   */
+  int advance(final long nowMillis) {
+    ArrayList<Timer> due = new ArrayList<>();
+    synchronized (this) {
+      long target = nowMillis / tickMillis;
+      while (currentTick < target) {
+        currentTick++;
+        for (int wheel = 1; wheel < WHEELS; wheel++) {
+          if ((currentTick & ((1L << (SLOT_BITS * wheel)) - 1)) != 0)
+            break;
+          Timer head = slots[wheel][(int) (currentTick >>> (SLOT_BITS * wheel)) & (SLOTS - 1)];
+          while (head.next != head) {
+            Timer timer = head.next;
+            unlink(timer);
+            insert(timer);
+          }
+        }
+        Timer head = slots[0][(int) currentTick & (SLOTS - 1)];
+        while (head.next != head) {
+          Timer timer = head.next;
+          unlink(timer);
+          size--;
+          due.add(timer);
+        }
+      }
+    }
+    for (Timer timer : due)
+      timer.expire();
+    return due.size();
+  }
+
+  /**
+   * @return The number of pending timers.
+   */
+  synchronized int size() {
+    return size;
+  }
+}
@@ -0,0 +1,246 @@
+package MSD;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+//Serves DNS over UDP from several sockets bound to the same port with SO_REUSEPORT, so the
+//kernel spreads clients over as many receive queues instead of queueing every packet on one.
+//Each socket has an event loop of its own, which reads every ready packet when woken and
+//answers what it can at once, such as cache hits, itself; those replies are sent once the
+//batch has been read. Replies that wait on upstream are sent by whichever thread completes
+//them. Packets are read and replies sent through direct buffers that are reused, one per loop
+//and one per sending thread, so the JDK need not copy them into temporary ones. Queries past
+//the in-flight limit are answered with SERVFAIL at once rather than holding up the loop.
+public class DNSUdpServer {
+  // Most packets read per wakeup before the replies ready so far are sent.
+  static final int MAX_BATCH = 64;
+  // Receive buffer asked of the kernel for each socket, to ride out bursts.
+  static final int RECEIVE_BUFFER_BYTES = 4 << 20;
+
+  // The buffer each thread sends replies from.
+  private static final ThreadLocal<ByteBuffer> SEND_BUFFERS =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DNSServer.MAX_UDP_PAYLOAD));
+  // Queries turned away because too many were in flight.
+  private static final LongAdder overloaded = new LongAdder();
+
+  private final EventLoop[] loops;
+  // Bounds the queries being worked on across every loop.
+  private final Semaphore inFlight;
+
+  //One socket and the selector thread reading it.
+  private final class EventLoop implements Runnable {
+    final DatagramChannel channel;
+    final Selector selector = Selector.open();
+    private final ByteBuffer in = ByteBuffer.allocateDirect(DNSServer.MAX_UDP_PAYLOAD);
+    // Replies answered within the batch being read, and the clients they go to.
+    private final ArrayList<byte[]> replies = new ArrayList<>(MAX_BATCH);
+    private final ArrayList<SocketAddress> clients = new ArrayList<>(MAX_BATCH);
+
+    EventLoop(final int port, final boolean reusePort) throws IOException {
+      channel = DatagramChannel.open();
+      if (reusePort)
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+      channel.bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void run() {
+      while (selector.isOpen()) {
+        try {
+          selector.select();
+          selector.selectedKeys().clear();
+          readBatch();
+        } catch (ClosedSelectorException e) {
+          return;
+        } catch (IOException | RuntimeException e) {
+          if (channel.isOpen())
+            DNSLog.log("UDP event loop failed: " + e);
+        }
+      }
+    }
+
+    /**
+     * Reads and answers up to MAX_BATCH ready packets. Any left wake the selector again at once.
+     */
+    private void readBatch() throws IOException {
+      try {
+        for (int i = 0; i < MAX_BATCH; i++) {
+          in.clear();
+          SocketAddress client = channel.receive(in);
+          if (client == null)
+            break;
+          in.flip();
+          byte[] data = new byte[in.remaining()];
+          in.get(data);
+          handle(data, client);
+        }
+      } finally {
+        for (int i = 0; i < replies.size(); i++)
+          send(channel, replies.get(i), clients.get(i));
+        replies.clear();
+        clients.clear();
+      }
+    }
+
+    private void handle(final byte[] data, final SocketAddress client) {
+      if (!inFlight.tryAcquire()) {
+        overloaded.increment();
+        byte[] refusal = serverFailure(data);
+        if (refusal != null) {
+          replies.add(refusal);
+          clients.add(client);
+        }
+        return;
+      }
+      CompletableFuture<byte[]> reply;
+      try {
+        reply = DNSServer.answerDatagram(data);
+      } catch (IOException | RuntimeException e) {
+        inFlight.release();
+        DNSLog.log("Query failed: " + e);
+        return;
+      }
+      if (reply.isDone() && !reply.isCompletedExceptionally()) {
+        inFlight.release();
+        byte[] bytes = reply.join();
+        if (bytes != null) {
+          replies.add(bytes);
+          clients.add(client);
+        }
+        return;
+      }
+      reply.whenComplete((bytes, error) -> {
+        inFlight.release();
+        if (error != null)
+          DNSLog.log("Query failed: " + error);
+        else if (bytes != null)
+          send(channel, bytes, client);
+      });
+    }
+  }
+
+  /**
+   * Binds the sockets. Without SO_REUSEPORT only one can be bound, and the server runs with one loop.
+   * @param port - The UDP port to listen on.
+   * @param shards - The number of sockets and event loops.
+   * @param inFlight - Bounds the queries being worked on at once; queries past it get SERVFAIL.
+   * @throws IOException If the sockets cannot be bound.
+   */
+  DNSUdpServer(final int port, final int shards, final Semaphore inFlight) throws IOException {
+    this.inFlight = inFlight;
+    boolean reusePort;
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+    int count = reusePort ? shards : 1;
+    if (count < shards)
+      DNSLog.log("SO_REUSEPORT is not supported, serving UDP from one socket");
+    loops = new EventLoop[count];
+    try {
+      for (int i = 0; i < count; i++)
+        loops[i] = new EventLoop(port, reusePort);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs every event loop on a thread of its own and waits for them to stop.
+   */
+  void run() {
+    Thread[] threads = new Thread[loops.length];
+    for (int i = 0; i < loops.length; i++) {
+      threads[i] = new Thread(loops[i], "dns-udp-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Builds a SERVFAIL reply to a query straight from its bytes, without decoding it: the
+   * header with QR and RA set, and the question. Any EDNS record is left out.
+   * @param query - The query bytes.
+   * @return The reply, or null if the bytes are not a query with one plain question.
+   */
+  static byte[] serverFailure(final byte[] query) {
+    if (query.length <= DNSHeader.HEADER_LENGTH || (query[2] & 0x80) != 0 || query[4] != 0 || query[5] != 1)
+      return null;
+    int pos = DNSHeader.HEADER_LENGTH;
+    while (pos < query.length && query[pos] != 0) {
+      if ((query[pos] & 0xC0) != 0)
+        return null;
+      pos += (query[pos] & 0xff) + 1;
+    }
+    int questionEnd = pos + 5;
+    if (questionEnd > query.length)
+      return null;
+    byte[] ret = new byte[questionEnd];
+    System.arraycopy(query, 0, ret, 0, questionEnd);
+    // Opcode and RD are kept from the query.
+    ret[2] = (byte) (0x80 | (query[2] & 0x79));
+    ret[3] = (byte) (0x80 | DNSMessage.RCODE_SERVER_FAILURE);
+    for (int i = 6; i < DNSHeader.HEADER_LENGTH; i++)
+      ret[i] = 0;
+    return ret;
+  }
+
+  /**
+   * @return The number of queries answered with SERVFAIL because too many were in flight.
+   */
+  static long overloaded() {
+    return overloaded.sum();
+  }
+
+  /**
+   * Sends a reply through the calling thread's direct buffer.
+   * @param channel - The socket the query came in on.
+   * @param reply - The reply bytes.
+   * @param client - The client's address.
+   */
+  private static void send(final DatagramChannel channel, final byte[] reply, final SocketAddress client) {
+    long start = System.nanoTime();
+    ByteBuffer out = SEND_BUFFERS.get();
+    out.clear();
+    out.put(reply).flip();
+    try {
+      channel.send(out, client);
+    } catch (IOException e) {
+      DNSLog.log("Reply to " + client + " failed: " + e);
+      return;
+    }
+    DNSMetrics.send.recordSince(start);
+    DNSMetrics.onReply(reply);
+  }
+
+  void close() throws IOException {
+    for (EventLoop loop : loops) {
+      if (loop == null)
+        continue;
+      loop.selector.close();
+      loop.channel.close();
+    }
+  }
+}
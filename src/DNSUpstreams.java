@@ -0,0 +1,476 @@
+package MSD;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Spreads upstream queries over several resolvers, each with a DNSForwarder of its own. A smoothed
+//round trip time and failure rate are kept for every upstream. Queries go to the fastest healthy
+//one and fail over to the next when it does not answer, and may be hedged to a second upstream
+//once the first is slower than usual. Upstreams that keep failing are marked down, and after a
+//back-off are probed by sending them a copy of a client query alongside the normal one. How long
+//a try waits for its reply follows the upstream's round trip time, the way TCP sets its
+//retransmission timeout (RFC 6298), so a dead upstream is given up on in a few round trips.
+public class DNSUpstreams {
+  // Weight of a new sample in the smoothed round trip time and failure rate.
+  static final double RTT_GAIN = 0.125;
+  static final double RTT_VARIANCE_GAIN = 0.25;
+  static final double FAILURE_GAIN = 0.1;
+  // Consecutive failures after which an upstream is marked down.
+  static final int MARK_DOWN_FAILURES = 3;
+  // How long a down upstream waits before it is probed, doubled after every failed probe.
+  static final long MIN_DOWN_MILLIS = 1_000;
+  static final long MAX_DOWN_MILLIS = 60_000;
+  // Number of recent round trip times the hedging delay is taken from, and how many new
+  // samples it is recomputed after.
+  static final int RTT_SAMPLES = 256;
+  static final int RECOMPUTE_EVERY = 64;
+  // Hedging delay used until an upstream has answered enough queries.
+  static final long INITIAL_HEDGE_MILLIS = 100;
+  // How long a try waits for a reply before the upstream has answered, and the least it
+  // waits after; never longer than the timeout the upstreams were opened with.
+  static final long INITIAL_TIMEOUT_MILLIS = 1_000;
+  static final long MIN_TIMEOUT_MILLIS = 100;
+  // Response codes treated as the upstream failing rather than answering.
+  private static final int RCODE_SERVER_FAILURE = 2;
+  private static final int RCODE_REFUSED = 5;
+
+  private final Upstream[] upstreams;
+  private final long maxTimeoutMillis;
+  // The percentile of an upstream's round trip times after which a query is hedged, or 0.
+  private final double hedgePercentile;
+  private final ScheduledThreadPoolExecutor timer;
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder failovers = new LongAdder();
+  private final LongAdder probes = new LongAdder();
+
+  //One upstream resolver and its health. Guarded by its own lock.
+  private final class Upstream {
+    final InetSocketAddress address;
+    final DNSForwarder forwarder;
+    // Smoothed round trip time and its mean deviation in milliseconds; srtt is -1 before the
+    // first answer.
+    double srtt = -1;
+    double rttVariance;
+    double failureRate;
+    int consecutiveFailures;
+    // When a down upstream may be probed; 0 while it is up.
+    long downUntil;
+    long downMillis;
+    // Set while the single probe of a down upstream is outstanding.
+    boolean probing;
+    // Recent round trip times, as a ring.
+    final long[] samples = new long[RTT_SAMPLES];
+    int sampleCount;
+    volatile long hedgeMillis = INITIAL_HEDGE_MILLIS;
+
+    Upstream(final InetSocketAddress address, final DNSForwarder forwarder) {
+      this.address = address;
+      this.forwarder = forwarder;
+    }
+
+    /**
+     * Records a good reply.
+     * @param rttMillis - The round trip time of the try it answered, or -1 if it answered a
+     * resent try and so is not timed.
+     */
+    synchronized void onSuccess(final long rttMillis) {
+      failureRate -= FAILURE_GAIN * failureRate;
+      consecutiveFailures = 0;
+      if (downUntil != 0) {
+        // Times from before the upstream went down say little about it now, so it is
+        // measured afresh instead.
+        DNSLog.log("Upstream " + address + " back up");
+        srtt = -1;
+        rttVariance = 0;
+        downUntil = 0;
+        downMillis = 0;
+        probing = false;
+        return;
+      }
+      if (rttMillis < 0)
+        return;
+      if (srtt < 0) {
+        srtt = rttMillis;
+        rttVariance = rttMillis / 2.0;
+      } else {
+        rttVariance += RTT_VARIANCE_GAIN * (Math.abs(srtt - rttMillis) - rttVariance);
+        srtt += RTT_GAIN * (rttMillis - srtt);
+      }
+      samples[sampleCount++ % RTT_SAMPLES] = rttMillis;
+      if (sampleCount % RECOMPUTE_EVERY == 0)
+        hedgeMillis = percentile();
+    }
+
+    synchronized void onFailure(final long now) {
+      failureRate += FAILURE_GAIN * (1 - failureRate);
+      consecutiveFailures++;
+      if (probing) {
+        downMillis = Math.min(MAX_DOWN_MILLIS, downMillis * 2);
+        downUntil = now + downMillis;
+        probing = false;
+      } else if (downUntil == 0 && consecutiveFailures >= MARK_DOWN_FAILURES) {
+        downMillis = MIN_DOWN_MILLIS;
+        downUntil = now + downMillis;
+        DNSLog.log("Upstream " + address + " marked down");
+      }
+    }
+
+    synchronized boolean isUp() {
+      return downUntil == 0;
+    }
+
+    /**
+     * @return How long a try waits for this upstream's reply: four mean deviations past the
+     * smoothed round trip time.
+     */
+    synchronized long timeoutMillis() {
+      if (srtt < 0)
+        return Math.min(INITIAL_TIMEOUT_MILLIS, maxTimeoutMillis);
+      long ret = (long) Math.ceil(srtt + 4 * rttVariance);
+      return Math.min(maxTimeoutMillis, Math.max(MIN_TIMEOUT_MILLIS, ret));
+    }
+
+    /**
+     * Claims the probe of a down upstream whose back-off has run out.
+     * @return True if the caller should send the probe.
+     */
+    synchronized boolean claimProbe(final long now) {
+      if (downUntil == 0 || now < downUntil || probing)
+        return false;
+      probing = true;
+      return true;
+    }
+
+    /**
+     * @return The expected cost of a query: the smoothed round trip time, inflated by the
+     * failure rate. Upstreams that have not answered yet score 0 so they get measured.
+     */
+    synchronized double score() {
+      return srtt < 0 ? 0 : srtt / (1 - Math.min(failureRate, 0.9));
+    }
+
+    private long percentile() {
+      long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, RTT_SAMPLES));
+      Arrays.sort(sorted);
+      return Math.max(1, sorted[(int) Math.min(sorted.length - 1, sorted.length * hedgePercentile)]);
+    }
+
+    synchronized long downUntil() {
+      return downUntil;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return address + " SRTT:" + Math.round(srtt) + "ms FailureRate:" + String.format("%.2f", failureRate) +
+          (downUntil == 0 ? " Up" : " Down") + " Hedge:" + hedgeMillis + "ms Timeout:" + timeoutMillis() + "ms";
+    }
+  }
+
+  //One client query, sent to one upstream after another until one answers.
+  private final class Query {
+    final byte[] query;
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    final boolean[] tried = new boolean[upstreams.length];
+    int outstanding;
+    // The last answer that was not good enough, returned if no upstream does better.
+    byte[] lastReply;
+    Throwable lastError;
+
+    Query(final byte[] query) {
+      this.query = query;
+    }
+  }
+
+  /**
+   * Opens a forwarder for every upstream.
+   * @param addresses - The upstream resolvers.
+   * @param socketCount - How many sockets each upstream's queries are spread across.
+   * @param timeoutMillis - The longest to wait for a reply before resending. Once an upstream has
+   * answered, its tries wait for a time taken from its round trip times instead, if shorter.
+   * @param retries - How many times a query is resent to the same upstream before failing over.
+   * @param hedgePercentile - The percentile of an upstream's round trip times after which a
+   * query is also sent to the next best upstream, between 0 and 1. 0 turns hedging off.
+   * @throws IOException
+   */
+  DNSUpstreams(final List<InetSocketAddress> addresses, final int socketCount, final long timeoutMillis,
+      final int retries, final double hedgePercentile) throws IOException {
+    if (addresses.isEmpty())
+      throw new IllegalArgumentException("No upstream resolvers");
+    this.hedgePercentile = hedgePercentile;
+    this.maxTimeoutMillis = timeoutMillis;
+    upstreams = new Upstream[addresses.size()];
+    for (int i = 0; i < upstreams.length; i++) {
+      InetSocketAddress address = addresses.get(i);
+      upstreams[i] = new Upstream(address, new DNSForwarder(address, socketCount, timeoutMillis, retries));
+    }
+    timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "dns-upstreams-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Parses a comma separated list of upstreams, each an address with an optional port.
+   * IPv6 addresses with a port are written in brackets.
+   * @param list - For example "8.8.8.8,1.1.1.1:53,[2001:4860:4860::8888]:53".
+   * @return The upstream addresses.
+   */
+  static List<InetSocketAddress> parse(final String list) {
+    List<InetSocketAddress> ret = new ArrayList<>();
+    for (String item : list.split(",")) {
+      String host = item.trim();
+      int port = 53;
+      int colon = host.lastIndexOf(':');
+      if (host.startsWith("[")) {
+        int close = host.indexOf(']');
+        if (colon > close)
+          port = Integer.parseInt(host.substring(colon + 1));
+        host = host.substring(1, close);
+      } else if (colon >= 0 && colon == host.indexOf(':')) {
+        port = Integer.parseInt(host.substring(colon + 1));
+        host = host.substring(0, colon);
+      }
+      if (!host.isEmpty())
+        ret.add(new InetSocketAddress(host, port));
+    }
+    return ret;
+  }
+
+  /**
+   * Sends a query to the best upstream, failing over to the others in turn.
+   * @param query - The client's query in wire format. It is not modified.
+   * @return A future completed with the first good reply, carrying the client's ID. If no
+   * upstream gives one it completes with the last SERVFAIL or REFUSED reply, or fails.
+   */
+  CompletableFuture<byte[]> forward(final byte[] query) {
+    Query pending = new Query(query);
+    Upstream primary = trySend(pending);
+    probeIfDue(pending);
+    if (primary != null && hedgePercentile > 0 && upstreams.length > 1 && !pending.result.isDone()) {
+      ScheduledFuture<?> hedge = timer.schedule(() -> {
+        if (!pending.result.isDone() && trySend(pending) != null)
+          hedges.increment();
+      }, primary.hedgeMillis, TimeUnit.MILLISECONDS);
+      pending.result.whenComplete((reply, error) -> hedge.cancel(false));
+    }
+    return pending.result;
+  }
+
+  /**
+   * Sends a query to the best upstream it has not been sent to yet.
+   * @param pending - The query.
+   * @return The upstream it was sent to, or null if there is none left.
+   */
+  private Upstream trySend(final Query pending) {
+    Upstream upstream;
+    synchronized (pending) {
+      int index = pick(pending);
+      if (index < 0)
+        return null;
+      pending.tried[index] = true;
+      pending.outstanding++;
+      upstream = upstreams[index];
+    }
+    send(pending, upstream);
+    return upstream;
+  }
+
+  /**
+   * Also sends a query to a down upstream whose back-off has run out, so it is brought back
+   * as soon as it answers without the client waiting on it.
+   * @param pending - A query already sent to a healthy upstream.
+   */
+  private void probeIfDue(final Query pending) {
+    long now = DNSClock.millis();
+    for (int i = 0; i < upstreams.length; i++) {
+      synchronized (pending) {
+        if (pending.tried[i] || !upstreams[i].claimProbe(now))
+          continue;
+        pending.tried[i] = true;
+        pending.outstanding++;
+      }
+      probes.increment();
+      send(pending, upstreams[i]);
+      return;
+    }
+  }
+
+  private void send(final Query pending, final Upstream upstream) {
+    // Set by the forwarder before the reply is handed over, if the first try was answered.
+    long[] rtt = {-1};
+    upstream.forwarder.forward(pending.query, upstream.timeoutMillis(), nanos -> rtt[0] = nanos)
+        .whenComplete((reply, error) -> onAttemptDone(pending, upstream, rtt[0], reply, error));
+  }
+
+  /**
+   * Chooses the healthy upstream with the lowest score, then a down one that is due a probe.
+   * A query that has not been sent anywhere yet goes to the upstream that has been down the
+   * shortest time rather than failing outright.
+   * @return The upstream's index, or -1.
+   */
+  private int pick(final Query pending) {
+    long now = DNSClock.millis();
+    int best = -1;
+    double bestScore = Double.MAX_VALUE;
+    for (int i = 0; i < upstreams.length; i++) {
+      if (pending.tried[i] || !upstreams[i].isUp())
+        continue;
+      double score = upstreams[i].score();
+      if (score < bestScore) {
+        best = i;
+        bestScore = score;
+      }
+    }
+    if (best >= 0)
+      return best;
+    for (int i = 0; i < upstreams.length; i++) {
+      if (!pending.tried[i] && upstreams[i].claimProbe(now))
+        return i;
+    }
+    if (pending.outstanding > 0 || pending.lastError != null || pending.lastReply != null)
+      return -1;
+    long earliest = Long.MAX_VALUE;
+    for (int i = 0; i < upstreams.length; i++) {
+      long downUntil = upstreams[i].downUntil();
+      if (downUntil < earliest) {
+        best = i;
+        earliest = downUntil;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Records an upstream's result for a query. Good replies complete the query; failures
+   * move it on to the next upstream, or end it once every upstream has been tried.
+   */
+  private void onAttemptDone(final Query pending, final Upstream upstream, final long rttNanos,
+      final byte[] reply, final Throwable error) {
+    if (error == null && !isFailure(reply)) {
+      if (rttNanos >= 0)
+        DNSMetrics.upstreamRtt.record(rttNanos);
+      upstream.onSuccess(rttNanos < 0 ? -1 : rttNanos / 1_000_000);
+      pending.result.complete(reply);
+      return;
+    }
+    upstream.onFailure(DNSClock.millis());
+    synchronized (pending) {
+      pending.outstanding--;
+      if (error != null)
+        pending.lastError = error;
+      else
+        pending.lastReply = reply;
+      if (pending.result.isDone())
+        return;
+      if (trySend(pending) != null) {
+        failovers.increment();
+        return;
+      }
+      if (pending.outstanding > 0)
+        return;
+    }
+    if (pending.lastReply != null)
+      pending.result.complete(pending.lastReply);
+    else
+      pending.result.completeExceptionally(pending.lastError);
+  }
+
+  private static boolean isFailure(final byte[] reply) {
+    int rCode = reply[3] & 0xF;
+    return rCode == RCODE_SERVER_FAILURE || rCode == RCODE_REFUSED;
+  }
+
+  /**
+   * @return The number of queries also sent to a second upstream because the first was slow.
+   */
+  long hedges() {
+    return hedges.sum();
+  }
+
+  /**
+   * @return The number of times a query moved on to another upstream after one failed.
+   */
+  long failovers() {
+    return failovers.sum();
+  }
+
+  /**
+   * @return The number of queries also sent to a down upstream to see if it is back.
+   */
+  long probes() {
+    return probes.sum();
+  }
+
+  /**
+   * @return The number of attempts, over every upstream, that got no reply in time.
+   */
+  long timeouts() {
+    long ret = 0;
+    for (Upstream upstream : upstreams)
+      ret += upstream.forwarder.timeouts();
+    return ret;
+  }
+
+  /**
+   * @return The number of errors, over every upstream, reading replies.
+   */
+  long receiveErrors() {
+    long ret = 0;
+    for (Upstream upstream : upstreams)
+      ret += upstream.forwarder.receiveErrors();
+    return ret;
+  }
+
+  /**
+   * Writes each upstream's smoothed round trip time and whether it is up, in the Prometheus
+   * text format.
+   * @param out - Where the samples are appended.
+   */
+  void writeMetrics(final StringBuilder out) {
+    DNSMetrics.type(out, "dns_upstream_srtt_seconds", "gauge");
+    for (Upstream upstream : upstreams) {
+      double srtt;
+      synchronized (upstream) {
+        srtt = upstream.srtt;
+      }
+      DNSMetrics.sample(out, "dns_upstream_srtt_seconds", "upstream", label(upstream.address),
+          Math.max(0, srtt) / 1000);
+    }
+    DNSMetrics.type(out, "dns_upstream_up", "gauge");
+    for (Upstream upstream : upstreams)
+      DNSMetrics.sample(out, "dns_upstream_up", "upstream", label(upstream.address), upstream.isUp() ? 1 : 0);
+  }
+
+  private static String label(final InetSocketAddress address) {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  /**
+   * Closes every upstream's forwarder.
+   * @throws IOException
+   */
+  void close() throws IOException {
+    timer.shutdownNow();
+    for (Upstream upstream : upstreams)
+      upstream.forwarder.close();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder ret = new StringBuilder("Hedges:" + hedges() + " Failovers:" + failovers() +
+        " Probes:" + probes());
+    for (Upstream upstream : upstreams)
+      ret.append("\n  ").append(upstream);
+    return ret.toString();
+  }
+}
@@ -0,0 +1,383 @@
+package MSD;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+//One zone the server answers for authoritatively. Names are kept in a trie of labels read from
+//the zone's origin downwards. Each node holds its owner name and all of its records in wire format
+//in a single byte array, so a lookup walks one node per label, and a zone of a million records
+//costs a couple of arrays per name rather than a map entry and an object per record.
+public class DNSZone {
+  // Most CNAMEs followed within the zone for one answer.
+  static final int MAX_CNAME_CHAIN = 8;
+  static final short TYPE_AAAA = 28;
+  static final short TYPE_ANY = 255;
+  private static final Node[] NO_CHILDREN = new Node[0];
+  private static final byte[] WILDCARD_LABEL = {1, '*'};
+
+  // The file the zone was loaded from.
+  final Path file;
+  // The zone's name in wire format.
+  final byte[] origin;
+  private final int originLabels;
+  private final Node apex;
+  private int recordCount;
+
+  //One name in the zone.
+  private static final class Node {
+    // The name's first label, lower cased, with its length byte.
+    final byte[] label;
+    // Sorted by label once the zone is loaded.
+    Node[] children = NO_CHILDREN;
+    // The owner name in wire format followed by the name's records, each as type, class,
+    // TTL, rdLength and rdData. Null for a name that only exists because names below it do.
+    byte[] data;
+    // Children by label, only while the zone is being loaded.
+    HashMap<String, Node> building;
+
+    Node(final byte[] label) {
+      this.label = label;
+    }
+  }
+
+  //Where a name was found in the trie.
+  private static final class Match {
+    // The name's node, or null if it does not exist.
+    Node node;
+    // The deepest node on the way to the name.
+    Node encloser;
+    // The delegation the name is at or below, or null if the zone holds its data.
+    Node cut;
+  }
+
+  /**
+   * Creates an empty zone.
+   * @param file - The master file the zone is loaded from.
+   * @param origin - The zone's name in wire format.
+   */
+  DNSZone(final Path file, final byte[] origin) {
+    this.file = file;
+    this.origin = origin;
+    this.originLabels = DNSMessage.labelCount(origin, 0);
+    this.apex = new Node(new byte[] {0});
+  }
+
+  /**
+   * Adds a record while the zone is loaded.
+   * @param owner - The owner name in wire format.
+   * @param type - The record type.
+   * @param class_ - The record class.
+   * @param ttl - The TTL.
+   * @param rdData - The rdData, with any names in it uncompressed.
+   * @throws IOException If the owner is not in the zone.
+   */
+  void add(final byte[] owner, final short type, final short class_, final int ttl, final byte[] rdData)
+      throws IOException {
+    if (!DNSMessage.isSubdomain(owner, 0, origin, 0))
+      throw new IOException("Owner " + String.join(".", DNSMessage.readDomainName(owner, 0)) + " is outside the zone");
+    int[] positions = labelPositions(owner, 0);
+    Node node = apex;
+    for (int i = positions.length - originLabels - 1; i >= 0; i--) {
+      if (node.building == null)
+        node.building = new HashMap<>();
+      byte[] label = lowerLabel(owner, positions[i]);
+      String key = new String(label, StandardCharsets.ISO_8859_1);
+      Node child = node.building.get(key);
+      if (child == null) {
+        child = new Node(label);
+        node.building.put(key, child);
+      }
+      node = child;
+    }
+    int start;
+    if (node.data == null) {
+      node.data = Arrays.copyOf(owner, owner.length + 10 + rdData.length);
+      start = owner.length;
+    } else {
+      start = node.data.length;
+      node.data = Arrays.copyOf(node.data, start + 10 + rdData.length);
+    }
+    byte[] data = node.data;
+    data[start] = (byte) (type >> 8);
+    data[start + 1] = (byte) type;
+    data[start + 2] = (byte) (class_ >> 8);
+    data[start + 3] = (byte) class_;
+    data[start + 4] = (byte) (ttl >> 24);
+    data[start + 5] = (byte) (ttl >> 16);
+    data[start + 6] = (byte) (ttl >> 8);
+    data[start + 7] = (byte) ttl;
+    data[start + 8] = (byte) (rdData.length >> 8);
+    data[start + 9] = (byte) rdData.length;
+    System.arraycopy(rdData, 0, data, start + 10, rdData.length);
+    recordCount++;
+  }
+
+  /**
+   * Finishes loading: sorts every node's children for lookups and drops the loading maps.
+   * @throws IOException If the zone has no SOA record at its apex.
+   */
+  void freeze() throws IOException {
+    if (first(apex.data, 0, DNSRecord.TYPE_SOA) == null)
+      throw new IOException("Zone " + name() + " has no SOA record");
+    freeze(apex);
+  }
+
+  private static void freeze(final Node node) {
+    if (node.building == null)
+      return;
+    node.children = node.building.values().toArray(new Node[0]);
+    node.building = null;
+    Arrays.sort(node.children, (a, b) -> Arrays.compareUnsigned(a.label, b.label));
+    for (Node child : node.children)
+      freeze(child);
+  }
+
+  /**
+   * Answers a request whose question is in the zone (RFC 1034 4.3.2): the records asked
+   * for, following CNAMEs within the zone; a referral for names at or below a delegation;
+   * the records of a wildcard for names that do not exist but match one; and otherwise
+   * NXDOMAIN or NODATA with the zone's SOA.
+   * @param request - The client's request.
+   * @return - The response.
+   */
+  DNSMessage answer(final DNSMessage request) {
+    DNSQuestion question = request.questions[0];
+    List<DNSRecord> answers = new ArrayList<>();
+    List<DNSRecord> authority = new ArrayList<>();
+    List<DNSRecord> additional = new ArrayList<>();
+    byte rCode = 0;
+    boolean authoritative = true;
+    byte[] nameData = question.nameData;
+    int nameOffset = question.nameOffset;
+    for (int chain = 0; chain <= MAX_CNAME_CHAIN; chain++) {
+      Match match = find(nameData, nameOffset, true);
+      if (match.cut != null) {
+        if (answers.isEmpty()) {
+          authoritative = false;
+          addRecords(authority, match.cut.data, DNSRecord.TYPE_NS);
+          addGlue(additional, authority);
+        }
+        break;
+      }
+      byte[] data;
+      if (match.node != null) {
+        data = match.node.data;
+      } else {
+        Node wildcard = child(match.encloser, WILDCARD_LABEL, 0);
+        if (wildcard == null) {
+          rCode = DNSMessage.RCODE_NAME_ERROR;
+          addNegative(authority);
+          break;
+        }
+        data = synthesize(wildcard.data, nameData, nameOffset);
+      }
+      DNSRecord cname = question.qType == DNSRecord.TYPE_CNAME ? null : first(data, 0, DNSRecord.TYPE_CNAME);
+      if (cname != null) {
+        answers.add(cname);
+        if (!DNSMessage.isSubdomain(cname.data, cname.rdOffset, origin, 0))
+          break;
+        nameData = cname.data;
+        nameOffset = cname.rdOffset;
+        continue;
+      }
+      int before = answers.size();
+      addRecords(answers, data, question.qType);
+      if (answers.size() == before)
+        addNegative(authority);
+      break;
+    }
+    DNSMessage ret = new DNSMessage();
+    if (authoritative)
+      DNSHeader.buildAuthoritativeResponseHeader(request, ret);
+    else
+      DNSHeader.buildResponseHeader(request, ret);
+    ret.questions = request.questions;
+    ret.answers = answers.toArray(new DNSRecord[0]);
+    ret.authorityRecords = authority.toArray(new DNSRecord[0]);
+    ret.additionalRecords = additional.toArray(new DNSRecord[0]);
+    ret.header.rCode = rCode;
+    ret.header.anCount = (short) ret.answers.length;
+    ret.header.nsCount = (short) ret.authorityRecords.length;
+    ret.header.arCount = (short) ret.additionalRecords.length;
+    ret.addOpt(request);
+    return ret;
+  }
+
+  /**
+   * Walks the trie towards a name in the zone.
+   * @param data - The bytes holding the name.
+   * @param offset - The index of the name.
+   * @param stopAtCuts - Whether to stop at the first delegation on the way.
+   * @return Where the name was found.
+   */
+  private Match find(final byte[] data, final int offset, final boolean stopAtCuts) {
+    Match ret = new Match();
+    int[] positions = labelPositions(data, offset);
+    Node node = apex;
+    for (int i = positions.length - originLabels - 1; i >= 0; i--) {
+      Node child = child(node, data, positions[i]);
+      if (child == null) {
+        ret.encloser = node;
+        return ret;
+      }
+      node = child;
+      if (stopAtCuts && first(node.data, 0, DNSRecord.TYPE_NS) != null) {
+        ret.cut = node;
+        return ret;
+      }
+    }
+    ret.node = node;
+    ret.encloser = node;
+    return ret;
+  }
+
+  /**
+   * Finds a node's child by label with a binary search, ignoring the label's case.
+   */
+  private static Node child(final Node node, final byte[] data, final int pos) {
+    Node[] children = node.children;
+    int low = 0;
+    int high = children.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareLabel(children[mid].label, data, pos);
+      if (cmp < 0)
+        low = mid + 1;
+      else if (cmp > 0)
+        high = mid - 1;
+      else
+        return children[mid];
+    }
+    return null;
+  }
+
+  /**
+   * Compares a lower cased label with a label in a name, in the order Arrays.compareUnsigned
+   * sorts lower cased labels.
+   */
+  private static int compareLabel(final byte[] label, final byte[] data, final int pos) {
+    int length = label[0] & 0xff;
+    int cmp = Integer.compare(length, data[pos] & 0xff);
+    for (int k = 1; cmp == 0 && k <= length; k++)
+      cmp = Integer.compare(label[k] & 0xff, DNSMessage.toLower(data[pos + k]) & 0xff);
+    return cmp;
+  }
+
+  private static byte[] lowerLabel(final byte[] data, final int pos) {
+    byte[] ret = Arrays.copyOfRange(data, pos, pos + (data[pos] & 0xff) + 1);
+    for (int k = 1; k < ret.length; k++)
+      ret[k] = DNSMessage.toLower(ret[k]);
+    return ret;
+  }
+
+  /**
+   * @return The index of every label of a name, from the first label to the last.
+   */
+  private static int[] labelPositions(final byte[] data, final int offset) {
+    int[] ret = new int[DNSMessage.labelCount(data, offset)];
+    int pos = DNSMessage.followPointers(data, offset);
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = pos;
+      pos = DNSMessage.followPointers(data, pos + (data[pos] & 0xff) + 1);
+    }
+    return ret;
+  }
+
+  /**
+   * Copies a wildcard's records under the name asked for (RFC 4592).
+   * @param wildcard - The wildcard node's data.
+   * @param nameData - The bytes holding the name asked for.
+   * @param nameOffset - The index of the name.
+   * @return The name followed by the wildcard's records.
+   */
+  private static byte[] synthesize(final byte[] wildcard, final byte[] nameData, final int nameOffset) {
+    if (wildcard == null)
+      return null;
+    DNSOutputBuffer os = new DNSOutputBuffer();
+    DNSMessage.writeDomainName(os, null, nameData, nameOffset);
+    int recordsStart = DNSMessage.skipName(wildcard, 0);
+    os.writeBytes(wildcard, recordsStart, wildcard.length - recordsStart);
+    return os.toByteArray();
+  }
+
+  /**
+   * Adds a node's records of a type, or all of them for ANY, to a section.
+   */
+  private static void addRecords(final List<DNSRecord> section, final byte[] data, final short type) {
+    if (data == null)
+      return;
+    int pos = DNSMessage.skipName(data, 0);
+    while (pos < data.length) {
+      DNSRecord record = DNSRecord.fromZoneData(data, 0, pos);
+      if (record.type == type || type == TYPE_ANY)
+        section.add(record);
+      pos = record.rdOffset + record.rdLength;
+    }
+  }
+
+  /**
+   * @return A node's first record of a type, or null.
+   */
+  private static DNSRecord first(final byte[] data, final int nameOffset, final short type) {
+    if (data == null)
+      return null;
+    int pos = DNSMessage.skipName(data, nameOffset);
+    while (pos < data.length) {
+      if (DNSMessage.getShort(data, pos) == type)
+        return DNSRecord.fromZoneData(data, nameOffset, pos);
+      pos += 10 + Short.toUnsignedInt(DNSMessage.getShort(data, pos + 8));
+    }
+    return null;
+  }
+
+  /**
+   * Adds the addresses of a referral's nameservers that are inside the zone.
+   */
+  private void addGlue(final List<DNSRecord> additional, final List<DNSRecord> nameservers) {
+    for (DNSRecord ns : nameservers) {
+      if (!DNSMessage.isSubdomain(ns.data, ns.rdOffset, origin, 0))
+        continue;
+      Match match = find(ns.data, ns.rdOffset, false);
+      if (match.node != null) {
+        addRecords(additional, match.node.data, DNSRecord.TYPE_A);
+        addRecords(additional, match.node.data, TYPE_AAAA);
+      }
+    }
+  }
+
+  /**
+   * Adds the zone's SOA to the authority section of a negative answer, with its TTL lowered
+   * to the SOA's MINIMUM field (RFC 2308 section 3).
+   */
+  private void addNegative(final List<DNSRecord> authority) {
+    DNSRecord soa = first(apex.data, 0, DNSRecord.TYPE_SOA);
+    soa.capTtl(soa.soaMinimum());
+    authority.add(soa);
+  }
+
+  /**
+   * @return The zone's name, for messages.
+   */
+  String name() {
+    String ret = String.join(".", DNSMessage.readDomainName(origin, 0));
+    return ret.isEmpty() ? "." : ret;
+  }
+
+  int originLabels() {
+    return originLabels;
+  }
+
+  int recordCount() {
+    return recordCount;
+  }
+
+  @Override
+  public String toString() {
+    return "Zone:" + name() + " Records:" + recordCount + " File:" + file;
+  }
+}
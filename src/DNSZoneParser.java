@@ -0,0 +1,445 @@
+package MSD;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+//Reads a zone from an RFC 1035 master file (section 5): $ORIGIN and $TTL directives, @ for the
+//origin, relative names, owners and TTLs carried over from the record before, parentheses spanning
+//lines, comments, quoted strings and escapes. Knows the common record types, and any other type
+//written in the generic form of RFC 3597. The zone's name is the owner of its SOA record.
+public class DNSZoneParser {
+  static final short TYPE_TXT = 16;
+
+  private final Path file;
+  private final BufferedReader reader;
+  private int lineNumber;
+  private byte[] origin;
+  private int defaultTtl = -1;
+  private byte[] lastOwner;
+  private int lastTtl = -1;
+  private DNSZone zone;
+
+  //One token of a line, and whether it was quoted.
+  private static final class Token {
+    final String text;
+    final boolean quoted;
+
+    Token(final String text, final boolean quoted) {
+      this.text = text;
+      this.quoted = quoted;
+    }
+  }
+
+  private DNSZoneParser(final Path file, final BufferedReader reader) {
+    this.file = file;
+    this.reader = reader;
+  }
+
+  /**
+   * Loads a zone from a master file.
+   * @param file - The master file.
+   * @return - The zone, ready for lookups.
+   * @throws IOException If the file cannot be read or is not a valid zone.
+   */
+  static DNSZone parse(final Path file) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+      DNSZoneParser parser = new DNSZoneParser(file, reader);
+      List<Token> tokens = new ArrayList<>();
+      boolean[] indented = new boolean[1];
+      while (parser.readEntry(tokens, indented))
+        parser.entry(tokens, indented[0]);
+      if (parser.zone == null)
+        throw new IOException(file + ": no SOA record");
+      parser.zone.freeze();
+      return parser.zone;
+    }
+  }
+
+  /**
+   * Reads the tokens of one entry, which spans several lines inside parentheses.
+   * @param tokens - Filled with the entry's tokens.
+   * @param indented - Set to whether the entry starts with blanks, leaving out its owner.
+   * @return False at the end of the file.
+   */
+  private boolean readEntry(final List<Token> tokens, final boolean[] indented) throws IOException {
+    tokens.clear();
+    int depth = 0;
+    boolean first = true;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (first)
+        indented[0] = !line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t');
+      first = false;
+      depth = tokenize(line, tokens, depth);
+      if (depth == 0 && !tokens.isEmpty())
+        return true;
+      if (depth == 0)
+        first = true;
+    }
+    if (depth != 0)
+      throw error("unbalanced parentheses");
+    return !tokens.isEmpty();
+  }
+
+  /**
+   * Splits a line into tokens, dropping comments and parentheses.
+   * @return The parenthesis depth at the end of the line.
+   */
+  private int tokenize(final String line, final List<Token> tokens, int depth) throws IOException {
+    int i = 0;
+    while (i < line.length()) {
+      char c = line.charAt(i);
+      if (c == ';')
+        break;
+      if (c == ' ' || c == '\t' || c == '\r') {
+        i++;
+      } else if (c == '(') {
+        depth++;
+        i++;
+      } else if (c == ')') {
+        if (--depth < 0)
+          throw error("unbalanced parentheses");
+        i++;
+      } else if (c == '"') {
+        StringBuilder text = new StringBuilder();
+        i++;
+        while (i < line.length() && line.charAt(i) != '"') {
+          if (line.charAt(i) == '\\' && i + 1 < line.length())
+            text.append(line.charAt(i++));
+          text.append(line.charAt(i++));
+        }
+        if (i == line.length())
+          throw error("unterminated quoted string");
+        i++;
+        tokens.add(new Token(text.toString(), true));
+      } else {
+        int start = i;
+        while (i < line.length() && " \t\r;()\"".indexOf(line.charAt(i)) < 0) {
+          if (line.charAt(i) == '\\')
+            i++;
+          i++;
+        }
+        tokens.add(new Token(line.substring(start, Math.min(i, line.length())), false));
+      }
+    }
+    return depth;
+  }
+
+  private void entry(final List<Token> tokens, final boolean indented) throws IOException {
+    String first = tokens.get(0).text;
+    if (!indented && first.equalsIgnoreCase("$ORIGIN")) {
+      origin = name(argument(tokens), null);
+      return;
+    }
+    if (!indented && first.equalsIgnoreCase("$TTL")) {
+      defaultTtl = ttl(argument(tokens));
+      return;
+    }
+    if (!indented && first.startsWith("$"))
+      throw error("unsupported directive " + first);
+    int i = 0;
+    byte[] owner;
+    if (indented) {
+      if (lastOwner == null)
+        throw error("no owner name");
+      owner = lastOwner;
+    } else {
+      owner = name(first, origin);
+      i = 1;
+    }
+    int ttl = -1;
+    short class_ = DNSRecord.CLASS_IN;
+    for (boolean more = true; more && i < tokens.size(); ) {
+      String text = tokens.get(i).text;
+      if (ttl < 0 && Character.isDigit(text.charAt(0))) {
+        ttl = ttl(text);
+        i++;
+      } else if (text.equalsIgnoreCase("IN")) {
+        i++;
+      } else if (text.equalsIgnoreCase("CH") || text.equalsIgnoreCase("HS")) {
+        class_ = (short) (text.equalsIgnoreCase("CH") ? 3 : 4);
+        i++;
+      } else {
+        more = false;
+      }
+    }
+    if (i >= tokens.size())
+      throw error("missing record type");
+    short type = type(tokens.get(i++).text);
+    List<Token> rdTokens = tokens.subList(i, tokens.size());
+    byte[] rdData = rdData(type, rdTokens);
+    if (zone == null) {
+      if (type != DNSRecord.TYPE_SOA)
+        throw error("the first record must be the zone's SOA");
+      zone = new DNSZone(file, owner);
+    }
+    if (ttl < 0)
+      ttl = defaultTtl >= 0 ? defaultTtl : lastTtl;
+    if (ttl < 0 && type == DNSRecord.TYPE_SOA)
+      ttl = DNSMessage.getInt(rdData, rdData.length - 4);
+    if (ttl < 0)
+      throw error("no TTL");
+    try {
+      zone.add(owner, type, class_, ttl, rdData);
+    } catch (IOException e) {
+      throw error(e.getMessage());
+    }
+    lastOwner = owner;
+    lastTtl = ttl;
+  }
+
+  private String argument(final List<Token> tokens) throws IOException {
+    if (tokens.size() != 2)
+      throw error(tokens.get(0).text + " takes one argument");
+    return tokens.get(1).text;
+  }
+
+  /**
+   * Encodes an rdData from its presentation form.
+   */
+  private byte[] rdData(final short type, final List<Token> tokens) throws IOException {
+    DNSOutputBuffer os = new DNSOutputBuffer();
+    if (!tokens.isEmpty() && tokens.get(0).text.equals("\\#")) {
+      if (tokens.size() < 2)
+        throw error("missing rdData length");
+      int length = number(tokens.get(1).text, 0xFFFF);
+      StringBuilder hex = new StringBuilder();
+      for (Token token : tokens.subList(2, tokens.size()))
+        hex.append(token.text);
+      if (hex.length() != length * 2)
+        throw error("rdData length does not match its data");
+      for (int k = 0; k < length; k++) {
+        int b = Character.digit(hex.charAt(2 * k), 16) << 4 | Character.digit(hex.charAt(2 * k + 1), 16);
+        if (b < 0)
+          throw error("bad hex in rdData");
+        os.writeByte(b);
+      }
+      return os.toByteArray();
+    }
+    switch (type) {
+      case DNSRecord.TYPE_A:
+        expect(tokens, 1);
+        String[] octets = tokens.get(0).text.split("\\.", -1);
+        if (octets.length != 4)
+          throw error("bad IPv4 address " + tokens.get(0).text);
+        for (String octet : octets)
+          os.writeByte(number(octet, 255));
+        break;
+      case DNSZone.TYPE_AAAA:
+        expect(tokens, 1);
+        String text = tokens.get(0).text;
+        InetAddress address = text.indexOf(':') >= 0 ? InetAddress.getByName(text) : null;
+        if (!(address instanceof Inet6Address))
+          throw error("bad IPv6 address " + text);
+        byte[] bytes = address.getAddress();
+        os.writeBytes(bytes, 0, bytes.length);
+        break;
+      case DNSRecord.TYPE_NS:
+      case DNSRecord.TYPE_CNAME:
+      case DNSRecord.TYPE_PTR:
+        expect(tokens, 1);
+        writeName(os, tokens.get(0).text);
+        break;
+      case DNSRecord.TYPE_MX:
+        expect(tokens, 2);
+        os.writeShort(number(tokens.get(0).text, 0xFFFF));
+        writeName(os, tokens.get(1).text);
+        break;
+      case DNSRecord.TYPE_SRV:
+        expect(tokens, 4);
+        for (int k = 0; k < 3; k++)
+          os.writeShort(number(tokens.get(k).text, 0xFFFF));
+        writeName(os, tokens.get(3).text);
+        break;
+      case DNSRecord.TYPE_SOA:
+        expect(tokens, 7);
+        writeName(os, tokens.get(0).text);
+        writeName(os, tokens.get(1).text);
+        os.writeInt(serial(tokens.get(2).text));
+        for (int k = 3; k < 7; k++)
+          os.writeInt(ttl(tokens.get(k).text));
+        break;
+      case TYPE_TXT:
+        if (tokens.isEmpty())
+          throw error("TXT needs at least one string");
+        for (Token token : tokens) {
+          byte[] string = unescape(token.text);
+          if (string.length > 255)
+            throw error("TXT string longer than 255 bytes");
+          os.writeByte(string.length);
+          os.writeBytes(string, 0, string.length);
+        }
+        break;
+      default:
+        throw error("type " + type + " must be written in the generic \\# form");
+    }
+    return os.toByteArray();
+  }
+
+  private void writeName(final DNSOutputBuffer os, final String text) throws IOException {
+    byte[] name = name(text, origin);
+    os.writeBytes(name, 0, name.length);
+  }
+
+  /**
+   * Encodes a domain name in wire format.
+   * @param text - The name, absolute if it ends in a dot, "@" for the origin.
+   * @param relativeTo - The origin relative names are completed with, or null if there is none.
+   */
+  private byte[] name(final String text, final byte[] relativeTo) throws IOException {
+    if (text.equals("@")) {
+      if (relativeTo == null)
+        throw error("@ used without an origin");
+      return relativeTo;
+    }
+    DNSOutputBuffer os = new DNSOutputBuffer();
+    byte[] label = new byte[63];
+    int length = 0;
+    boolean absolute = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int b;
+      if (c == '.') {
+        if (length == 0) {
+          if (text.length() == 1) {
+            absolute = true;
+            break;
+          }
+          throw error("empty label in " + text);
+        }
+        os.writeByte(length);
+        os.writeBytes(label, 0, length);
+        length = 0;
+        absolute = i == text.length() - 1;
+        continue;
+      } else if (c == '\\' && i + 3 < text.length() && Character.isDigit(text.charAt(i + 1))) {
+        b = number(text.substring(i + 1, i + 4), 255);
+        i += 3;
+      } else if (c == '\\' && i + 1 < text.length()) {
+        b = text.charAt(++i);
+      } else {
+        b = c;
+      }
+      if (length == 63)
+        throw error("label longer than 63 bytes in " + text);
+      label[length++] = (byte) b;
+    }
+    if (length > 0) {
+      os.writeByte(length);
+      os.writeBytes(label, 0, length);
+    }
+    if (!absolute) {
+      if (relativeTo == null)
+        throw error("relative name " + text + " used without an origin");
+      os.writeBytes(relativeTo, 0, relativeTo.length);
+    } else {
+      os.writeByte(0);
+    }
+    if (os.size() > DNSMessage.MAX_NAME_LENGTH)
+      throw error("name longer than 255 bytes: " + text);
+    return os.toByteArray();
+  }
+
+  /**
+   * Undoes the escapes of a character string.
+   */
+  private byte[] unescape(final String text) throws IOException {
+    DNSOutputBuffer os = new DNSOutputBuffer();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\' && i + 3 < text.length() && Character.isDigit(text.charAt(i + 1))) {
+        os.writeByte(number(text.substring(i + 1, i + 4), 255));
+        i += 3;
+      } else if (c == '\\' && i + 1 < text.length()) {
+        os.writeByte(text.charAt(++i));
+      } else {
+        os.writeByte(c);
+      }
+    }
+    return os.toByteArray();
+  }
+
+  private short type(final String text) throws IOException {
+    switch (text.toUpperCase()) {
+      case "A": return DNSRecord.TYPE_A;
+      case "NS": return DNSRecord.TYPE_NS;
+      case "CNAME": return DNSRecord.TYPE_CNAME;
+      case "SOA": return DNSRecord.TYPE_SOA;
+      case "PTR": return DNSRecord.TYPE_PTR;
+      case "MX": return DNSRecord.TYPE_MX;
+      case "TXT": return TYPE_TXT;
+      case "AAAA": return DNSZone.TYPE_AAAA;
+      case "SRV": return DNSRecord.TYPE_SRV;
+      default:
+        if (text.toUpperCase().startsWith("TYPE"))
+          return (short) number(text.substring(4), 0xFFFF);
+        throw error("unknown record type " + text);
+    }
+  }
+
+  /**
+   * Reads a TTL, either in seconds or with BIND's unit suffixes such as 1h30m.
+   */
+  private int ttl(final String text) throws IOException {
+    long ret = 0;
+    long value = -1;
+    for (int i = 0; i < text.length(); i++) {
+      char c = Character.toLowerCase(text.charAt(i));
+      if (Character.isDigit(c)) {
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+      } else {
+        int unit = "smhdw".indexOf(c);
+        if (unit < 0 || value < 0)
+          throw error("bad TTL " + text);
+        ret += value * new long[] {1, 60, 3600, 86400, 604800}[unit];
+        value = -1;
+      }
+      if (ret + Math.max(value, 0) > Integer.MAX_VALUE)
+        throw error("TTL too large " + text);
+    }
+    return (int) (ret + Math.max(value, 0));
+  }
+
+  private int number(final String text, final int max) throws IOException {
+    try {
+      int ret = Integer.parseInt(text);
+      if (ret < 0 || ret > max)
+        throw error("number out of range " + text);
+      return ret;
+    } catch (NumberFormatException e) {
+      throw error("bad number " + text);
+    }
+  }
+
+  /**
+   * Reads an SOA serial, an unsigned 32 bit number (RFC 1982).
+   * @return The serial's bits, negative for serials past 2^31 - 1.
+   */
+  private int serial(final String text) throws IOException {
+    try {
+      long ret = Long.parseLong(text);
+      if (ret < 0 || ret > 0xFFFFFFFFL)
+        throw error("serial out of range " + text);
+      return (int) ret;
+    } catch (NumberFormatException e) {
+      throw error("bad serial " + text);
+    }
+  }
+
+  private void expect(final List<Token> tokens, final int count) throws IOException {
+    if (tokens.size() != count)
+      throw error("expected " + count + " rdData fields but found " + tokens.size());
+  }
+
+  private IOException error(final String message) {
+    return new IOException(file + ":" + lineNumber + ": " + message);
+  }
+}
@@ -0,0 +1,108 @@
+package MSD;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//The zones the server is authoritative for. Lookups read an immutable array through a volatile
+//field, so a zone is reloaded by parsing it aside and then swapping the array, never blocking
+//queries. A background task reloads any zone whose file has changed.
+public class DNSZones {
+  // How often the zone files are checked for changes, in seconds.
+  static final int RELOAD_CHECK_SECONDS = 5;
+
+  // The loaded zones, the most specific first, replaced as a whole on every change.
+  private static volatile DNSZone[] zones = new DNSZone[0];
+  // The modification time of each zone file when it was last loaded.
+  private static final HashMap<Path, Long> loadedTimes = new HashMap<>();
+  private static ScheduledExecutorService reloader;
+
+  /**
+   * Loads a zone, replacing the one loaded from the same file before.
+   * @param file - The master file of the zone.
+   * @throws IOException If the file cannot be read or is not a valid zone. Zones already
+   * loaded are left as they were.
+   */
+  static synchronized void load(final Path file) throws IOException {
+    long modified = Files.getLastModifiedTime(file).toMillis();
+    DNSZone zone = DNSZoneParser.parse(file);
+    List<DNSZone> next = new ArrayList<>(zones.length + 1);
+    for (DNSZone loaded : zones) {
+      if (!loaded.file.equals(file))
+        next.add(loaded);
+    }
+    next.add(zone);
+    next.sort(Comparator.comparingInt(DNSZone::originLabels).reversed());
+    zones = next.toArray(new DNSZone[0]);
+    loadedTimes.put(file, modified);
+    DNSLog.log("Loaded zone " + zone);
+  }
+
+  /**
+   * Starts checking the zone files for changes in the background.
+   */
+  static synchronized void watch() {
+    if (reloader != null)
+      return;
+    reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "dns-zone-reloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reloader.scheduleWithFixedDelay(DNSZones::reloadChanged, RELOAD_CHECK_SECONDS, RELOAD_CHECK_SECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Reloads every zone whose file was modified since it was loaded. A zone that fails to
+   * parse keeps being served as it was.
+   */
+  private static synchronized void reloadChanged() {
+    for (Path file : new ArrayList<>(loadedTimes.keySet())) {
+      try {
+        if (Files.getLastModifiedTime(file).toMillis() != loadedTimes.get(file))
+          load(file);
+      } catch (IOException e) {
+        DNSLog.log("Keeping the loaded zone, reload failed: " + e.getMessage());
+        try {
+          loadedTimes.put(file, Files.getLastModifiedTime(file).toMillis());
+        } catch (IOException ignored) {
+          // The file is gone, so it is retried until it is back.
+        }
+      }
+    }
+  }
+
+  /**
+   * Answers a request from the zone that contains its question, if there is one.
+   * @param request - The client's request.
+   * @return - The authoritative response, or null if the question is outside every zone.
+   */
+  static DNSMessage answer(final DNSMessage request) {
+    DNSZone[] current = zones;
+    if (current.length == 0 || request.questions.length != 1)
+      return null;
+    DNSQuestion question = request.questions[0];
+    if (question.qClass != DNSRecord.CLASS_IN)
+      return null;
+    for (DNSZone zone : current) {
+      if (DNSMessage.isSubdomain(question.nameData, question.nameOffset, zone.origin, 0))
+        return zone.answer(request);
+    }
+    return null;
+  }
+
+  /**
+   * @return - The number of zones loaded.
+   */
+  static int size() {
+    return zones.length;
+  }
+}
@@ -1,12 +1,57 @@
 package MSD;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.List;
 
 public class Main {
 
+  /**
+   * Starts the server.
+   * @param args - Optional: the number of worker threads, the maximum number of queries in
+   * flight at once, a comma separated list of upstream resolvers, and the percentile of an
+   * upstream's round trip times after which queries are hedged (0 for no hedging).
+   * Instead of upstreams, "root" resolves iteratively from the root servers, and
+   * "root=address,address" from the given root hints. Then a comma separated list of zone
+   * master files the server answers for authoritatively, a file the cache is saved to and
+   * loaded from at startup, and the megabytes of memory outside the Java heap to cache
+   * responses in, a fifth of it for negative responses; without it, or 0, the cache is kept in the heap.
+   * Then the loopback port metrics are served on over HTTP (0 for none), and the share of queries,
+   * from 0 to 1, whose handling is logged. Last, the number of UDP sockets to share the port
+   * with SO_REUSEPORT, each read by its own event loop, usually one per core; 0 or absent
+   * receives on a single socket.
+   */
   public static void main(String[] args) {
     try {
-      DNSServer.openAndRunServerSocket();
+      int workers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+      int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : DNSServer.DEFAULT_MAX_IN_FLIGHT;
+      List<InetSocketAddress> upstreams = List.of(DNSServer.GOOGLE_DNS);
+      if (args.length > 2 && args[2].equals("root"))
+        DNSServer.resolveIteratively(DNSIterativeResolver.rootServers());
+      else if (args.length > 2 && args[2].startsWith("root="))
+        DNSServer.resolveIteratively(DNSUpstreams.parse(args[2].substring("root=".length())));
+      else if (args.length > 2)
+        upstreams = DNSUpstreams.parse(args[2]);
+      double hedgePercentile = args.length > 3 ? Double.parseDouble(args[3]) : DNSServer.DEFAULT_HEDGE_PERCENTILE;
+      if (args.length > 4 && !args[4].isEmpty()) {
+        for (String zoneFile : args[4].split(","))
+          DNSZones.load(Paths.get(zoneFile));
+        DNSZones.watch();
+      }
+      if (args.length > 6) {
+        long bytes = Long.parseLong(args[6]) << 20;
+        DNSCache.setOffHeap(bytes - bytes / 5, bytes / 5);
+      }
+      if (args.length > 5 && !args[5].isEmpty())
+        DNSCacheSnapshot.start(Paths.get(args[5]));
+      if (args.length > 7 && Integer.parseInt(args[7]) > 0)
+        DNSMetrics.serve(Integer.parseInt(args[7]));
+      if (args.length > 8)
+        DNSLog.setSampleRate(Double.parseDouble(args[8]));
+      if (args.length > 9)
+        DNSServer.shardUdp(Integer.parseInt(args[9]));
+      DNSServer.openAndRunServerSocket(workers, maxInFlight, upstreams, hedgePercentile);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -0,0 +1,145 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+//Checks the names DNSCompressionTable writes against hand-worked wire bytes (RFC 1035 4.1.4),
+//and that compressed messages decode back to the names they were written from.
+class DNSCompressionTest {
+  // www.example.com, with example.com at 4 bytes in and com at 12.
+  private static final String WWW_EXAMPLE_COM = "03777777076578616d706c6503636f6d00";
+
+  // A response to www.example.com A: a CNAME to cdn.example.com and its address, every name in full.
+  private static final String UNCOMPRESSED_RESPONSE = "123481800001000200000000"
+      + "03777777076578616d706c6503636f6d0000010001"
+      + "03777777076578616d706c6503636f6d00" + "00050001" + "0000012c" + "0011" + "0363646e076578616d706c6503636f6d00"
+      + "0363646e076578616d706c6503636f6d00" + "00010001" + "0000003c" + "0004" + "0a000001";
+  // The same response compressed: the CNAME's owner points at the question (12), its target ends
+  // with a pointer to example.com (16), and the address's owner points at the target (45).
+  private static final String COMPRESSED_RESPONSE = "123481800001000200000000"
+      + "03777777076578616d706c6503636f6d0000010001"
+      + "c00c" + "00050001" + "0000012c" + "0006" + "0363646ec010"
+      + "c02d" + "00010001" + "0000003c" + "0004" + "0a000001";
+
+  private DNSOutputBuffer os;
+  private DNSCompressionTable compression;
+
+  @BeforeEach
+  void setUp() {
+    os = new DNSOutputBuffer();
+    compression = new DNSCompressionTable();
+    compression.reset(0);
+    os.writeBytes(new byte[DNSHeader.HEADER_LENGTH], 0, DNSHeader.HEADER_LENGTH);
+  }
+
+  @Test
+  void reusesTheLongestSuffixWritten() {
+    write("www.example.com");
+    write("mail.example.com");
+    write("example.com");
+    write("com");
+    assertArrayEquals(hex("000000000000000000000000" + WWW_EXAMPLE_COM + "046d61696cc010" + "c010" + "c018"),
+        os.toByteArray());
+  }
+
+  @Test
+  void matchesSuffixesIgnoringCaseAndKeepsTheCaseFirstWritten() {
+    write("WWW.Example.COM");
+    write("www.EXAMPLE.com");
+    write("mail.example.COM");
+    assertArrayEquals(hex("000000000000000000000000" + "03575757074578616d706c6503434f4d00" + "c00c"
+        + "046d61696cc010"), os.toByteArray());
+  }
+
+  @Test
+  void neverPointsPastTheFourteenBitLimit() {
+    write("example.com");
+    // Pads so "ab" starts at 0x3FFE, the last place a pointer can reach with room for a label.
+    os.writeBytes(new byte[0x3FFE - os.size()], 0, 0x3FFE - os.size());
+    int tail = os.size();
+    write("ab.test.org");
+    write("ab.test.org");
+    write("test.org");
+    write("x.example.com");
+    write("test.org");
+    byte[] written = Arrays.copyOfRange(os.toByteArray(), tail, os.size());
+    // ab.test.org is remembered as it starts at 0x3FFE, but test.org and org start past 0x3FFF,
+    // so every later test.org is written out again rather than pointed at.
+    assertArrayEquals(hex("0261620474657374036f726700" + "fffe" + "0474657374036f726700" + "0178c00c"
+        + "0474657374036f726700"), written);
+  }
+
+  @Test
+  void followsPointersInTheNameBeingWritten() {
+    byte[] response = hex(COMPRESSED_RESPONSE);
+    // The address record's owner, a pointer to the CNAME's target, which itself ends in a pointer.
+    DNSMessage.writeDomainName(os, compression, response, 51);
+    DNSMessage.writeDomainName(os, null, response, 51);
+    assertArrayEquals(hex("000000000000000000000000" + "0363646e076578616d706c6503636f6d00"
+        + "0363646e076578616d706c6503636f6d00"), os.toByteArray());
+  }
+
+  @Test
+  void compressesAMessageToTheGoldenBytes() throws IOException {
+    assertArrayEquals(hex(COMPRESSED_RESPONSE), DNSMessage.decodeMessage(hex(UNCOMPRESSED_RESPONSE)).toBytes());
+  }
+
+  @Test
+  void roundTripsThroughDecoding() throws IOException {
+    byte[] compressed = hex(COMPRESSED_RESPONSE);
+    DNSMessage decoded = DNSMessage.decodeMessage(compressed);
+    assertArrayEquals(compressed, decoded.toBytes());
+    DNSMessage uncompressed = DNSMessage.decodeMessage(hex(UNCOMPRESSED_RESPONSE));
+    assertEquals(decoded.questions[0], uncompressed.questions[0]);
+    for (int i = 0; i < decoded.answers.length; i++) {
+      DNSRecord a = decoded.answers[i];
+      DNSRecord b = uncompressed.answers[i];
+      assertArrayEquals(DNSMessage.readDomainName(b.data, b.nameOffset), DNSMessage.readDomainName(a.data, a.nameOffset));
+      assertEquals(b.type, a.type);
+      assertEquals(b.ttl, a.ttl);
+    }
+    DNSRecord cname = decoded.answers[0];
+    assertArrayEquals(new String[] {"cdn", "example", "com"}, DNSMessage.readDomainName(cname.data, cname.rdOffset));
+  }
+
+  @Test
+  void roundTripsMixedCaseNames() throws IOException {
+    DNSMessage query = DNSMessage.decodeMessage(DNSMessage.buildQuery(
+        DNSQuestion.of(name("WwW.ExAmPlE.CoM"), 0, DNSRecord.TYPE_A, DNSRecord.CLASS_IN)));
+    DNSMessage decoded = DNSMessage.decodeMessage(query.toBytes());
+    assertArrayEquals(new String[] {"WwW", "ExAmPlE", "CoM"}, decoded.questions[0].qName());
+    assertEquals(DNSQuestion.of(name("www.example.com"), 0, DNSRecord.TYPE_A, DNSRecord.CLASS_IN),
+        decoded.questions[0]);
+  }
+
+  private void write(final String name) {
+    DNSMessage.writeDomainName(os, compression, name(name), 0);
+  }
+
+  /**
+   * @param dotted - A name without the trailing dot.
+   * @return - The name in wire format, uncompressed.
+   */
+  private static byte[] name(final String dotted) {
+    DNSOutputBuffer ret = new DNSOutputBuffer();
+    for (String label : dotted.split("\\.")) {
+      ret.writeByte(label.length());
+      for (int i = 0; i < label.length(); i++)
+        ret.writeByte(label.charAt(i));
+    }
+    ret.writeByte(0);
+    return ret.toByteArray();
+  }
+
+  private static byte[] hex(final String hex) {
+    byte[] ret = new byte[hex.length() / 2];
+    for (int i = 0; i < ret.length; i++)
+      ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    return ret;
+  }
+}
@@ -0,0 +1,111 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+//How DNSForwarder matches a reply to the query it sent: the question's name ignoring ASCII case
+//only (RFC 4343), its type and class exactly, and without a fixed upstream the server asked as
+//the sender, with every attempt sent from a port of its own (RFC 5452).
+class DNSForwarderTest {
+  private static final byte[] QUERY = DNSStubServer.query("www.example.com", DNSRecord.TYPE_A);
+
+  private DNSForwarder forwarder;
+  private DatagramChannel server;
+
+  @AfterEach
+  void tearDown() throws IOException {
+    if (forwarder != null)
+      forwarder.close();
+    if (server != null)
+      server.close();
+  }
+
+  @Test
+  void matchesNamesIgnoringAsciiCase() {
+    byte[] query = DNSStubServer.query("www.example.com", DNSRecord.TYPE_A);
+    byte[] reply = DNSStubServer.noError(DNSStubServer.query("WwW.ExAmPlE.CoM", DNSRecord.TYPE_A));
+    assertTrue(DNSForwarder.sameQuestion(query, reply));
+  }
+
+  @Test
+  void doesNotFoldBytesPastAscii() {
+    // 0xC9 and 0xE9 are É and é in Latin-1, which are not the same name in DNS.
+    byte[] query = DNSStubServer.query("café.test", DNSRecord.TYPE_A);
+    byte[] reply = DNSStubServer.noError(DNSStubServer.query("cafÉ.test", DNSRecord.TYPE_A));
+    assertFalse(DNSForwarder.sameQuestion(query, reply));
+  }
+
+  @Test
+  void comparesTheTypeExactly() {
+    // Types 0x41 and 0x61 are one letter apart in ASCII.
+    byte[] query = DNSStubServer.query("www.example.com", (short) 0x41);
+    byte[] reply = DNSStubServer.noError(DNSStubServer.query("www.example.com", (short) 0x61));
+    assertFalse(DNSForwarder.sameQuestion(query, reply));
+  }
+
+  @Test
+  void sendsEveryAttemptFromAPortOfItsOwn() throws Exception {
+    open(1);
+    Set<Integer> ports = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      CompletableFuture<byte[]> reply = forwarder.forward(QUERY, address());
+      ByteBuffer query = ByteBuffer.allocate(DNSServer.MAX_UDP_PAYLOAD);
+      InetSocketAddress from = (InetSocketAddress) server.receive(query);
+      ports.add(from.getPort());
+      // The first attempt is left to time out; the resend comes from another port.
+      query.clear();
+      InetSocketAddress retryFrom = (InetSocketAddress) server.receive(query);
+      assertNotEquals(from.getPort(), retryFrom.getPort());
+      ports.add(retryFrom.getPort());
+      server.send(ByteBuffer.wrap(DNSStubServer.noError(Arrays.copyOf(query.array(), query.position()))), retryFrom);
+      assertArrayEquals(DNSStubServer.noError(QUERY), reply.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(6, ports.size());
+  }
+
+  @Test
+  void dropsRepliesFromAnotherAddress() throws Exception {
+    open(0);
+    CompletableFuture<byte[]> reply = forwarder.forward(QUERY, address());
+    ByteBuffer query = ByteBuffer.allocate(DNSServer.MAX_UDP_PAYLOAD);
+    InetSocketAddress from = (InetSocketAddress) server.receive(query);
+    byte[] answer = DNSStubServer.noError(Arrays.copyOf(query.array(), query.position()));
+    // The right ID and question, to the right port, but not from the server asked.
+    try (DatagramChannel other = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+      other.send(ByteBuffer.wrap(answer), from);
+    }
+    Thread.sleep(100);
+    assertFalse(reply.isDone());
+    server.send(ByteBuffer.wrap(answer), from);
+    assertArrayEquals(DNSStubServer.noError(QUERY), reply.get(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Starts a forwarder without a fixed upstream, and a server socket that answers by hand.
+   * @param retries - How many times a query is resent.
+   */
+  private void open(final int retries) throws IOException {
+    server = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    forwarder = new DNSForwarder(null, 0, 200, retries);
+  }
+
+  private InetSocketAddress address() throws IOException {
+    return (InetSocketAddress) server.getLocalAddress();
+  }
+}
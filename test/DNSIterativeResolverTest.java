@@ -0,0 +1,336 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+//Resolution by DNSIterativeResolver through a stand-in hierarchy on the loopback addresses: a
+//root at 127.0.0.1 delegating test to a TLD server at .2, which delegates zones to an
+//authoritative server at .3, and lame.test to a lame server at .4 and a slower good one at .5.
+class DNSIterativeResolverTest {
+  private static final int RCODE_REFUSED = 5;
+
+  private final List<DNSStubServer> servers = new ArrayList<>();
+  private DNSStubServer root;
+  private DNSStubServer tld;
+  private DNSStubServer auth;
+  private DNSStubServer lame;
+  private DNSStubServer slow;
+  private ExecutorService executor;
+  private DNSIterativeResolver resolver;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    // Delegations and nameserver addresses from other tests must not skip the referrals.
+    DNSCache.setCapacity(DNSCache.DEFAULT_CAPACITY);
+    DNSCache.setNegativeCapacity(DNSCache.DEFAULT_NEGATIVE_CAPACITY);
+    DNSCache.setDelegationCapacity(DNSCache.DEFAULT_DELEGATION_CAPACITY);
+    root = start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), DNSIterativeResolverTest::root);
+    // Every nameserver found through a referral is asked on the root's port.
+    int port = root.address().getPort();
+    tld = start(new InetSocketAddress(InetAddress.getByName("127.0.0.2"), port), DNSIterativeResolverTest::tld);
+    auth = start(new InetSocketAddress(InetAddress.getByName("127.0.0.3"), port), DNSIterativeResolverTest::auth);
+    lame = start(new InetSocketAddress(InetAddress.getByName("127.0.0.4"), port), DNSIterativeResolverTest::lame);
+    slow = start(new InetSocketAddress(InetAddress.getByName("127.0.0.5"), port), DNSIterativeResolverTest::auth);
+    slow.delay(50);
+    executor = Executors.newFixedThreadPool(2);
+    resolver = new DNSIterativeResolver(List.of(root.address()), port, executor);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    if (resolver != null)
+      resolver.close();
+    if (executor != null)
+      executor.shutdownNow();
+    for (DNSStubServer server : servers)
+      server.close();
+  }
+
+  @Test
+  void followsReferralsDownFromTheRoot() throws Exception {
+    DNSCacheEntry entry = resolve("web.example.test");
+    assertEquals(List.of("web.example.test A 10.0.0.1"), answers(entry));
+    assertEquals(2, resolver.referrals());
+    assertEquals(1, root.queries.get());
+    assertEquals(1, tld.queries.get());
+    assertEquals(1, auth.queries.get());
+  }
+
+  @Test
+  void startsFromACachedDelegation() throws Exception {
+    resolve("web.example.test");
+    DNSCacheEntry entry = resolve("mail.example.test");
+    assertEquals(List.of("mail.example.test A 10.0.0.5"), answers(entry));
+    assertEquals(1, resolver.delegationHits());
+    assertEquals(2, resolver.referrals());
+    assertEquals(1, root.queries.get());
+    assertEquals(1, tld.queries.get());
+    assertEquals(2, auth.queries.get());
+  }
+
+  @Test
+  void followsACnameChainWithinOneReply() throws Exception {
+    DNSCacheEntry entry = resolve("www.example.test");
+    assertEquals(List.of("www.example.test CNAME web.example.test", "web.example.test A 10.0.0.1"), answers(entry));
+    assertEquals(1, auth.queries.get());
+  }
+
+  @Test
+  void chasesACnameIntoAnotherZone() throws Exception {
+    DNSCacheEntry entry = resolve("alias.example.test");
+    assertEquals(List.of("alias.example.test CNAME www.other.test", "www.other.test A 10.0.0.2"), answers(entry));
+    // The second step starts from the cached test delegation, not the root.
+    assertEquals(1, root.queries.get());
+    assertEquals(2, tld.queries.get());
+    assertEquals(3, resolver.referrals());
+  }
+
+  @Test
+  void dropsRecordsFromOutsideTheZoneAsked() throws Exception {
+    DNSCacheEntry entry = resolve("poison.example.test");
+    // The example.test server's own A record for www.other.test is not taken; the name is
+    // asked of other.test's nameservers, reached through the TLD.
+    assertEquals(List.of("poison.example.test CNAME www.other.test", "www.other.test A 10.0.0.2"), answers(entry));
+    assertEquals(2, tld.queries.get());
+    assertEquals(2, auth.queries.get());
+  }
+
+  @Test
+  void resolvesTheAddressOfAGluelessNameserver() throws Exception {
+    DNSCacheEntry entry = resolve("host.glueless.test");
+    assertEquals(List.of("host.glueless.test A 10.0.0.3"), answers(entry));
+    // One query for ns.example.test, the nameserver glueless.test was delegated to, and one for the host.
+    assertEquals(2, auth.queries.get());
+    DNSCacheEntry nameserver = DNSCache.peekEntry(
+        DNSQuestion.of(DNSStubServer.name("ns.example.test"), 0, DNSRecord.TYPE_A, DNSRecord.CLASS_IN));
+    assertEquals(List.of("ns.example.test A 127.0.0.3"), answers(nameserver));
+  }
+
+  @Test
+  void returnsTheSoaOfANegativeAnswer() throws Exception {
+    DNSCacheEntry entry = resolve("missing.example.test");
+    assertEquals(DNSMessage.RCODE_NAME_ERROR, entry.rCode);
+    assertEquals(List.of(), answers(entry));
+    assertEquals(1, entry.authorityRecords.length);
+    assertEquals(DNSRecord.TYPE_SOA, entry.authorityRecords[0].type);
+  }
+
+  @Test
+  void passesOverALameNameserverThatAnswersFirst() throws Exception {
+    DNSCacheEntry entry = resolve("host.lame.test");
+    assertEquals(List.of("host.lame.test A 10.0.0.4"), answers(entry));
+    assertEquals(1, lame.queries.get());
+    assertEquals(1, slow.queries.get());
+  }
+
+  @Test
+  void triesTheNextNameserverWhenOneRefuses() throws Exception {
+    lame.handler(query -> reply(query, 0x8000 | RCODE_REFUSED).bytes());
+    slow.delay(0);
+    DNSCacheEntry entry = resolve("host.lame.test");
+    assertEquals(List.of("host.lame.test A 10.0.0.4"), answers(entry));
+  }
+
+  private DNSStubServer start(final InetSocketAddress address, final UnaryOperator<byte[]> handler)
+      throws IOException {
+    DNSStubServer ret = new DNSStubServer(address, handler);
+    servers.add(ret);
+    return ret;
+  }
+
+  private DNSCacheEntry resolve(final String dotted) throws Exception {
+    DNSQuestion question = DNSQuestion.of(DNSStubServer.name(dotted), 0, DNSRecord.TYPE_A, DNSRecord.CLASS_IN);
+    return resolver.resolve(question).get(10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return The entry's answers as "owner TYPE data", with A and CNAME data written out.
+   */
+  private static List<String> answers(final DNSCacheEntry entry) {
+    List<String> ret = new ArrayList<>();
+    for (DNSRecord record : entry.answers) {
+      String owner = String.join(".", DNSMessage.readDomainName(record.data, record.nameOffset));
+      if (record.type == DNSRecord.TYPE_A) {
+        ret.add(owner + " A " + (record.data[record.rdOffset] & 0xff) + "." + (record.data[record.rdOffset + 1] & 0xff)
+            + "." + (record.data[record.rdOffset + 2] & 0xff) + "." + (record.data[record.rdOffset + 3] & 0xff));
+      } else if (record.type == DNSRecord.TYPE_CNAME) {
+        ret.add(owner + " CNAME " + String.join(".", DNSMessage.readDomainName(record.data, record.rdOffset)));
+      } else {
+        ret.add(owner + " " + record.type);
+      }
+    }
+    return ret;
+  }
+
+  // The root: refers everything under test to the TLD server.
+  private static byte[] root(final byte[] query) {
+    if (!under(asked(query), "test"))
+      return nxDomain(query, "");
+    return reply(query, 0x8000).authority("test", DNSRecord.TYPE_NS, DNSStubServer.name("ns.tld.test"))
+        .additional("ns.tld.test", DNSRecord.TYPE_A, ip(2)).bytes();
+  }
+
+  // The TLD: example.test and other.test are served by .3, glueless.test by a nameserver named
+  // in example.test and so without glue, and lame.test by .4, which is lame, and .5.
+  private static byte[] tld(final byte[] query) {
+    String name = asked(query);
+    if (under(name, "example.test") || under(name, "other.test")) {
+      String zone = under(name, "example.test") ? "example.test" : "other.test";
+      return reply(query, 0x8000).authority(zone, DNSRecord.TYPE_NS, DNSStubServer.name("ns1.example.test"))
+          .additional("ns1.example.test", DNSRecord.TYPE_A, ip(3)).bytes();
+    }
+    if (under(name, "glueless.test"))
+      return reply(query, 0x8000).authority("glueless.test", DNSRecord.TYPE_NS, DNSStubServer.name("ns.example.test"))
+          .bytes();
+    if (under(name, "lame.test"))
+      return reply(query, 0x8000).authority("lame.test", DNSRecord.TYPE_NS, DNSStubServer.name("ns1.lame.test"))
+          .authority("lame.test", DNSRecord.TYPE_NS, DNSStubServer.name("ns2.lame.test"))
+          .additional("ns1.lame.test", DNSRecord.TYPE_A, ip(4))
+          .additional("ns2.lame.test", DNSRecord.TYPE_A, ip(5)).bytes();
+    return nxDomain(query, "test");
+  }
+
+  // The authoritative server of example.test, other.test, glueless.test and lame.test.
+  private static byte[] auth(final byte[] query) {
+    Reply ret = reply(query, 0x8400);
+    switch (asked(query)) {
+      case "www.example.test":
+        return ret.answer("www.example.test", DNSRecord.TYPE_CNAME, DNSStubServer.name("web.example.test"))
+            .answer("web.example.test", DNSRecord.TYPE_A, new byte[] {10, 0, 0, 1}).bytes();
+      case "web.example.test":
+        return ret.answer("web.example.test", DNSRecord.TYPE_A, new byte[] {10, 0, 0, 1}).bytes();
+      case "mail.example.test":
+        return ret.answer("mail.example.test", DNSRecord.TYPE_A, new byte[] {10, 0, 0, 5}).bytes();
+      case "poison.example.test":
+        // An alias out of the zone, with a forged address for its target and an unrelated name.
+        return ret.answer("poison.example.test", DNSRecord.TYPE_CNAME, DNSStubServer.name("www.other.test"))
+            .answer("www.other.test", DNSRecord.TYPE_A, new byte[] {6, 6, 6, 6})
+            .answer("bank.test", DNSRecord.TYPE_A, new byte[] {6, 6, 6, 6}).bytes();
+      case "alias.example.test":
+        return ret.answer("alias.example.test", DNSRecord.TYPE_CNAME, DNSStubServer.name("www.other.test")).bytes();
+      case "ns.example.test":
+      case "ns1.example.test":
+        return ret.answer(asked(query), DNSRecord.TYPE_A, ip(3)).bytes();
+      case "www.other.test":
+        return ret.answer("www.other.test", DNSRecord.TYPE_A, new byte[] {10, 0, 0, 2}).bytes();
+      case "host.glueless.test":
+        return ret.answer("host.glueless.test", DNSRecord.TYPE_A, new byte[] {10, 0, 0, 3}).bytes();
+      case "host.lame.test":
+        return ret.answer("host.lame.test", DNSRecord.TYPE_A, new byte[] {10, 0, 0, 4}).bytes();
+      default:
+        return nxDomain(query, "example.test");
+    }
+  }
+
+  // A lame nameserver: not authoritative for the zone, it refers the query back up to the root.
+  private static byte[] lame(final byte[] query) {
+    return reply(query, 0x8000).authority("", DNSRecord.TYPE_NS, DNSStubServer.name("a.root-servers.net")).bytes();
+  }
+
+  private static byte[] nxDomain(final byte[] query, final String zone) {
+    DNSOutputBuffer soa = new DNSOutputBuffer();
+    byte[] mname = DNSStubServer.name(zone.isEmpty() ? "ns" : "ns." + zone);
+    byte[] rname = DNSStubServer.name(zone.isEmpty() ? "hostmaster" : "hostmaster." + zone);
+    soa.writeBytes(mname, 0, mname.length);
+    soa.writeBytes(rname, 0, rname.length);
+    for (int value : new int[] {1, 3600, 600, 86400, 300})
+      soa.writeInt(value);
+    return reply(query, 0x8400 | DNSMessage.RCODE_NAME_ERROR).authority(zone, DNSRecord.TYPE_SOA, soa.toByteArray())
+        .bytes();
+  }
+
+  private static byte[] ip(final int last) {
+    return new byte[] {127, 0, 0, (byte) last};
+  }
+
+  /**
+   * @return The name a query asks about, lower case, without the trailing dot.
+   */
+  private static String asked(final byte[] query) {
+    StringBuilder ret = new StringBuilder();
+    int pos = DNSHeader.HEADER_LENGTH;
+    while (query[pos] != 0) {
+      if (ret.length() > 0)
+        ret.append('.');
+      ret.append(new String(query, pos + 1, query[pos], StandardCharsets.US_ASCII));
+      pos += query[pos] + 1;
+    }
+    return ret.toString().toLowerCase();
+  }
+
+  private static boolean under(final String name, final String zone) {
+    return name.equals(zone) || name.endsWith("." + zone);
+  }
+
+  private static Reply reply(final byte[] query, final int flags) {
+    return new Reply(query, flags);
+  }
+
+  //A reply to a query, built up a record at a time with every name in full.
+  private static final class Reply {
+    private final byte[] query;
+    private final int flags;
+    private final DNSOutputBuffer[] sections = {new DNSOutputBuffer(), new DNSOutputBuffer(), new DNSOutputBuffer()};
+    private final int[] counts = new int[3];
+
+    Reply(final byte[] query, final int flags) {
+      this.query = query;
+      this.flags = flags;
+    }
+
+    Reply answer(final String owner, final short type, final byte[] rdata) {
+      return record(0, owner, type, rdata);
+    }
+
+    Reply authority(final String owner, final short type, final byte[] rdata) {
+      return record(1, owner, type, rdata);
+    }
+
+    Reply additional(final String owner, final short type, final byte[] rdata) {
+      return record(2, owner, type, rdata);
+    }
+
+    private Reply record(final int section, final String owner, final short type, final byte[] rdata) {
+      DNSOutputBuffer os = sections[section];
+      byte[] name = DNSStubServer.name(owner);
+      os.writeBytes(name, 0, name.length);
+      os.writeShort(type);
+      os.writeShort(DNSRecord.CLASS_IN);
+      os.writeInt(300);
+      os.writeShort(rdata.length);
+      os.writeBytes(rdata, 0, rdata.length);
+      counts[section]++;
+      return this;
+    }
+
+    byte[] bytes() {
+      DNSOutputBuffer os = new DNSOutputBuffer();
+      os.writeBytes(query, 0, 2);
+      os.writeShort(flags);
+      os.writeShort(1);
+      for (int count : counts)
+        os.writeShort(count);
+      int questionEnd = DNSHeader.HEADER_LENGTH;
+      while (query[questionEnd] != 0)
+        questionEnd += query[questionEnd] + 1;
+      questionEnd += 5;
+      os.writeBytes(query, DNSHeader.HEADER_LENGTH, questionEnd - DNSHeader.HEADER_LENGTH);
+      for (DNSOutputBuffer section : sections)
+        os.writeBytes(section.array(), 0, section.size());
+      return os.toByteArray();
+    }
+  }
+}
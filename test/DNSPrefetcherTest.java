@@ -0,0 +1,70 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+//Refresh-ahead over the off-heap store, which decodes a new entry for every hit: the refresh is
+//claimed once per question, and an entry placed by a refresh keeps its mark.
+class DNSPrefetcherTest {
+  private static final byte[] QUERY = DNSStubServer.query("www.example.com", DNSRecord.TYPE_A);
+
+  private DNSQuestion question;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    DNSCache.setOffHeap(1 << 20, 1 << 20);
+    // Every hit is due a refresh.
+    DNSPrefetcher.configure(1.0, 0, 1000);
+    question = DNSMessage.decodeMessage(QUERY).questions[0];
+  }
+
+  @AfterEach
+  void tearDown() {
+    DNSPrefetcher.onRefreshed(question);
+    DNSPrefetcher.configure(DNSPrefetcher.DEFAULT_REFRESH_FRACTION, DNSPrefetcher.DEFAULT_MIN_HITS,
+        DNSPrefetcher.DEFAULT_MAX_PER_SECOND);
+    DNSCache.setOffHeap(0, 0);
+  }
+
+  @Test
+  void claimsOneRefreshPerQuestion() throws IOException {
+    DNSCache.placeEntry(question, answer());
+    DNSCacheEntry first = DNSCache.getEntry(question);
+    DNSCacheEntry second = DNSCache.getEntry(question);
+    assertNotSame(first, second);
+    assertTrue(DNSPrefetcher.onHit(question, first));
+    assertFalse(DNSPrefetcher.onHit(question, second), "a refresh is already under way");
+    DNSPrefetcher.onRefreshed(question);
+    assertTrue(DNSPrefetcher.onHit(question, DNSCache.getEntry(question)));
+  }
+
+  @Test
+  void countsHitsOnRefreshedEntries() throws IOException {
+    DNSCacheEntry entry = answer();
+    entry.prefetched = true;
+    DNSCache.placeEntry(question, entry);
+    long before = DNSPrefetcher.prefetchedHits();
+    DNSPrefetcher.onHit(question, DNSCache.getEntry(question));
+    assertEquals(before + 1, DNSPrefetcher.prefetchedHits());
+  }
+
+  /**
+   * @return An entry answering the query with one A record.
+   */
+  private static DNSCacheEntry answer() throws IOException {
+    byte[] reply = DNSStubServer.noError(QUERY);
+    reply[7] = 1;
+    byte[] record = {(byte) 0xc0, 12, 0, 1, 0, 1, 0, 0, 1, 44, 0, 4, 127, 0, 0, 1};
+    byte[] ret = Arrays.copyOf(reply, reply.length + record.length);
+    System.arraycopy(record, 0, ret, reply.length, record.length);
+    return DNSCacheEntry.fromMessage(DNSMessage.decodeMessage(ret));
+  }
+}
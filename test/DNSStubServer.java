@@ -0,0 +1,159 @@
+package MSD;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+//A stand-in DNS server on the loopback address for the tests. Each query is answered through a
+//handler, after a set delay, or dropped while the server is dead, so upstreams that are slow or
+//down can be played without the network.
+class DNSStubServer implements Closeable {
+  private final DatagramChannel channel;
+  private final ScheduledExecutorService delayer;
+  // Turns a query into its reply, or null to drop it.
+  private volatile UnaryOperator<byte[]> handler;
+  private volatile long delayMillis;
+  private volatile boolean dead;
+  // Queries received, dropped ones included.
+  final AtomicInteger queries = new AtomicInteger();
+
+  /**
+   * Starts a server that answers every query with an empty NOERROR reply.
+   * @throws IOException If the socket cannot be opened.
+   */
+  DNSStubServer() throws IOException {
+    this(DNSStubServer::noError);
+  }
+
+  /**
+   * Starts a server on a free loopback port.
+   * @param handler - Turns a query into its reply, or null to drop it.
+   * @throws IOException If the socket cannot be opened.
+   */
+  DNSStubServer(final UnaryOperator<byte[]> handler) throws IOException {
+    this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), handler);
+  }
+
+  /**
+   * Starts a server on a given address, such as another loopback address on the port of a
+   * server already started, for resolvers that ask every nameserver on one port.
+   * @param address - The address to answer on.
+   * @param handler - Turns a query into its reply, or null to drop it.
+   * @throws IOException If the socket cannot be opened.
+   */
+  DNSStubServer(final InetSocketAddress address, final UnaryOperator<byte[]> handler) throws IOException {
+    this.handler = handler;
+    channel = DatagramChannel.open().bind(address);
+    delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "dns-stub-server-delay");
+      thread.setDaemon(true);
+      return thread;
+    });
+    Thread thread = new Thread(this::serve, "dns-stub-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  InetSocketAddress address() throws IOException {
+    return (InetSocketAddress) channel.getLocalAddress();
+  }
+
+  DNSStubServer delay(final long millis) {
+    delayMillis = millis;
+    return this;
+  }
+
+  DNSStubServer dead(final boolean on) {
+    dead = on;
+    return this;
+  }
+
+  DNSStubServer handler(final UnaryOperator<byte[]> on) {
+    handler = on;
+    return this;
+  }
+
+  private void serve() {
+    ByteBuffer buffer = ByteBuffer.allocate(DNSServer.MAX_UDP_PAYLOAD);
+    try {
+      while (true) {
+        buffer.clear();
+        SocketAddress from = channel.receive(buffer);
+        queries.incrementAndGet();
+        if (dead)
+          continue;
+        byte[] reply = handler.apply(Arrays.copyOf(buffer.array(), buffer.position()));
+        if (reply == null)
+          continue;
+        long delay = delayMillis;
+        if (delay > 0)
+          delayer.schedule(() -> send(reply, from), delay, TimeUnit.MILLISECONDS);
+        else
+          send(reply, from);
+      }
+    } catch (IOException e) {
+      // Closed.
+    }
+  }
+
+  private void send(final byte[] reply, final SocketAddress to) {
+    try {
+      channel.send(ByteBuffer.wrap(reply), to);
+    } catch (IOException e) {
+      // Closed, or the client is gone.
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    delayer.shutdownNow();
+  }
+
+  /**
+   * @param query - A query.
+   * @return An answerless NOERROR reply to it, with its ID and question.
+   */
+  static byte[] noError(final byte[] query) {
+    byte[] ret = query.clone();
+    ret[2] |= (byte) 0x80;
+    ret[3] = (byte) 0x80;
+    return ret;
+  }
+
+  /**
+   * @param dotted - A name without the trailing dot, or "" for the root.
+   * @return - The name in wire format, uncompressed.
+   */
+  static byte[] name(final String dotted) {
+    DNSOutputBuffer ret = new DNSOutputBuffer();
+    if (!dotted.isEmpty()) {
+      for (String label : dotted.split("\\.")) {
+        ret.writeByte(label.length());
+        for (int i = 0; i < label.length(); i++)
+          ret.writeByte(label.charAt(i));
+      }
+    }
+    ret.writeByte(0);
+    return ret.toByteArray();
+  }
+
+  /**
+   * @param dotted - The name asked about.
+   * @param type - The type asked for.
+   * @return A query for it, as the server forwards them.
+   */
+  static byte[] query(final String dotted, final short type) {
+    return DNSMessage.buildQuery(DNSQuestion.of(name(dotted), 0, type, DNSRecord.CLASS_IN));
+  }
+}
@@ -0,0 +1,42 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+//The SERVFAIL replies DNSUdpServer sends, straight from the query bytes, when too many queries
+//are in flight.
+class DNSUdpServerTest {
+  private static final String QUESTION = "03777777076578616d706c6503636f6d0000010001";
+
+  @Test
+  void answersWithTheHeaderAndQuestionOnly() {
+    // RD set, with an OPT record in the additional section.
+    byte[] query = hex("abcd01000001000000000001" + QUESTION + "0000290200000000000000");
+    assertArrayEquals(hex("abcd81820001000000000000" + QUESTION), DNSUdpServer.serverFailure(query));
+  }
+
+  @Test
+  void keepsTheOpcodeAndClearsTheOtherFlags() {
+    // Opcode 2 (STATUS), with AA, TC and RD set.
+    byte[] query = hex("000117000001000000000000" + QUESTION);
+    assertArrayEquals(hex("000191820001000000000000" + QUESTION), DNSUdpServer.serverFailure(query));
+  }
+
+  @Test
+  void dropsWhatIsNotAPlainQuery() {
+    // A response, two questions, a compressed question name and a cut off question.
+    assertNull(DNSUdpServer.serverFailure(hex("abcd81000001000000000000" + QUESTION)));
+    assertNull(DNSUdpServer.serverFailure(hex("abcd01000002000000000000" + QUESTION + QUESTION)));
+    assertNull(DNSUdpServer.serverFailure(hex("abcd01000001000000000000" + "c00c00010001")));
+    assertNull(DNSUdpServer.serverFailure(hex("abcd01000001000000000000" + "03777777076578")));
+  }
+
+  private static byte[] hex(final String hex) {
+    byte[] ret = new byte[hex.length() / 2];
+    for (int i = 0; i < ret.length; i++)
+      ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    return ret;
+  }
+}
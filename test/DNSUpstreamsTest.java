@@ -0,0 +1,189 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+//Failover, hedging and probing of DNSUpstreams against stand-in upstreams on the loopback
+//address, some of them slow or dead.
+class DNSUpstreamsTest {
+  private static final byte[] QUERY = DNSStubServer.query("www.example.com", DNSRecord.TYPE_A);
+
+  private DNSStubServer first;
+  private DNSStubServer second;
+  private DNSUpstreams upstreams;
+
+  @AfterEach
+  void tearDown() throws IOException {
+    if (upstreams != null)
+      upstreams.close();
+    if (first != null)
+      first.close();
+    if (second != null)
+      second.close();
+  }
+
+  @Test
+  void failsOverFromADeadUpstreamAndThenMarksItDown() throws Exception {
+    first = new DNSStubServer().dead(true);
+    second = new DNSStubServer();
+    upstreams = open(200, 1, 0, first, second);
+    for (int i = 0; i < DNSUpstreams.MARK_DOWN_FAILURES; i++)
+      assertArrayEquals(DNSStubServer.noError(QUERY), ask());
+    assertEquals(DNSUpstreams.MARK_DOWN_FAILURES, upstreams.failovers());
+    assertEquals(0, up(first));
+    int sent = first.queries.get();
+    long start = System.nanoTime();
+    ask();
+    assertTrue(elapsedMillis(start) < 150, "a down upstream is not waited on");
+    assertEquals(sent, first.queries.get());
+    assertEquals(DNSUpstreams.MARK_DOWN_FAILURES, upstreams.failovers());
+  }
+
+  @Test
+  void timesOutAfterTheRoundTripTimeRatherThanTheCeiling() throws Exception {
+    first = new DNSStubServer();
+    upstreams = open(2_000, 1, 0, first);
+    ask();
+    first.dead(true);
+    long start = System.nanoTime();
+    ExecutionException e = assertThrows(ExecutionException.class, this::ask);
+    assertTrue(e.getCause() instanceof SocketTimeoutException, e.toString());
+    // Two tries of the floor, rather than two of the 2 s ceiling.
+    long elapsed = elapsedMillis(start);
+    assertTrue(elapsed >= 2 * DNSUpstreams.MIN_TIMEOUT_MILLIS - 10 && elapsed < 1_000, elapsed + " ms");
+  }
+
+  @Test
+  void hedgesToAnotherUpstreamWhenTheFirstIsSlow() throws Exception {
+    first = new DNSStubServer().delay(800);
+    second = new DNSStubServer();
+    upstreams = open(2_000, 0, 0.9, first, second);
+    long start = System.nanoTime();
+    ask();
+    long elapsed = elapsedMillis(start);
+    assertTrue(elapsed >= DNSUpstreams.INITIAL_HEDGE_MILLIS - 10 && elapsed < 600, elapsed + " ms");
+    // The hedge is counted once sent, which may be after its reply arrives.
+    eventually(() -> upstreams.hedges() == 1);
+    assertEquals(1, first.queries.get());
+    assertEquals(1, second.queries.get());
+  }
+
+  @Test
+  void probesADownUpstreamAndBringsItBack() throws Exception {
+    first = new DNSStubServer().dead(true);
+    second = new DNSStubServer();
+    upstreams = open(100, 0, 0, first, second);
+    for (int i = 0; i < DNSUpstreams.MARK_DOWN_FAILURES; i++)
+      ask();
+    assertEquals(0, up(first));
+    first.dead(false);
+    // No probe before the back-off runs out.
+    ask();
+    assertEquals(0, upstreams.probes());
+    Thread.sleep(DNSUpstreams.MIN_DOWN_MILLIS);
+    ask();
+    assertEquals(1, upstreams.probes());
+    eventually(() -> up(first) == 1);
+  }
+
+  @Test
+  void failsOverOnServerFailure() throws Exception {
+    first = new DNSStubServer(query -> {
+      byte[] ret = DNSStubServer.noError(query);
+      ret[3] |= DNSMessage.RCODE_SERVER_FAILURE;
+      return ret;
+    });
+    second = new DNSStubServer();
+    upstreams = open(2_000, 1, 0, first, second);
+    long start = System.nanoTime();
+    assertArrayEquals(DNSStubServer.noError(QUERY), ask());
+    assertTrue(elapsedMillis(start) < 500, "a SERVFAIL is not retried like a timeout");
+    // The failover is counted once sent, which may be after its reply arrives.
+    eventually(() -> upstreams.failovers() == 1);
+  }
+
+  @Test
+  void timesOnlyRepliesToTheFirstTry() throws Exception {
+    // Drops the first query, so the first reply answers the resent try.
+    first = new DNSStubServer(query -> null).delay(50);
+    first.handler(query -> first.queries.get() == 1 ? null : DNSStubServer.noError(query));
+    upstreams = open(300, 1, 0, first);
+    ask();
+    assertEquals(2, first.queries.get());
+    assertEquals(0, srttMillis(first), "a reply to a resent try is not timed");
+    ask();
+    long srtt = srttMillis(first);
+    assertTrue(srtt >= 40 && srtt < 300, srtt + " ms");
+  }
+
+  private static DNSUpstreams open(final long timeoutMillis, final int retries, final double hedgePercentile,
+      final DNSStubServer... servers) throws IOException {
+    InetSocketAddress[] addresses = new InetSocketAddress[servers.length];
+    for (int i = 0; i < servers.length; i++)
+      addresses[i] = servers[i].address();
+    return new DNSUpstreams(List.of(addresses), 1, timeoutMillis, retries, hedgePercentile);
+  }
+
+  private byte[] ask() throws Exception {
+    CompletableFuture<byte[]> reply = upstreams.forward(QUERY);
+    return reply.get(10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return 1 if the upstream is up, 0 if it is marked down, as the metrics report it.
+   */
+  private int up(final DNSStubServer server) throws IOException {
+    StringBuilder out = new StringBuilder();
+    upstreams.writeMetrics(out);
+    String prefix = "dns_upstream_up{upstream=\"127.0.0.1:" + server.address().getPort() + "\"} ";
+    for (String line : out.toString().split("\n")) {
+      if (line.startsWith(prefix))
+        return Integer.parseInt(line.substring(prefix.length()));
+    }
+    throw new AssertionError("No metric for " + server.address());
+  }
+
+  /**
+   * @return The upstream's smoothed round trip time as the metrics report it, 0 if unmeasured.
+   */
+  private long srttMillis(final DNSStubServer server) throws IOException {
+    StringBuilder out = new StringBuilder();
+    upstreams.writeMetrics(out);
+    String prefix = "dns_upstream_srtt_seconds{upstream=\"127.0.0.1:" + server.address().getPort() + "\"} ";
+    for (String line : out.toString().split("\n")) {
+      if (line.startsWith(prefix))
+        return Math.round(Double.parseDouble(line.substring(prefix.length())) * 1000);
+    }
+    throw new AssertionError("No metric for " + server.address());
+  }
+
+  //A condition the upstreams reach soon, once a reply or timer they are waiting on is handled.
+  private interface Condition {
+    boolean holds() throws Exception;
+  }
+
+  private static void eventually(final Condition condition) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (!condition.holds()) {
+      if (System.nanoTime() > deadline)
+        throw new AssertionError("Condition not reached in 2 s");
+      Thread.sleep(5);
+    }
+  }
+
+  private static long elapsedMillis(final long startNanos) {
+    return (System.nanoTime() - startNanos) / 1_000_000;
+  }
+}
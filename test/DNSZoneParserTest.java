@@ -0,0 +1,49 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+//SOA serials in master files: the whole unsigned 32 bit range is kept, and anything outside it
+//is reported with its line like the other fields.
+class DNSZoneParserTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void keepsTheLargestSerial() throws Exception {
+    DNSZone zone = DNSZoneParser.parse(write("4294967295"));
+    DNSMessage request = DNSMessage.decodeMessage(DNSStubServer.query("example.test", DNSRecord.TYPE_SOA));
+    DNSRecord soa = zone.answer(request).answers[0];
+    // The serial is the first of the five numbers that end the SOA's rdData.
+    int serial = soa.rdOffset + soa.rdLength - 20;
+    assertEquals(0xFFFFFFFF, ((soa.data[serial] & 0xff) << 24) | ((soa.data[serial + 1] & 0xff) << 16)
+        | ((soa.data[serial + 2] & 0xff) << 8) | (soa.data[serial + 3] & 0xff));
+  }
+
+  @Test
+  void rejectsASerialPastThirtyTwoBits() throws IOException {
+    Path file = write("4294967296");
+    IOException e = assertThrows(IOException.class, () -> DNSZoneParser.parse(file));
+    assertTrue(e.getMessage().startsWith(file + ":3: serial out of range"), e.getMessage());
+  }
+
+  @Test
+  void rejectsASerialThatIsNotANumber() throws IOException {
+    Path file = write("2024x");
+    IOException e = assertThrows(IOException.class, () -> DNSZoneParser.parse(file));
+    assertTrue(e.getMessage().startsWith(file + ":3: bad serial"), e.getMessage());
+  }
+
+  private Path write(final String serial) throws IOException {
+    return Files.writeString(dir.resolve("example.test.zone"), "$ORIGIN example.test.\n$TTL 3600\n"
+        + "@ IN SOA ns hostmaster " + serial + " 7200 900 1209600 300\n"
+        + "@ IN NS ns\nns IN A 192.0.2.1\n");
+  }
+}
@@ -0,0 +1,159 @@
+package MSD;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+//Authoritative answers from a small zone: records, CNAMEs followed within the zone, wildcards
+//at the closest encloser, referrals with glue, NXDOMAIN and NODATA with the SOA, and reloads.
+class DNSZoneTest {
+  private static final String ZONE = "$ORIGIN zone.test.\n$TTL 3600\n"
+      + "@ IN SOA ns hostmaster 1 7200 900 1209600 300\n"
+      + "@ IN NS ns\n"
+      + "ns IN A 192.0.2.1\n"
+      + "www IN A 192.0.2.10\n"
+      + "alias IN CNAME www\n"
+      + "*.wild IN A 192.0.2.20\n"
+      + "host.wild IN A 192.0.2.21\n"
+      + "sub IN NS ns.sub\n"
+      + "ns.sub IN A 192.0.2.53\n";
+
+  @TempDir
+  Path dir;
+  private DNSZone zone;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    zone = DNSZoneParser.parse(write(ZONE));
+  }
+
+  @Test
+  void answersWithTheRecordsAskedFor() throws IOException {
+    DNSMessage reply = ask("www.zone.test", DNSRecord.TYPE_A);
+    assertEquals(0, reply.header.rCode);
+    assertEquals(1, reply.header.aa);
+    assertEquals(List.of("www.zone.test A 192.0.2.10"), records(reply.answers));
+    assertEquals(List.of(), records(reply.authorityRecords));
+  }
+
+  @Test
+  void followsCnamesWithinTheZone() throws IOException {
+    DNSMessage reply = ask("alias.zone.test", DNSRecord.TYPE_A);
+    assertEquals(0, reply.header.rCode);
+    assertEquals(1, reply.header.aa);
+    assertEquals(List.of("alias.zone.test CNAME www.zone.test", "www.zone.test A 192.0.2.10"),
+        records(reply.answers));
+  }
+
+  @Test
+  void synthesizesFromTheWildcardAtTheClosestEncloser() throws IOException {
+    DNSMessage reply = ask("any.wild.zone.test", DNSRecord.TYPE_A);
+    assertEquals(0, reply.header.rCode);
+    assertEquals(1, reply.header.aa);
+    assertEquals(List.of("any.wild.zone.test A 192.0.2.20"), records(reply.answers));
+    // Two labels below wild.zone.test, which is still the closest encloser.
+    assertEquals(List.of("a.b.wild.zone.test A 192.0.2.20"), records(ask("a.b.wild.zone.test", DNSRecord.TYPE_A).answers));
+    // An existing name is answered from its own records, not the wildcard's.
+    assertEquals(List.of("host.wild.zone.test A 192.0.2.21"), records(ask("host.wild.zone.test", DNSRecord.TYPE_A).answers));
+  }
+
+  @Test
+  void doesNotMatchTheWildcardBelowAnExistingName() throws IOException {
+    // host.wild.zone.test is the closest encloser and has no wildcard of its own (RFC 4592 2.2.1).
+    DNSMessage reply = ask("x.host.wild.zone.test", DNSRecord.TYPE_A);
+    assertEquals(DNSMessage.RCODE_NAME_ERROR, reply.header.rCode);
+    assertEquals(List.of(), records(reply.answers));
+  }
+
+  @Test
+  void refersDelegatedNamesWithGlue() throws IOException {
+    DNSMessage reply = ask("www.sub.zone.test", DNSRecord.TYPE_A);
+    assertEquals(0, reply.header.rCode);
+    assertEquals(0, reply.header.aa);
+    assertEquals(List.of(), records(reply.answers));
+    assertEquals(List.of("sub.zone.test NS ns.sub.zone.test"), records(reply.authorityRecords));
+    assertEquals(List.of("ns.sub.zone.test A 192.0.2.53"), records(reply.additionalRecords));
+  }
+
+  @Test
+  void answersNxDomainWithTheSoaCappedAtItsMinimum() throws IOException {
+    DNSMessage reply = ask("missing.zone.test", DNSRecord.TYPE_A);
+    assertEquals(DNSMessage.RCODE_NAME_ERROR, reply.header.rCode);
+    assertEquals(1, reply.header.aa);
+    assertEquals(List.of(), records(reply.answers));
+    // The SOA's own TTL is 3600 and its MINIMUM 300.
+    assertEquals(List.of("zone.test SOA TTL 300"), records(reply.authorityRecords));
+  }
+
+  @Test
+  void answersNoDataWithTheSoaCappedAtItsMinimum() throws IOException {
+    DNSMessage reply = ask("www.zone.test", DNSZone.TYPE_AAAA);
+    assertEquals(0, reply.header.rCode);
+    assertEquals(1, reply.header.aa);
+    assertEquals(List.of(), records(reply.answers));
+    assertEquals(List.of("zone.test SOA TTL 300"), records(reply.authorityRecords));
+    // A name that only exists because a name below it does.
+    reply = ask("wild.zone.test", DNSRecord.TYPE_A);
+    assertEquals(0, reply.header.rCode);
+    assertEquals(List.of("zone.test SOA TTL 300"), records(reply.authorityRecords));
+  }
+
+  @Test
+  void servesTheReloadedZoneAndKeepsItWhenTheReloadFails() throws IOException {
+    Path file = write(ZONE);
+    DNSZones.load(file);
+    assertEquals(List.of("www.zone.test A 192.0.2.10"), records(DNSZones.answer(query("www.zone.test")).answers));
+    write(ZONE.replace("192.0.2.10", "192.0.2.11"));
+    DNSZones.load(file);
+    assertEquals(List.of("www.zone.test A 192.0.2.11"), records(DNSZones.answer(query("www.zone.test")).answers));
+    write("$ORIGIN zone.test.\nwww IN A 192.0.2.12\n");
+    assertThrows(IOException.class, () -> DNSZones.load(file));
+    assertEquals(List.of("www.zone.test A 192.0.2.11"), records(DNSZones.answer(query("www.zone.test")).answers));
+  }
+
+  private DNSMessage ask(final String name, final short type) throws IOException {
+    return zone.answer(DNSMessage.decodeMessage(DNSStubServer.query(name, type)));
+  }
+
+  private static DNSMessage query(final String name) throws IOException {
+    return DNSMessage.decodeMessage(DNSStubServer.query(name, DNSRecord.TYPE_A));
+  }
+
+  private Path write(final String text) throws IOException {
+    return Files.writeString(dir.resolve("zone.test.zone"), text);
+  }
+
+  /**
+   * @return Each record as its owner, type and data, or for an SOA its TTL. The OPT record
+   * echoing the request's is left out.
+   */
+  private static List<String> records(final DNSRecord[] section) {
+    List<String> ret = new ArrayList<>();
+    for (DNSRecord record : section) {
+      if (record.type == DNSRecord.TYPE_OPT)
+        continue;
+      String owner = String.join(".", record.name());
+      if (record.type == DNSRecord.TYPE_A) {
+        ret.add(owner + " A " + (record.data[record.rdOffset] & 0xff) + "." + (record.data[record.rdOffset + 1] & 0xff)
+            + "." + (record.data[record.rdOffset + 2] & 0xff) + "." + (record.data[record.rdOffset + 3] & 0xff));
+      } else if (record.type == DNSRecord.TYPE_CNAME) {
+        ret.add(owner + " CNAME " + String.join(".", DNSMessage.readDomainName(record.data, record.rdOffset)));
+      } else if (record.type == DNSRecord.TYPE_NS) {
+        ret.add(owner + " NS " + String.join(".", DNSMessage.readDomainName(record.data, record.rdOffset)));
+      } else if (record.type == DNSRecord.TYPE_SOA) {
+        ret.add(owner + " SOA TTL " + record.ttl);
+      } else {
+        ret.add(owner + " " + record.type);
+      }
+    }
+    return ret;
+  }
+}